@@ -0,0 +1,51 @@
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The UTXOs of a {@link UTXOPool} grouped by the address of their output, with the total value
+ * held by each address. Kept up to date by the pool as it adds and removes UTXOs.
+ */
+final class AddressIndex {
+
+    /** the UTXOs locked to one address and their total value */
+    static final class Holdings {
+        final HashSet<UTXO> utxos = new HashSet<UTXO>();
+        long balance;
+    }
+
+    /** addresses without UTXOs are dropped, so the index does not grow with spent addresses */
+    private final HashMap<PublicKey, Holdings> byAddress = new HashMap<PublicKey, Holdings>();
+
+    /** @return the holdings of {@code address}, or null if it has no UTXOs */
+    Holdings get(PublicKey address) {
+        return byAddress.get(address);
+    }
+
+    /** @throws ArithmeticException if the balance overflows, leaving the index unchanged */
+    void add(UTXO utxo, Transaction.Output output) {
+        Holdings holdings = byAddress.get(output.address);
+        if (holdings == null) {
+            holdings = new Holdings();
+            holdings.balance = output.value;
+            holdings.utxos.add(utxo);
+            byAddress.put(output.address, holdings);
+        } else if (!holdings.utxos.contains(utxo)) {
+            holdings.balance = Math.addExact(holdings.balance, output.value);
+            holdings.utxos.add(utxo);
+        }
+    }
+
+    /** @throws ArithmeticException if the balance overflows, leaving the index unchanged */
+    void remove(UTXO utxo, Transaction.Output output) {
+        Holdings holdings = byAddress.get(output.address);
+        if (holdings == null || !holdings.utxos.contains(utxo)) {
+            return;
+        }
+        holdings.balance = Math.subtractExact(holdings.balance, output.value);
+        holdings.utxos.remove(utxo);
+        if (holdings.utxos.isEmpty()) {
+            byAddress.remove(output.address);
+        }
+    }
+}
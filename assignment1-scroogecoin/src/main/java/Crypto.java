@@ -1,36 +1,50 @@
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
 
 public class Crypto {
 
+    /** batches smaller than this are verified on the calling thread, forking would cost more */
+    static final int PARALLEL_THRESHOLD = 64;
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
+     *         key {@code pubKey}. The signature algorithm (RSA, ECDSA or Ed25519) is picked from
+     *         the type of {@code pubKey}, see {@link SignatureScheme}, but the student does not
      *         have to deal with any of the implementation details of the specific signature
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return SignatureVerifier.get().verify(pubKey, message, signature);
+    }
+
+    /**
+     * @return true is {@code signature} is a valid digital signature of {@code signData} under the
+     *         key {@code pubKey}, like {@link #verifySignature(PublicKey, byte[], byte[])} but
+     *         without concatenating the two parts of the sign data
+     */
+    public static boolean verifySignature(PublicKey pubKey, SignData signData, byte[] signature) {
+        return SignatureVerifier.get().verify(pubKey, signData, signature);
+    }
 
+    /**
+     * Verifies all {@code jobs} in parallel on the common fork-join pool, or on the calling
+     * thread if there are fewer than {@link #PARALLEL_THRESHOLD} of them.
+     *
+     * @return a bitmap where bit {@code i} is set if and only if {@code jobs.get(i)} holds a valid
+     *         signature
+     */
+    public static BitSet verifyBatch(List<VerifyJob> jobs) {
+        IntStream indexes = IntStream.range(0, jobs.size());
+        if (jobs.size() >= PARALLEL_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+        return indexes
+                .filter(i -> {
+                    VerifyJob job = jobs.get(i);
+                    return SignatureVerifier.get().verify(job.getPubKey(), job.getSignData(), job.getSignature());
+                })
+                .collect(BitSet::new, BitSet::set, BitSet::or);
     }
 }
@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of every input signature check of one epoch. All checks are collected up front and
+ * verified in a single parallel {@link Crypto#verifyBatch} call, so the serial UTXO checks of the
+ * handlers only have to look the results up.
+ */
+public class EpochSignatures {
+
+    /** Holds no results, every lookup falls back to verifying on the spot */
+    public static final EpochSignatures NONE = new EpochSignatures();
+
+    /** key each input of a transaction was checked against, null if the input was not checked */
+    private final Map<TransactionData, PublicKey[]> checkedKeys = new IdentityHashMap<>();
+    /** bit {@code i} is set if input {@code i} of the transaction holds a valid signature */
+    private final Map<TransactionData, BitSet> results = new IdentityHashMap<>();
+
+    private EpochSignatures() {
+    }
+
+    /**
+     * Verifies the signatures of all inputs of {@code possibleTxs}. The key owning an input is
+     * taken from {@code pool} or, for chained transactions, from the outputs of the referenced
+     * transaction of the same epoch. Inputs whose owner cannot be resolved are left unchecked.
+     * Checks found in {@code cache} are not verified again, new successful ones are added to it.
+     */
+    public static EpochSignatures verify(Transaction[] possibleTxs, UTXOPool pool, SignatureCache cache) {
+        Map<ByteBuffer, Transaction> epochTxs = new HashMap<>();
+        for (Transaction tx : possibleTxs) {
+            if (tx.getHash() != null) {
+                epochTxs.put(ByteBuffer.wrap(tx.getHash()), tx);
+            }
+        }
+
+        EpochSignatures signatures = new EpochSignatures();
+        List<VerifyJob> jobs = new ArrayList<>();
+        List<Transaction> jobTxs = new ArrayList<>();
+        List<Integer> jobInputs = new ArrayList<>();
+        List<ByteBuffer> jobKeys = new ArrayList<>();
+        for (Transaction tx : possibleTxs) {
+            PublicKey[] keys = new PublicKey[tx.numInputs()];
+            BitSet valid = new BitSet(keys.length);
+            SignData[] signData = null;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                Transaction.Output owner = resolve(input, pool, epochTxs);
+                if (owner == null || owner.address == null || input.signature == null) {
+                    continue;
+                }
+                keys[i] = owner.address;
+                if (signData == null) {
+                    // outputs are encoded once for all inputs of the transaction
+                    signData = tx.getAllSignData();
+                }
+                ByteBuffer cacheKey = cache.keyOf(owner.address, signData[i], input.signature);
+                if (cache.isVerified(cacheKey)) {
+                    valid.set(i);
+                    continue;
+                }
+                jobs.add(new VerifyJob(owner.address, signData[i], input.signature));
+                jobTxs.add(tx);
+                jobInputs.add(i);
+                jobKeys.add(cacheKey);
+            }
+            signatures.checkedKeys.put(tx, keys);
+            signatures.results.put(tx, valid);
+        }
+        if (jobs.isEmpty()) {
+            return signatures;
+        }
+
+        BitSet valid = Crypto.verifyBatch(jobs);
+        for (int j = valid.nextSetBit(0); j >= 0; j = valid.nextSetBit(j + 1)) {
+            signatures.results.get(jobTxs.get(j)).set(jobInputs.get(j));
+            cache.markVerified(jobKeys.get(j));
+        }
+        return signatures;
+    }
+
+    private static Transaction.Output resolve(Transaction.Input input, UTXOPool pool,
+                                              Map<ByteBuffer, Transaction> epochTxs) {
+        if (input.prevTxHash == null) {
+            return null;
+        }
+        Transaction.Output output = pool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+        if (output != null) {
+            return output;
+        }
+        Transaction prevTx = epochTxs.get(ByteBuffer.wrap(input.prevTxHash));
+        return prevTx != null && input.outputIndex >= 0 ? prevTx.getOutput(input.outputIndex) : null;
+    }
+
+    /**
+     * @return the batched result for input {@code index} of {@code tx}, or null if that input was
+     *         not checked against {@code pubKey} and has to be verified by the caller
+     */
+    public Boolean lookup(TransactionData tx, int index, PublicKey pubKey) {
+        PublicKey[] keys = checkedKeys.get(tx);
+        if (keys == null || index >= keys.length || keys[index] != pubKey) {
+            return null;
+        }
+        return results.get(tx).get(index);
+    }
+}
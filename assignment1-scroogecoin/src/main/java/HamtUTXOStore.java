@@ -0,0 +1,486 @@
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Persistent {@link UTXOStore}: a hash array mapped trie where {@link #copy} is O(1) and the copy
+ * shares all nodes with the original. A mutation copies only the nodes on the path to the changed
+ * entry, O(log32 n) of them.
+ *
+ * Nodes record the store that created them. A store changes its own nodes in place and copies
+ * any other node before changing it; {@link #copy} gives up ownership on both sides, so nodes
+ * are never changed once shared. Not thread-safe, like {@link HashMapUTXOStore}.
+ */
+public class HamtUTXOStore implements UTXOStore {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /** identifies the nodes this store may change in place */
+    private Object edit = new Object();
+    private BitmapNode root;
+    private int size;
+
+    /** set by a put that added an entry or a remove that removed one */
+    private boolean sizeChanged;
+
+    public HamtUTXOStore() {
+        root = new BitmapNode(edit, 0, new Object[0]);
+    }
+
+    private HamtUTXOStore(BitmapNode root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    private static int hash(UTXO utxo) {
+        // murmur3 finalizer, the trie consumes the bits from the low end
+        int h = utxo.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return (Transaction.Output) root.get(utxo, hash(utxo), 0);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        if (output == null) {
+            throw new NullPointerException("output");
+        }
+        sizeChanged = false;
+        root = (BitmapNode) root.put(edit, utxo, hash(utxo), 0, output, this);
+        if (sizeChanged) {
+            size++;
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        sizeChanged = false;
+        Node node = root.remove(edit, utxo, hash(utxo), 0, this);
+        root = node != null ? (BitmapNode) node : new BitmapNode(edit, 0, new Object[0]);
+        if (sizeChanged) {
+            size--;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        root.forEach(action);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return new TrieSpliterator(root.array, 0, root.array.length / 2, size);
+    }
+
+    @Override
+    public UTXOStore copy() {
+        // from now on the current nodes are shared, neither store may change them in place
+        edit = new Object();
+        HamtUTXOStore copy = new HamtUTXOStore(root, size);
+        copy.edit = new Object();
+        return copy;
+    }
+
+    private abstract static class Node {
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        abstract Object get(UTXO key, int hash, int shift);
+
+        abstract Node put(Object edit, UTXO key, int hash, int shift, Object value, HamtUTXOStore store);
+
+        /** @return the node without {@code key}, or null if it is left empty */
+        abstract Node remove(Object edit, UTXO key, int hash, int shift, HamtUTXOStore store);
+
+        /** @return the only key of a node holding a single entry and no children, or null */
+        abstract UTXO singleKey();
+
+        abstract Object singleValue();
+
+        abstract void forEach(BiConsumer<UTXO, Transaction.Output> action);
+    }
+
+    /**
+     * 32-way branch on {@value #BITS} bits of the hash. Slot {@code i} of the present ones is the
+     * pair {@code array[2i], array[2i + 1]}: a key and its output, or null and a child node.
+     */
+    private static final class BitmapNode extends Node {
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private BitmapNode editable(Object edit) {
+            return this.edit == edit ? this : new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        @Override
+        Object get(UTXO key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).get(key, hash, shift + BITS);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        Node put(Object edit, UTXO key, int hash, int shift, Object value, HamtUTXOStore store) {
+            int bit = bit(hash, shift);
+            int i = 2 * index(bit);
+            if ((bitmap & bit) == 0) {
+                store.sizeChanged = true;
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = value;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                BitmapNode node = editable(edit);
+                node.array = grown;
+                node.bitmap |= bit;
+                return node;
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(edit, key, hash, shift + BITS, value, store);
+                return child == v ? this : set(edit, i, null, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : set(edit, i, k, value);
+            }
+            store.sizeChanged = true;
+            return set(edit, i, null, pair(edit, shift + BITS, (UTXO) k, v, key, hash, value));
+        }
+
+        private BitmapNode set(Object edit, int i, Object key, Object value) {
+            BitmapNode node = editable(edit);
+            node.array[i] = key;
+            node.array[i + 1] = value;
+            return node;
+        }
+
+        /** @return a node holding the two entries, whose hashes agree below {@code shift} */
+        private static Node pair(Object edit, int shift, UTXO key1, Object value1, UTXO key2, int hash2, Object value2) {
+            int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(edit, hash1, new Object[]{key1, value1, key2, value2});
+            }
+            int bit1 = bit(hash1, shift);
+            int bit2 = bit(hash2, shift);
+            if (bit1 == bit2) {
+                return new BitmapNode(edit, bit1,
+                        new Object[]{null, pair(edit, shift + BITS, key1, value1, key2, hash2, value2)});
+            }
+            // bit 31 is negative, compare the bits unsigned
+            Object[] array = Integer.compareUnsigned(bit1, bit2) < 0
+                    ? new Object[]{key1, value1, key2, value2}
+                    : new Object[]{key2, value2, key1, value1};
+            return new BitmapNode(edit, bit1 | bit2, array);
+        }
+
+        @Override
+        Node remove(Object edit, UTXO key, int hash, int shift, HamtUTXOStore store) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(edit, key, hash, shift + BITS, store);
+                if (child == v) {
+                    return this;
+                }
+                if (child == null) {
+                    return without(edit, bit, i);
+                }
+                if (child.singleKey() != null) {
+                    // pull a lone entry up instead of keeping a chain of one-entry nodes
+                    return set(edit, i, child.singleKey(), child.singleValue());
+                }
+                return set(edit, i, null, child);
+            }
+            if (!key.equals(k)) {
+                return this;
+            }
+            store.sizeChanged = true;
+            return without(edit, bit, i);
+        }
+
+        private Node without(Object edit, int bit, int i) {
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            BitmapNode node = editable(edit);
+            node.array = shrunk;
+            node.bitmap ^= bit;
+            return node;
+        }
+
+        @Override
+        UTXO singleKey() {
+            return array.length == 2 ? (UTXO) array[0] : null;
+        }
+
+        @Override
+        Object singleValue() {
+            return array[1];
+        }
+
+        @Override
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept((UTXO) array[i], (Transaction.Output) array[i + 1]);
+                }
+            }
+        }
+    }
+
+    /** Entries whose 32-bit hashes are all equal, as key/value pairs */
+    private static final class CollisionNode extends Node {
+        final int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int find(UTXO key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(UTXO key, int hash, int shift) {
+            int i = find(key);
+            return i >= 0 ? array[i + 1] : null;
+        }
+
+        @Override
+        Node put(Object edit, UTXO key, int hash, int shift, Object value, HamtUTXOStore store) {
+            if (hash != this.hash) {
+                // the new key only shares the hash bits consumed so far, branch above this node
+                BitmapNode branch = new BitmapNode(edit, BitmapNode.bit(this.hash, shift), new Object[]{null, this});
+                return branch.put(edit, key, hash, shift, value, store);
+            }
+            int i = find(key);
+            Object[] changed;
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                changed = array.clone();
+                changed[i + 1] = value;
+            } else {
+                store.sizeChanged = true;
+                changed = new Object[array.length + 2];
+                System.arraycopy(array, 0, changed, 0, array.length);
+                changed[array.length] = key;
+                changed[array.length + 1] = value;
+            }
+            if (this.edit == edit) {
+                array = changed;
+                return this;
+            }
+            return new CollisionNode(edit, hash, changed);
+        }
+
+        @Override
+        Node remove(Object edit, UTXO key, int hash, int shift, HamtUTXOStore store) {
+            int i = find(key);
+            if (i < 0) {
+                return this;
+            }
+            store.sizeChanged = true;
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (this.edit == edit) {
+                array = shrunk;
+                return this;
+            }
+            return new CollisionNode(edit, hash, shrunk);
+        }
+
+        @Override
+        UTXO singleKey() {
+            return array.length == 2 ? (UTXO) array[0] : null;
+        }
+
+        @Override
+        Object singleValue() {
+            return array[1];
+        }
+
+        @Override
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept((UTXO) array[i], (Transaction.Output) array[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Spliterator over the pairs {@code [next, end)} of a node, descending into the children as it
+     * reaches them. Splitting halves the pairs, or descends when only one child is left, so the
+     * parts never share a subtree.
+     */
+    private static final class TrieSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private final Object[] array;
+        private int next;
+        private final int end;
+        /** the child being traversed, before the pair {@code next} */
+        private TrieSpliterator current;
+        private long estimate;
+
+        TrieSpliterator(Object[] array, int next, int end, long estimate) {
+            this.array = array;
+            this.next = next;
+            this.end = end;
+            this.estimate = estimate;
+        }
+
+        private static TrieSpliterator of(Object node, long estimate) {
+            Object[] array = node instanceof BitmapNode ? ((BitmapNode) node).array : ((CollisionNode) node).array;
+            return new TrieSpliterator(array, 0, array.length / 2, estimate);
+        }
+
+        private static Map.Entry<UTXO, Transaction.Output> entry(Object key, Object value) {
+            return new AbstractMap.SimpleImmutableEntry<>((UTXO) key, (Transaction.Output) value);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            while (true) {
+                if (current != null) {
+                    if (current.tryAdvance(action)) {
+                        return true;
+                    }
+                    current = null;
+                }
+                if (next >= end) {
+                    return false;
+                }
+                Object key = array[2 * next];
+                Object value = array[2 * next + 1];
+                next++;
+                if (key == null) {
+                    current = of(value, estimate);
+                } else {
+                    action.accept(entry(key, value));
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            if (current != null) {
+                current.forEachRemaining(action);
+                current = null;
+            }
+            for (; next < end; next++) {
+                Object key = array[2 * next];
+                Object value = array[2 * next + 1];
+                if (key == null) {
+                    ((Node) value).forEach((k, v) -> action.accept(entry(k, v)));
+                } else {
+                    action.accept(entry(key, value));
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            if (current != null) {
+                if (next < end) {
+                    // hand off the child in progress, it precedes the pairs left here
+                    TrieSpliterator prefix = current;
+                    current = null;
+                    estimate -= estimate / 4;
+                    return prefix;
+                }
+                return current.trySplit();
+            }
+            if (end - next >= 2) {
+                int mid = (next + end) >>> 1;
+                estimate >>>= 1;
+                TrieSpliterator prefix = new TrieSpliterator(array, next, mid, estimate);
+                next = mid;
+                return prefix;
+            }
+            if (end - next == 1 && array[2 * next] == null) {
+                current = of(array[2 * next + 1], estimate);
+                next++;
+                return current.trySplit();
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return current != null && next >= end ? current.estimateSize() : estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+}
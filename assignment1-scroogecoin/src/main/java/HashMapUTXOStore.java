@@ -0,0 +1,58 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/** {@link UTXOStore} on a {@link HashMap}, the original backing of {@link UTXOPool} */
+public class HashMapUTXOStore implements UTXOStore {
+
+    private final HashMap<UTXO, Transaction.Output> map;
+
+    public HashMapUTXOStore() {
+        map = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashMapUTXOStore(HashMapUTXOStore other) {
+        map = new HashMap<UTXO, Transaction.Output>(other.map);
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return map.get(utxo);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return map.containsKey(utxo);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        map.put(utxo, output);
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        map.remove(utxo);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        map.forEach(action);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return map.entrySet().spliterator();
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new HashMapUTXOStore(this);
+    }
+}
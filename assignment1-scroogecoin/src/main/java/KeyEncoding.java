@@ -0,0 +1,60 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * An address as the {@link UTXOLog}, the {@link UTXOSnapshot} and the shard protocol write it:
+ * the {@link SignatureScheme#getCode code} of its scheme and its X.509 encoding. A key of no
+ * scheme can lock an output without ever signing for it, and a handler accepts such outputs, so
+ * it is written with code {@value #OTHER} and the name of its key algorithm instead.
+ */
+final class KeyEncoding {
+
+    /** the code of a key no {@link SignatureScheme} handles */
+    static final int OTHER = 0;
+
+    final int code;
+    /** the UTF-8 name of the key algorithm, null unless the code is {@link #OTHER} */
+    final byte[] algorithm;
+    final byte[] encoded;
+
+    private KeyEncoding(int code, byte[] algorithm, byte[] encoded) {
+        this.code = code;
+        this.algorithm = algorithm;
+        this.encoded = encoded;
+    }
+
+    /** @throws IllegalArgumentException if {@code key} has no X.509 encoding */
+    static KeyEncoding of(PublicKey key) {
+        SignatureScheme scheme = SignatureScheme.of(key);
+        byte[] encoded = key.getEncoded();
+        if (scheme != null && encoded != null) {
+            return new KeyEncoding(scheme.getCode(), null, encoded);
+        }
+        if (encoded == null || key.getAlgorithm() == null || !"X.509".equals(key.getFormat())) {
+            throw new IllegalArgumentException("Key has no X.509 encoding: " + key.getAlgorithm());
+        }
+        return new KeyEncoding(OTHER, key.getAlgorithm().getBytes(StandardCharsets.UTF_8), encoded);
+    }
+
+    /**
+     * @return the key written as {@code code}, {@code algorithm} and {@code encoded}, or null if
+     *         {@code code} is unknown
+     * @throws IllegalArgumentException if {@code encoded} is not a valid key of its kind or the
+     *         running JDK does not support the kind
+     */
+    static PublicKey decode(int code, byte[] algorithm, byte[] encoded) {
+        if (code != OTHER) {
+            SignatureScheme scheme = SignatureScheme.byCode(code);
+            return scheme == null ? null : scheme.decodeKey(encoded);
+        }
+        String keyAlgorithm = new String(algorithm, StandardCharsets.UTF_8);
+        try {
+            return KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot decode " + keyAlgorithm + " key", e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** A {@link UTXOShard} over a {@link UTXOStore} in this JVM, a {@link HamtUTXOStore} by default */
+public class LocalUTXOShard implements UTXOShard {
+
+    private final UTXOStore store;
+
+    public LocalUTXOShard() {
+        this(new HamtUTXOStore());
+    }
+
+    /** Creates a shard over {@code store}, which it takes ownership of */
+    public LocalUTXOShard(UTXOStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Transaction.Output[] get(UTXO[] utxos) {
+        return store.getAll(utxos);
+    }
+
+    @Override
+    public int apply(UTXO[] removed, UTXO[] added, Transaction.Output[] outputs) {
+        for (UTXO utxo : removed) {
+            store.remove(utxo);
+        }
+        for (int i = 0; i < added.length; i++) {
+            store.put(added[i], outputs[i]);
+        }
+        return store.size();
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public List<Map.Entry<UTXO, Transaction.Output>> entries() {
+        List<Map.Entry<UTXO, Transaction.Output>> entries = new ArrayList<>(store.size());
+        store.forEach((utxo, output) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(utxo, output)));
+        return entries;
+    }
+
+    @Override
+    public LocalUTXOShard copy() {
+        return new LocalUTXOShard(store.copy());
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,475 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link UTXOStore} for UTXO sets that do not fit in the heap: a linear-probing hash table of
+ * fixed-width records in a memory-mapped file, with an in-heap LRU cache of recently used outputs
+ * in front of it. Lookups, including the {@code contains}/{@code getTxOutput} pair of
+ * {@link TxHandler#isValidTx}, check the cache first and only touch the file on a miss.
+ *
+ * <pre>
+ * record (48 bytes): h0 | h1 | h2 | h3 | index:int | keyRef:int | value:long
+ * </pre>
+ *
+ * The layout follows {@link OpenAddressingUTXOStore}: the hash as four longs, addresses as ids
+ * into an in-heap table of the distinct keys (0 marks an empty record, 1 a null address), and
+ * deletion by backward shift. The table is split into segments of {@value #SEGMENT_RECORDS}
+ * records, each mapped from a file of its own, so it may grow past 2 GB. UTXOs whose hash is not
+ * 32 bytes long go to a small in-heap side map.
+ *
+ * {@link #copy} shares the segments copy-on-write: a copy costs O(segments) plus the in-heap key
+ * table, and the first write to a shared segment, by the copy or by the original, copies that
+ * segment alone. {@link #close} a copy once it is no longer needed, or the stores still sharing
+ * its segments copy them on their next write for nothing.
+ *
+ * Segment files are created in the given directory and unlinked as soon as they are mapped, so
+ * nothing is left on disk even for stores that are never closed; the space is reclaimed when the
+ * mappings are garbage collected. Where an open file cannot be deleted it goes on exit instead.
+ * The files hold no address keys, so they cannot be reopened on their own. Not thread-safe, but
+ * a store and its copies may be used on different threads.
+ */
+public class MappedUTXOStore implements UTXOStore, Closeable {
+
+    public static final int DEFAULT_CACHE_CAPACITY = 1 << 16;
+
+    static final int RECORD = 48;
+    static final int SEGMENT_RECORDS = 1 << 18;
+    private static final int SEGMENT_SHIFT = 18;
+    private static final int INDEX = 32;
+    private static final int KEY_REF = 36;
+    private static final int VALUE = 40;
+    private static final int EMPTY = 0;
+    private static final int NULL_KEY = 1;
+
+    private final Path directory;
+    private final int cacheCapacity;
+
+    /** the mapping of every segment, for reads */
+    private MappedByteBuffer[] segments;
+    /** the segment behind each mapping, shared with copies until one of them writes to it */
+    private Segment[] shares;
+    /** number of records minus one, the number of records is a power of two */
+    private long mask;
+    private int size;
+
+    private PublicKey[] keys;
+    private HashMap<PublicKey, Integer> keyIds;
+    private HashMap<UTXO, Transaction.Output> other;
+
+    private final LruCache cache;
+    private long hits;
+    private long misses;
+
+    /** Creates a store in the temporary-file directory with the default cache */
+    public MappedUTXOStore() {
+        this(Paths.get(System.getProperty("java.io.tmpdir")), 1024, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Creates a store with its files in {@code directory}, sized for {@code expectedSize} UTXOs and a
+     * cache of at most {@code cacheCapacity} outputs; 0 disables the cache
+     */
+    public MappedUTXOStore(Path directory, int expectedSize, final int cacheCapacity) {
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("cacheCapacity must not be negative: " + cacheCapacity);
+        }
+        this.directory = directory;
+        this.cacheCapacity = cacheCapacity;
+        cache = new LruCache(cacheCapacity);
+        keys = new PublicKey[8];
+        keyIds = new HashMap<PublicKey, Integer>();
+        other = new HashMap<UTXO, Transaction.Output>();
+        long records = Long.highestOneBit(Math.max(expectedSize * 4L / 3, 8) - 1) << 1;
+        map(records);
+    }
+
+    private MappedUTXOStore(MappedUTXOStore store) {
+        directory = store.directory;
+        cacheCapacity = store.cacheCapacity;
+        cache = new LruCache(cacheCapacity);
+        segments = store.segments.clone();
+        shares = store.shares.clone();
+        for (Segment segment : shares) {
+            segment.owners.incrementAndGet();
+        }
+        mask = store.mask;
+        size = store.size;
+        keys = store.keys.clone();
+        keyIds = new HashMap<PublicKey, Integer>(store.keyIds);
+        other = new HashMap<UTXO, Transaction.Output>(store.other);
+    }
+
+    /** A mapped file holding one segment of the table, and the number of stores sharing it */
+    private static final class Segment {
+        final MappedByteBuffer buffer;
+        final AtomicInteger owners = new AtomicInteger(1);
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /** Access-ordered map that evicts its least recently used entry beyond {@code capacity} */
+    private static final class LruCache extends LinkedHashMap<UTXO, Transaction.Output> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UTXO, Transaction.Output> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /** Maps a new zero-filled table of {@code records} records */
+    private void map(long records) {
+        int count = (int) ((records + SEGMENT_RECORDS - 1) >>> SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[count];
+        shares = new Segment[count];
+        for (int s = 0; s < count; s++) {
+            Segment segment = newSegment(Math.min(records - ((long) s << SEGMENT_SHIFT), SEGMENT_RECORDS) * RECORD);
+            shares[s] = segment;
+            segments[s] = segment.buffer;
+        }
+        mask = records - 1;
+    }
+
+    /** @return a segment mapped from a new zero-filled file of {@code bytes} bytes */
+    private Segment newSegment(long bytes) {
+        try {
+            Path file = Files.createTempFile(directory, "utxo", ".map");
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(bytes);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+            // the mapping stays valid after the file is closed and unlinked
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+            return new Segment(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Gives up this store's share of its segments; the pages are released once the buffers are collected */
+    private void unmap() {
+        for (Segment segment : shares) {
+            segment.owners.decrementAndGet();
+        }
+        segments = null;
+        shares = null;
+    }
+
+    private static int spread(int h) {
+        // murmur3 finalizer, the low bits pick the record
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private MappedByteBuffer segment(long record) {
+        return segments[(int) (record >>> SEGMENT_SHIFT)];
+    }
+
+    /** @return the segment holding {@code record}, first copied if other stores share it */
+    private MappedByteBuffer writableSegment(long record) {
+        int s = (int) (record >>> SEGMENT_SHIFT);
+        Segment shared = shares[s];
+        if (shared.owners.get() > 1) {
+            Segment own = newSegment(shared.buffer.capacity());
+            ByteBuffer from = shared.buffer.duplicate();
+            from.clear();
+            own.buffer.put(from);
+            own.buffer.clear();
+            shared.owners.decrementAndGet();
+            shares[s] = own;
+            segments[s] = own.buffer;
+        }
+        return segments[s];
+    }
+
+    private static int offset(long record) {
+        return (int) (record & (SEGMENT_RECORDS - 1)) * RECORD;
+    }
+
+    private boolean isEmpty(long record) {
+        return segment(record).getInt(offset(record) + KEY_REF) == EMPTY;
+    }
+
+    /** @return the record where the search for a UTXO with this {@link UTXO#hashCode} starts */
+    private long home(int hashCode) {
+        return (spread(hashCode) & 0xFFFFFFFFL) & mask;
+    }
+
+    /** @return the record where the search for the entry stored in {@code record} starts */
+    private long homeOfRecord(long record) {
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        long h0 = segment.getLong(offset);
+        // same as UTXO.hashCode()
+        return home((int) (h0 ^ (h0 >>> 32)) * 31 + segment.getInt(offset + INDEX));
+    }
+
+    /** @return the record holding {@code utxo}, or the empty record where it would go */
+    private long find(UTXO utxo) {
+        long h0 = utxo.hashWord(0);
+        long h1 = utxo.hashWord(1);
+        long h2 = utxo.hashWord(2);
+        long h3 = utxo.hashWord(3);
+        int index = utxo.getIndex();
+        for (long record = home(utxo.hashCode()); ; record = (record + 1) & mask) {
+            MappedByteBuffer segment = segment(record);
+            int offset = offset(record);
+            if (segment.getInt(offset + KEY_REF) == EMPTY) {
+                return record;
+            }
+            if (segment.getInt(offset + INDEX) == index && segment.getLong(offset) == h0
+                    && segment.getLong(offset + 8) == h1 && segment.getLong(offset + 16) == h2
+                    && segment.getLong(offset + 24) == h3) {
+                return record;
+            }
+        }
+    }
+
+    private Transaction.Output output(long record) {
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        int keyRef = segment.getInt(offset + KEY_REF);
+        PublicKey address = keyRef == NULL_KEY ? null : keys[keyRef - 2];
+        return Transaction.outputOfUnits(segment.getLong(offset + VALUE), address);
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        if (!utxo.hasInlineHash()) {
+            return other.get(utxo);
+        }
+        Transaction.Output output = cache.get(utxo);
+        if (output != null) {
+            hits++;
+            return output;
+        }
+        misses++;
+        long record = find(utxo);
+        if (isEmpty(record)) {
+            return null;
+        }
+        output = output(record);
+        if (cacheCapacity > 0) {
+            cache.put(utxo, output);
+        }
+        return output;
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        // a hit leaves the output in the cache for the getTxOutput that usually follows
+        return get(utxo) != null;
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        if (!utxo.hasInlineHash()) {
+            other.put(utxo, output);
+            return;
+        }
+        cache.remove(utxo);
+        long record = find(utxo);
+        if (isEmpty(record)) {
+            if (size + 1L > (mask + 1) * 3 / 4) {
+                grow();
+                record = find(utxo);
+            }
+            size++;
+        }
+        MappedByteBuffer segment = writableSegment(record);
+        int offset = offset(record);
+        segment.putLong(offset, utxo.hashWord(0));
+        segment.putLong(offset + 8, utxo.hashWord(1));
+        segment.putLong(offset + 16, utxo.hashWord(2));
+        segment.putLong(offset + 24, utxo.hashWord(3));
+        segment.putInt(offset + INDEX, utxo.getIndex());
+        segment.putInt(offset + KEY_REF, keyRef(output.address));
+        segment.putLong(offset + VALUE, output.value);
+    }
+
+    private int keyRef(PublicKey address) {
+        if (address == null) {
+            return NULL_KEY;
+        }
+        Integer id = keyIds.get(address);
+        if (id == null) {
+            id = keyIds.size();
+            if (id == keys.length) {
+                keys = Arrays.copyOf(keys, id * 2);
+            }
+            keys[id] = address;
+            keyIds.put(address, id);
+        }
+        return id + 2;
+    }
+
+    private void grow() {
+        MappedByteBuffer[] old = segments;
+        Segment[] oldShares = shares;
+        long oldRecords = mask + 1;
+        map(oldRecords * 2);
+        for (long from = 0; from < oldRecords; from++) {
+            MappedByteBuffer source = old[(int) (from >>> SEGMENT_SHIFT)];
+            int sourceOffset = offset(from);
+            if (source.getInt(sourceOffset + KEY_REF) == EMPTY) {
+                continue;
+            }
+            long h0 = source.getLong(sourceOffset);
+            long record = home((int) (h0 ^ (h0 >>> 32)) * 31 + source.getInt(sourceOffset + INDEX));
+            while (!isEmpty(record)) {
+                record = (record + 1) & mask;
+            }
+            copyRecord(source, sourceOffset, segment(record), offset(record));
+        }
+        for (Segment segment : oldShares) {
+            segment.owners.decrementAndGet();
+        }
+    }
+
+    private static void copyRecord(MappedByteBuffer from, int fromOffset, MappedByteBuffer to, int toOffset) {
+        for (int i = 0; i < RECORD; i += 8) {
+            to.putLong(toOffset + i, from.getLong(fromOffset + i));
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (!utxo.hasInlineHash()) {
+            other.remove(utxo);
+            return;
+        }
+        cache.remove(utxo);
+        long hole = find(utxo);
+        if (isEmpty(hole)) {
+            return;
+        }
+        size--;
+        // shift back every following entry of the run that may not stay behind the hole
+        for (long record = (hole + 1) & mask; !isEmpty(record); record = (record + 1) & mask) {
+            long home = homeOfRecord(record);
+            boolean reachable = hole <= record ? hole < home && home <= record : hole < home || home <= record;
+            if (!reachable) {
+                copyRecord(segment(record), offset(record), writableSegment(hole), offset(hole));
+                hole = record;
+            }
+        }
+        writableSegment(hole).putInt(offset(hole) + KEY_REF, EMPTY);
+    }
+
+    @Override
+    public int size() {
+        return size + other.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (long record = 0; record <= mask; record++) {
+            MappedByteBuffer segment = segment(record);
+            int offset = offset(record);
+            if (segment.getInt(offset + KEY_REF) != EMPTY) {
+                UTXO utxo = new UTXO(segment.getLong(offset), segment.getLong(offset + 8),
+                        segment.getLong(offset + 16), segment.getLong(offset + 24), segment.getInt(offset + INDEX));
+                action.accept(utxo, output(record));
+            }
+        }
+        other.forEach(action);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        Records records = new Records(0, mask + 1);
+        return other.isEmpty() ? records : SlotSpliterator.concat(records, other.entrySet().spliterator());
+    }
+
+    /** reads the records directly, bypassing the cache so a scan does not evict the hot entries */
+    private final class Records extends SlotSpliterator {
+        Records(long lo, long hi) {
+            super(lo, hi, false);
+        }
+
+        @Override
+        Map.Entry<UTXO, Transaction.Output> entry(long record) {
+            MappedByteBuffer segment = segment(record);
+            int offset = offset(record);
+            if (segment.getInt(offset + KEY_REF) == EMPTY) {
+                return null;
+            }
+            UTXO utxo = new UTXO(segment.getLong(offset), segment.getLong(offset + 8),
+                    segment.getLong(offset + 16), segment.getLong(offset + 24), segment.getInt(offset + INDEX));
+            return new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(utxo, output(record));
+        }
+
+        @Override
+        SlotSpliterator slice(long lo, long hi) {
+            return new Records(lo, hi);
+        }
+    }
+
+    /**
+     * @return a store with the same contents, sharing the segments with this one until either
+     *         writes to them; takes O(segments + keys)
+     */
+    @Override
+    public UTXOStore copy() {
+        return new MappedUTXOStore(this);
+    }
+
+    /** @return the number of lookups answered from the cache */
+    public long hits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that went to the file */
+    public long misses() {
+        return misses;
+    }
+
+    /** @return the number of bytes of file mapped for the table, shared segments included */
+    public long mappedBytes() {
+        return (mask + 1) * RECORD;
+    }
+
+    /** Gives up the segments, so the other stores sharing them need not copy them; the store must not be used afterwards */
+    @Override
+    public void close() {
+        cache.clear();
+        if (shares != null) {
+            unmap();
+        }
+    }
+}
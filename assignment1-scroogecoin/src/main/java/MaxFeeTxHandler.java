@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.*;
 
@@ -5,6 +8,15 @@ public class MaxFeeTxHandler {
 
     private UTXOPool unspentPool;
 
+    /** signature checks of the epoch being handled, verified up front in one parallel batch */
+    private EpochSignatures epochSignatures = EpochSignatures.NONE;
+
+    /** signatures proven valid in earlier epochs */
+    private final SignatureCache signatureCache = new SignatureCache(SignatureCache.DEFAULT_CAPACITY);
+
+    /** log every epoch is written to before it reaches the pool, or null */
+    private UTXOLog log;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -14,6 +26,15 @@ public class MaxFeeTxHandler {
         this.unspentPool = utxoPool != null ? new UTXOPool(utxoPool) : new UTXOPool();
     }
 
+    /**
+     * Creates a validator that reads {@code pool} in place instead of copying it, for the fee
+     * search, which only calls {@link #isValidTx}
+     */
+    MaxFeeTxHandler(UTXOPool pool, EpochSignatures epochSignatures) {
+        this.unspentPool = pool;
+        this.epochSignatures = epochSignatures;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool,
@@ -22,78 +43,138 @@ public class MaxFeeTxHandler {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * {@code tx} may be a {@link Transaction} or a {@link TransactionView} read from a buffer. Sums
+     * are exact; a sum that overflows a long makes {@code tx} invalid.
      */
-    public boolean isValidTx(Transaction tx) {
+    public boolean isValidTx(TransactionData tx) {
         boolean isValid = true;
         final Set<UTXO> usedUnspentOutputs = new HashSet<UTXO>();
-        double inputSum = 0;
+        long inputSum = 0;
 
-        int ind = 0;
-        for(Transaction.Input input : tx.getInputs()) {
+        for (int ind = 0; ind < tx.numInputs(); ind++) {
             // (1) all outputs claimed by {@code tx} are in the current UTXO pool
-            UTXO unspentOutput = new UTXO(input.prevTxHash, input.outputIndex);
-            isValid = isValid && this.unspentPool.contains(unspentOutput);
-            if (!isValid) {
+            UTXO unspentOutput = tx.getInputUTXO(ind);
+            Transaction.Output output = this.unspentPool.getTxOutput(unspentOutput);
+            if (output == null) {
                 return false;
             }
 
             //(2) the signatures on each input of {@code tx} are valid,
-            Transaction.Output output = this.unspentPool.getTxOutput(unspentOutput);
             PublicKey publicKey = output.address;
-            byte[] providedSignature = input.signature;
+            byte[] providedSignature = tx.getInputSignature(ind);
             if (publicKey == null || providedSignature == null) {
                 return false;
             }
-            byte[] signedMessage = tx.getRawDataToSign(ind++);
-            isValid = isValid && Crypto.verifySignature(publicKey, signedMessage, providedSignature);
+            isValid = isValid && isValidSignature(tx, ind, publicKey, providedSignature);
 
             //(3) no UTXO is claimed multiple times by {@code tx}
             isValid = isValid && !usedUnspentOutputs.contains(unspentOutput);
             usedUnspentOutputs.add(unspentOutput);
 
-            inputSum += output.value;
+            try {
+                inputSum = Math.addExact(inputSum, output.value);
+            } catch (ArithmeticException e) {
+                return false;
+            }
         }
         //(4) all of {@code tx}s output values are non-negative, and
-        double outputSum = 0;
-        for(Transaction.Output output : tx.getOutputs()) {
-            double outputValue = output.value;
-            isValid = isValid && !(outputValue < 0);
+        long outputSum = 0;
+        for (int ind = 0; ind < tx.numOutputs(); ind++) {
+            long outputValue = tx.getOutputValue(ind);
+            isValid = isValid && outputValue >= 0;
             outputSum += outputValue;
+            // both non-negative, so the sum wraps around to a negative number on overflow
+            isValid = isValid && outputSum >= 0;
         }
 
         //(5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-        isValid = isValid && !(inputSum < outputSum);
+        isValid = isValid && inputSum >= outputSum;
 
         return isValid;
     }
 
+    private boolean isValidSignature(TransactionData tx, int index, PublicKey publicKey, byte[] signature) {
+        Boolean verified = epochSignatures.lookup(tx, index, publicKey);
+        if (verified != null) {
+            return verified;
+        }
+        SignData message = tx.getSignData(index);
+        ByteBuffer cacheKey = signatureCache.keyOf(publicKey, message, signature);
+        if (signatureCache.isVerified(cacheKey)) {
+            return true;
+        }
+        if (Crypto.verifySignature(publicKey, message, signature)) {
+            signatureCache.markVerified(cacheKey);
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the cache of verified signatures, e.g. to report its hit and miss counters */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Makes every later epoch go to {@code log} before it changes the pool; null stops logging.
+     * Epochs whose append fails throw {@link UncheckedIOException} and leave the pool unchanged.
+     */
+    public void setLog(UTXOLog log) {
+        this.log = log;
+    }
+
+    /** @return a copy of the current pool, e.g. for {@link UTXOLog#checkpoint} */
+    public UTXOPool getUTXOPool() {
+        return new UTXOPool(unspentPool);
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * @throws ArithmeticException if the fees of the epoch add up past {@link Long#MAX_VALUE}; the
+     *         pool is left as it was
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         if (possibleTxs == null) {
             return new Transaction[0];
         }
         List<Transaction> approvedTransactions = new ArrayList<>();
-        TxGraph txGraph = TxGraph.createDAG(possibleTxs, unspentPool);
-        Transaction[] sortedTx = txGraph.getTopologicalSortedTx();
-
-        for (Transaction transaction : sortedTx) {
-            if (isValidTx(transaction)) {
-                for (Transaction.Input input : transaction.getInputs()) {
-                    final UTXO unspentOutput = new UTXO(input.prevTxHash, input.outputIndex);
-                    this.unspentPool.removeUTXO(unspentOutput);
-                }
-                //transaction.finalize();
-                byte[] hashTx = transaction.getHash();
-                int ind = 0;
-                for (Transaction.Output output : transaction.getOutputs()) {
-                    this.unspentPool.addUTXO(new UTXO(hashTx, ind++), output);
+        // apply the epoch to an overlay and commit it at the end, so a failed epoch leaves the pool as it was
+        UTXOPool basePool = this.unspentPool;
+        OverlayUTXOPool epochPool = new OverlayUTXOPool(basePool);
+        try {
+            // verify every signature of the epoch in one parallel batch, the loop below only does the cheap checks
+            epochSignatures = EpochSignatures.verify(possibleTxs, basePool, signatureCache);
+            TxGraph txGraph = TxGraph.createDAG(possibleTxs, basePool, epochSignatures);
+            Transaction[] sortedTx = txGraph.getTopologicalSortedTx();
+
+            this.unspentPool = epochPool;
+            for (Transaction transaction : sortedTx) {
+                if (isValidTx(transaction)) {
+                    for (Transaction.Input input : transaction.getInputs()) {
+                        final UTXO unspentOutput = new UTXO(input.prevTxHash, input.outputIndex);
+                        this.unspentPool.removeUTXO(unspentOutput);
+                    }
+                    //transaction.finalize();
+                    byte[] hashTx = transaction.getHash();
+                    int ind = 0;
+                    for (Transaction.Output output : transaction.getOutputs()) {
+                        this.unspentPool.addUTXO(new UTXO(hashTx, ind++), output);
+                    }
+                    approvedTransactions.add(transaction);
                 }
-                approvedTransactions.add(transaction);
             }
+            if (log != null) {
+                log.append(epochPool);
+            }
+            epochPool.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            this.unspentPool = basePool;
+            epochSignatures = EpochSignatures.NONE;
         }
 
         return approvedTransactions.toArray(new Transaction[approvedTransactions.size()]);
@@ -104,14 +185,15 @@ public class MaxFeeTxHandler {
         private Map<TxGraphKey, Set<TxGraphKey>> edgesMap;
         private Map<TxGraphKey, Transaction> newTxMap;
 
-        private Map<TxGraphKey, Double> feesCache;
+        private Map<TxGraphKey, Long> feesCache;
         private Map<TxGraphKey, Set<UTXO>> doubleSpendingMap;
         private Map<UTXO, TxGraphKey> doubleSpendDetector;
 
         private MaxFeeTxHandler innerTxValidator;
 
+        /** Creates an empty graph whose fee search reads {@code pool} through an overlay, without changing it */
         public TxGraph(UTXOPool pool) {
-            outputPool = new UTXOPool(pool);
+            outputPool = new OverlayUTXOPool(pool);
             edgesMap = new HashMap<>();
             newTxMap = new HashMap<>();
             doubleSpendingMap = new HashMap<>();
@@ -162,6 +244,10 @@ public class MaxFeeTxHandler {
         }
 
         public static TxGraph createDAG(Transaction[] transactions, UTXOPool pool) {
+            return createDAG(transactions, pool, EpochSignatures.NONE);
+        }
+
+        public static TxGraph createDAG(Transaction[] transactions, UTXOPool pool, EpochSignatures epochSignatures) {
             final TxGraph graph = new TxGraph(pool);
             for (Transaction transaction : transactions) {
                 graph.newTxMap.put(new TxGraphKey(transaction.getHash()), transaction);
@@ -169,7 +255,8 @@ public class MaxFeeTxHandler {
             for (Transaction transaction : transactions) {
                 graph.addEdge(transaction);
             }
-            graph.innerTxValidator = new MaxFeeTxHandler(graph.outputPool);
+            // the validator reads the overlay in place, the pool below is never copied
+            graph.innerTxValidator = new MaxFeeTxHandler(graph.outputPool, epochSignatures);
             return graph;
         }
 
@@ -190,16 +277,21 @@ public class MaxFeeTxHandler {
             return sorted.toArray(new Transaction[sorted.size()]);
         }
 
-        public double topologicalSort(TxGraphKey vertex, Set<TxGraphKey> visited, Stack<TxGraphKey> sorted) {
+        /**
+         * @return the fee of {@code vertex} and of the transactions it picks above it, in base units
+         * @throws ArithmeticException if the fees add up past {@link Long#MAX_VALUE}, like the sums
+         *         in {@link #calculateFee}
+         */
+        public long topologicalSort(TxGraphKey vertex, Set<TxGraphKey> visited, Stack<TxGraphKey> sorted) {
             if (visited.contains(vertex)) {
                 return feesCache.get(vertex);
             }
             visited.add(vertex);
             Set<TxGraphKey> childTxs = edgesMap.get(vertex);
-            double sumFee = 0.0;
+            long sumFee = 0;
             if (childTxs != null) {
-                double fee;
-                Map<TxGraphKey, Double> maxValue = new HashMap<>();
+                long fee;
+                Map<TxGraphKey, Long> maxValue = new HashMap<>();
                 for (TxGraphKey child : childTxs) {
                     fee = topologicalSort(child, visited, sorted);
                     if (!doubleSpendingMap.get(child).isEmpty()) {
@@ -211,11 +303,11 @@ public class MaxFeeTxHandler {
                             continue;
                         }
                         for (TxGraphKey key : maxValue.keySet()) {
-                            double max = fee;
+                            long max = fee;
                             Set<UTXO> otherUtxos = doubleSpendingMap.get(key);
                             if (checkMergedSets(utxos, otherUtxos)) {
                                 // if we found another double spender in the map
-                                double existingMax = maxValue.get(key);
+                                long existingMax = maxValue.get(key);
                                 if (max > existingMax) {
                                     maxValue.put(child, max);
                                     keyToRemove = key;
@@ -232,7 +324,7 @@ public class MaxFeeTxHandler {
                         }
                     } else {
                         // if child is not double spender sum up the fee
-                        sumFee += fee;
+                        sumFee = Math.addExact(sumFee, fee);
                     }
                 }
             }
@@ -240,7 +332,7 @@ public class MaxFeeTxHandler {
                 Transaction tx = newTxMap.get(vertex);
                 if (innerTxValidator.isValidTx(tx)) {
                     sorted.push(vertex);
-                    sumFee += calculateFee(vertex);
+                    sumFee = Math.addExact(sumFee, calculateFee(vertex));
                 } else {
                     sumFee = 0;
                 }
@@ -258,17 +350,22 @@ public class MaxFeeTxHandler {
             return false;
         }
 
-        public double calculateFee(TxGraphKey txGraphKey) {
+        /**
+         * @return the fee of the transaction in base units
+         * @throws ArithmeticException if a sum overflows, which {@link #isValidTx} rules out for
+         *         the transactions it accepts
+         */
+        public long calculateFee(TxGraphKey txGraphKey) {
             Transaction tx = newTxMap.get(txGraphKey);
-            double inp = 0.0;
-            double out = 0.0;
+            long inp = 0;
+            long out = 0;
             for (Transaction.Input input : tx.getInputs()) {
-                inp += outputPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).value;
+                inp = Math.addExact(inp, outputPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).value);
             }
             for (Transaction.Output output : tx.getOutputs()) {
-                out += output.value;
+                out = Math.addExact(out, output.value);
             }
-            double fee = (inp - out);
+            long fee = Math.subtractExact(inp, out);
             return fee;
         }
     }
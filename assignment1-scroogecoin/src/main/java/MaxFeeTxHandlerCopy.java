@@ -22,23 +22,23 @@ public class MaxFeeTxHandlerCopy {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * Sums are exact; a sum that overflows a long makes {@code tx} invalid.
      */
     public boolean isValidTx(Transaction tx) {
         boolean isValid = true;
         final Set<UTXO> usedUnspentOutputs = new HashSet<UTXO>();
-        double inputSum = 0;
+        long inputSum = 0;
 
         int ind = 0;
         for(Transaction.Input input : tx.getInputs()) {
             // (1) all outputs claimed by {@code tx} are in the current UTXO pool
             UTXO unspentOutput = new UTXO(input.prevTxHash, input.outputIndex);
-            isValid = isValid && this.unspentPool.contains(unspentOutput);
-            if (!isValid) {
+            Transaction.Output output = this.unspentPool.getTxOutput(unspentOutput);
+            if (output == null) {
                 return false;
             }
 
             //(2) the signatures on each input of {@code tx} are valid,
-            Transaction.Output output = this.unspentPool.getTxOutput(unspentOutput);
             PublicKey publicKey = output.address;
             byte[] providedSignature = input.signature;
             if (publicKey == null || providedSignature == null) {
@@ -51,18 +51,24 @@ public class MaxFeeTxHandlerCopy {
             isValid = isValid && !usedUnspentOutputs.contains(unspentOutput);
             usedUnspentOutputs.add(unspentOutput);
 
-            inputSum += output.value;
+            try {
+                inputSum = Math.addExact(inputSum, output.value);
+            } catch (ArithmeticException e) {
+                return false;
+            }
         }
         //(4) all of {@code tx}s output values are non-negative, and
-        double outputSum = 0;
+        long outputSum = 0;
         for(Transaction.Output output : tx.getOutputs()) {
-            double outputValue = output.value;
-            isValid = isValid && !(outputValue < 0);
+            long outputValue = output.value;
+            isValid = isValid && outputValue >= 0;
             outputSum += outputValue;
+            // both non-negative, so the sum wraps around to a negative number on overflow
+            isValid = isValid && outputSum >= 0;
         }
 
         //(5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-        isValid = isValid && !(inputSum < outputSum);
+        isValid = isValid && inputSum >= outputSum;
 
         return isValid;
     }
@@ -71,6 +77,9 @@ public class MaxFeeTxHandlerCopy {
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * @throws ArithmeticException if the fees of the epoch add up past {@link Long#MAX_VALUE}; the
+     *         pool is left as it was
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         if (possibleTxs == null) {
@@ -104,7 +113,7 @@ public class MaxFeeTxHandlerCopy {
         private Map<TxGraphKey, Set<TxGraphKey>> edgesMap;
         private Map<TxGraphKey, Transaction> newTxMap;
 
-        private Map<TxGraphKey, Double> feesCache;
+        private Map<TxGraphKey, Long> feesCache;
         private Map<TxGraphKey, Set<UTXO>> doubleSpendingMap;
         private Map<UTXO, TxGraphKey> doubleSpendDetector;
 
@@ -190,16 +199,21 @@ public class MaxFeeTxHandlerCopy {
             return sorted.toArray(new Transaction[sorted.size()]);
         }
 
-        public double topologicalSort(TxGraphKey vertex, Set<TxGraphKey> visited, Stack<TxGraphKey> sorted) {
+        /**
+         * @return the fee of {@code vertex} and of the transactions it picks above it, in base units
+         * @throws ArithmeticException if the fees add up past {@link Long#MAX_VALUE}, like the sums
+         *         in {@link #calculateFee}
+         */
+        public long topologicalSort(TxGraphKey vertex, Set<TxGraphKey> visited, Stack<TxGraphKey> sorted) {
             if (visited.contains(vertex)) {
                 return feesCache.get(vertex);
             }
             visited.add(vertex);
             Set<TxGraphKey> childTxs = edgesMap.get(vertex);
-            double sumFee = 0.0;
+            long sumFee = 0;
             if (childTxs != null) {
-                double fee;
-                Map<TxGraphKey, Double> maxValue = new HashMap<>();
+                long fee;
+                Map<TxGraphKey, Long> maxValue = new HashMap<>();
                 for (TxGraphKey child : childTxs) {
                     fee = topologicalSort(child, visited, sorted);
                     if (!doubleSpendingMap.get(child).isEmpty()) {
@@ -211,11 +225,11 @@ public class MaxFeeTxHandlerCopy {
                             continue;
                         }
                         for (TxGraphKey key : maxValue.keySet()) {
-                            double max = fee;
+                            long max = fee;
                             Set<UTXO> otherUtxos = doubleSpendingMap.get(key);
                             if (checkMergedSets(utxos, otherUtxos)) {
                                 // if we found another double spender in the map
-                                double existingMax = maxValue.get(key);
+                                long existingMax = maxValue.get(key);
                                 if (max > existingMax) {
                                     maxValue.put(child, max);
                                     keyToRemove = key;
@@ -232,7 +246,7 @@ public class MaxFeeTxHandlerCopy {
                         }
                     } else {
                         // if child is not double spender sum up the fee
-                        sumFee += fee;
+                        sumFee = Math.addExact(sumFee, fee);
                     }
                 }
             }
@@ -240,7 +254,7 @@ public class MaxFeeTxHandlerCopy {
                 Transaction tx = newTxMap.get(vertex);
                 if (innerTxValidator.isValidTx(tx)) {
                     sorted.push(vertex);
-                    sumFee += calculateFee(vertex);
+                    sumFee = Math.addExact(sumFee, calculateFee(vertex));
                 } else {
                     sumFee = 0;
                 }
@@ -258,17 +272,22 @@ public class MaxFeeTxHandlerCopy {
             return false;
         }
 
-        public double calculateFee(TxGraphKey txGraphKey) {
+        /**
+         * @return the fee of the transaction in base units
+         * @throws ArithmeticException if a sum overflows, which {@link #isValidTx} rules out for
+         *         the transactions it accepts
+         */
+        public long calculateFee(TxGraphKey txGraphKey) {
             Transaction tx = newTxMap.get(txGraphKey);
-            double inp = 0.0;
-            double out = 0.0;
+            long inp = 0;
+            long out = 0;
             for (Transaction.Input input : tx.getInputs()) {
-                inp += outputPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).value;
+                inp = Math.addExact(inp, outputPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).value);
             }
             for (Transaction.Output output : tx.getOutputs()) {
-                out += output.value;
+                out = Math.addExact(out, output.value);
             }
-            double fee = (inp - out);
+            long fee = Math.subtractExact(inp, out);
             return fee;
         }
     }
@@ -0,0 +1,271 @@
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link UTXOStore} for very large UTXO sets: a linear-probing hash table laid out in one flat
+ * {@code long[]}, so entries cost no objects and the garbage collector sees a single array.
+ *
+ * <pre>
+ * slot: h0 | h1 | h2 | h3 | index:int keyRef:int | value:long
+ * </pre>
+ *
+ * {@code h0..h3} are the 32-byte transaction hash as in {@link UTXO}. Addresses are referenced by
+ * compact ids into a table of the distinct keys seen, 1 standing for a null address and 0 marking
+ * an empty slot. Removal shifts the following entries back, so there are no tombstones.
+ *
+ * Outputs are not kept: {@link #get} builds a new {@link Transaction.Output} with the stored value
+ * and the first address object stored that is equal to the original one, so changing a returned
+ * output does not change the store. This also means the store does not keep the transactions of
+ * its outputs reachable.
+ * UTXOs whose hash is not 32 bytes long go to a small side map.
+ */
+public class OpenAddressingUTXOStore implements UTXOStore {
+
+    private static final int STRIDE = 6;
+    private static final int META = 4;
+    private static final int VALUE = 5;
+    private static final int EMPTY = 0;
+    private static final int NULL_KEY = 1;
+
+    private long[] table;
+    /** number of slots minus one, the number of slots is a power of two */
+    private int mask;
+    private int size;
+
+    private PublicKey[] keys;
+    private HashMap<PublicKey, Integer> keyIds;
+
+    /** UTXOs whose hash is not 32 bytes long */
+    private HashMap<UTXO, Transaction.Output> other;
+
+    public OpenAddressingUTXOStore() {
+        this(16);
+    }
+
+    /** Creates a store that holds {@code expectedSize} UTXOs without growing */
+    public OpenAddressingUTXOStore(int expectedSize) {
+        int slots = Integer.highestOneBit(Math.max(expectedSize * 4 / 3, 8) - 1) << 1;
+        table = new long[slots * STRIDE];
+        mask = slots - 1;
+        keys = new PublicKey[8];
+        keyIds = new HashMap<PublicKey, Integer>();
+        other = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private OpenAddressingUTXOStore(OpenAddressingUTXOStore store) {
+        table = store.table.clone();
+        mask = store.mask;
+        size = store.size;
+        keys = store.keys.clone();
+        keyIds = new HashMap<PublicKey, Integer>(store.keyIds);
+        other = new HashMap<UTXO, Transaction.Output>(store.other);
+    }
+
+    private static int spread(int h) {
+        // murmur3 finalizer, the low bits pick the slot
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the slot where the search for {@code utxo} starts */
+    private int home(UTXO utxo) {
+        return spread(utxo.hashCode()) & mask;
+    }
+
+    /** @return the slot where the search for the entry stored in {@code slot} starts */
+    private int homeOfSlot(int slot) {
+        int base = slot * STRIDE;
+        long h0 = table[base];
+        int index = (int) (table[base + META] >>> 32);
+        // same as UTXO.hashCode()
+        return spread((int) (h0 ^ (h0 >>> 32)) * 31 + index) & mask;
+    }
+
+    /** @return the slot holding {@code utxo}, or the empty slot where it would go */
+    private int find(UTXO utxo) {
+        long h0 = utxo.hashWord(0);
+        long h1 = utxo.hashWord(1);
+        long h2 = utxo.hashWord(2);
+        long h3 = utxo.hashWord(3);
+        int index = utxo.getIndex();
+        for (int slot = home(utxo); ; slot = (slot + 1) & mask) {
+            int base = slot * STRIDE;
+            long meta = table[base + META];
+            if ((int) meta == EMPTY) {
+                return slot;
+            }
+            if ((int) (meta >>> 32) == index && table[base] == h0 && table[base + 1] == h1
+                    && table[base + 2] == h2 && table[base + 3] == h3) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean isEmpty(int slot) {
+        return (int) table[slot * STRIDE + META] == EMPTY;
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        if (!utxo.hasInlineHash()) {
+            return other.get(utxo);
+        }
+        int slot = find(utxo);
+        if (isEmpty(slot)) {
+            return null;
+        }
+        return output(slot * STRIDE);
+    }
+
+    private Transaction.Output output(int base) {
+        int keyRef = (int) table[base + META];
+        PublicKey address = keyRef == NULL_KEY ? null : keys[keyRef - 2];
+        return Transaction.outputOfUnits(table[base + VALUE], address);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        if (!utxo.hasInlineHash()) {
+            return other.containsKey(utxo);
+        }
+        return !isEmpty(find(utxo));
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        if (!utxo.hasInlineHash()) {
+            other.put(utxo, output);
+            return;
+        }
+        int slot = find(utxo);
+        if (isEmpty(slot)) {
+            if ((size + 1) > (mask + 1) * 3L / 4) {
+                grow();
+                slot = find(utxo);
+            }
+            size++;
+        }
+        int base = slot * STRIDE;
+        table[base] = utxo.hashWord(0);
+        table[base + 1] = utxo.hashWord(1);
+        table[base + 2] = utxo.hashWord(2);
+        table[base + 3] = utxo.hashWord(3);
+        table[base + META] = ((long) utxo.getIndex() << 32) | (keyRef(output.address) & 0xFFFFFFFFL);
+        table[base + VALUE] = output.value;
+    }
+
+    private int keyRef(PublicKey address) {
+        if (address == null) {
+            return NULL_KEY;
+        }
+        Integer id = keyIds.get(address);
+        if (id == null) {
+            id = keyIds.size();
+            if (id == keys.length) {
+                keys = Arrays.copyOf(keys, id * 2);
+            }
+            keys[id] = address;
+            keyIds.put(address, id);
+        }
+        return id + 2;
+    }
+
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        mask = mask * 2 + 1;
+        for (int base = 0; base < old.length; base += STRIDE) {
+            if ((int) old[base + META] == EMPTY) {
+                continue;
+            }
+            long h0 = old[base];
+            int index = (int) (old[base + META] >>> 32);
+            int slot = spread((int) (h0 ^ (h0 >>> 32)) * 31 + index) & mask;
+            while (!isEmpty(slot)) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(old, base, table, slot * STRIDE, STRIDE);
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (!utxo.hasInlineHash()) {
+            other.remove(utxo);
+            return;
+        }
+        int hole = find(utxo);
+        if (isEmpty(hole)) {
+            return;
+        }
+        size--;
+        // shift back every following entry of the run that may not stay behind the hole
+        for (int slot = (hole + 1) & mask; !isEmpty(slot); slot = (slot + 1) & mask) {
+            int home = homeOfSlot(slot);
+            boolean reachable = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if (!reachable) {
+                System.arraycopy(table, slot * STRIDE, table, hole * STRIDE, STRIDE);
+                hole = slot;
+            }
+        }
+        table[hole * STRIDE + META] = 0;
+    }
+
+    @Override
+    public int size() {
+        return size + other.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (int base = 0; base < table.length; base += STRIDE) {
+            long meta = table[base + META];
+            if ((int) meta != EMPTY) {
+                UTXO utxo = new UTXO(table[base], table[base + 1], table[base + 2], table[base + 3], (int) (meta >>> 32));
+                action.accept(utxo, output(base));
+            }
+        }
+        other.forEach(action);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        Slots slots = new Slots(0, mask + 1L);
+        return other.isEmpty() ? slots : SlotSpliterator.concat(slots, other.entrySet().spliterator());
+    }
+
+    private final class Slots extends SlotSpliterator {
+        Slots(long lo, long hi) {
+            super(lo, hi, false);
+        }
+
+        @Override
+        Map.Entry<UTXO, Transaction.Output> entry(long slot) {
+            int base = (int) slot * STRIDE;
+            long meta = table[base + META];
+            if ((int) meta == EMPTY) {
+                return null;
+            }
+            UTXO utxo = new UTXO(table[base], table[base + 1], table[base + 2], table[base + 3], (int) (meta >>> 32));
+            return new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(utxo, output(base));
+        }
+
+        @Override
+        SlotSpliterator slice(long lo, long hi) {
+            return new Slots(lo, hi);
+        }
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new OpenAddressingUTXOStore(this);
+    }
+}
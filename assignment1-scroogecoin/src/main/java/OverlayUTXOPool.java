@@ -0,0 +1,169 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link UTXOPool} layered on top of a base pool: it reads through to the base and records its
+ * own adds and removes, which {@link #commit} applies to the base and {@link #discard} drops, both
+ * in O(changes). Creating one is O(1), so speculative work such as fee search or what-if
+ * validation never copies or touches the base.
+ *
+ * The base is not copied and must not change while the overlay is in use. Overlays may be
+ * stacked; committing one applies its changes to the overlay below. A copy of an overlay,
+ * {@code new UTXOPool(overlay)}, copies the base along with the changes, see
+ * {@link UTXOPool#UTXOPool(UTXOPool)}, so later changes to the base do not show through it.
+ */
+public class OverlayUTXOPool extends UTXOPool {
+
+    private final UTXOPool base;
+    private final Changes changes;
+
+    public OverlayUTXOPool(UTXOPool base) {
+        this(base, new Changes(base));
+    }
+
+    private OverlayUTXOPool(UTXOPool base, Changes changes) {
+        super(changes);
+        this.base = base;
+        this.changes = changes;
+    }
+
+    /** @return the pool this overlay reads through to */
+    public UTXOPool getBase() {
+        return base;
+    }
+
+    /** @return the number of UTXOs added or removed on top of the base */
+    public int numChanges() {
+        return changes.added.size() + changes.removed.size();
+    }
+
+    /** @return the UTXOs added on top of the base, with their outputs; not to be changed */
+    Map<UTXO, Transaction.Output> addedUTXOs() {
+        return changes.added;
+    }
+
+    /** @return the UTXOs of the base this overlay removed; not to be changed */
+    Set<UTXO> removedUTXOs() {
+        return changes.removed;
+    }
+
+    /**
+     * Applies the recorded changes to the base as one {@link UTXOPool#apply} batch, after which the
+     * overlay is empty again. If the base fails partway the changes are kept: the overlay shows the
+     * same UTXOs as before, and applying the changes again on a retry does no harm
+     */
+    public void commit() {
+        base.apply(changes.removed, changes.added);
+        changes.clear();
+    }
+
+    /** Drops the recorded changes, so the overlay shows the base as it is */
+    public void discard() {
+        changes.clear();
+        storeChanged();
+    }
+
+    /**
+     * Adds and removes recorded against a read-only base store. {@code added} holds the UTXOs put
+     * since the last commit, {@code removed} the base UTXOs hidden by a remove; they never overlap.
+     * Lookups that fall through go to the base pool, so they pass its {@link UTXOFilter}.
+     */
+    private static final class Changes implements UTXOStore {
+        private final UTXOPool pool;
+        private final UTXOStore base;
+        private final HashMap<UTXO, Transaction.Output> added;
+        private final HashSet<UTXO> removed;
+        private int size;
+
+        Changes(UTXOPool pool) {
+            this.pool = pool;
+            base = pool.store();
+            added = new HashMap<UTXO, Transaction.Output>();
+            removed = new HashSet<UTXO>();
+            size = base.size();
+        }
+
+        /** Copies {@code other} together with its base pool, so the copy is a snapshot of both */
+        private Changes(Changes other) {
+            pool = new UTXOPool(other.pool);
+            base = pool.store();
+            added = new HashMap<UTXO, Transaction.Output>(other.added);
+            removed = new HashSet<UTXO>(other.removed);
+            size = other.size;
+        }
+
+        void clear() {
+            added.clear();
+            removed.clear();
+            size = base.size();
+        }
+
+        @Override
+        public Transaction.Output get(UTXO utxo) {
+            Transaction.Output output = added.get(utxo);
+            if (output != null) {
+                return output;
+            }
+            return removed.contains(utxo) ? null : pool.getTxOutput(utxo);
+        }
+
+        @Override
+        public boolean contains(UTXO utxo) {
+            return get(utxo) != null;
+        }
+
+        @Override
+        public void put(UTXO utxo, Transaction.Output output) {
+            if (!contains(utxo)) {
+                size++;
+            }
+            removed.remove(utxo);
+            added.put(utxo, output);
+        }
+
+        @Override
+        public void remove(UTXO utxo) {
+            if (!contains(utxo)) {
+                return;
+            }
+            size--;
+            added.remove(utxo);
+            if (pool.contains(utxo)) {
+                removed.add(utxo);
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            base.forEach((utxo, output) -> {
+                if (!removed.contains(utxo) && !added.containsKey(utxo)) {
+                    action.accept(utxo, output);
+                }
+            });
+            added.forEach(action);
+        }
+
+        @Override
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+            return SlotSpliterator.concat(StreamSupport.stream(base.spliterator(), false)
+                            .filter(e -> !removed.contains(e.getKey()) && !added.containsKey(e.getKey()))
+                            .spliterator(),
+                    added.entrySet().spliterator());
+        }
+
+        @Override
+        public UTXOStore copy() {
+            return new Changes(this);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link UTXOShard} held by a {@link UTXOShardServer}, usually in another JVM, reached over a
+ * socket. Copies are made by the server and share the connection of the shard they came from.
+ *
+ * Closing the shard returned by {@link #connect} closes the connection, and the server drops it
+ * and all its copies; closing a copy only drops the copy. Not thread-safe, the calls of a shard
+ * and its copies must not overlap, which {@link ShardedUTXOStore} takes care of.
+ *
+ * A copy that becomes unreachable without being closed, such as the one behind a
+ * {@code new UTXOPool(pool)} that a {@link TxHandler} makes of a {@link ShardedUTXOPool}, is
+ * dropped on the server with the next call made over the connection, so the copies handlers take
+ * do not pile up there.
+ */
+public class RemoteUTXOShard implements UTXOShard {
+
+    private final ShardChannel channel;
+    private final int id;
+    private final boolean ownsChannel;
+    /** the copies made over the connection that are not closed, shared by all its shards */
+    private final Set<CopyReference> copies;
+    private final ReferenceQueue<RemoteUTXOShard> unreachable;
+    /** null for the shard of the connection */
+    private final CopyReference reference;
+
+    /** Remembers the id of a copy, to release it once the copy is unreachable */
+    private static final class CopyReference extends PhantomReference<RemoteUTXOShard> {
+        final int id;
+
+        CopyReference(RemoteUTXOShard copy, ReferenceQueue<RemoteUTXOShard> queue) {
+            super(copy, queue);
+            id = copy.id;
+        }
+    }
+
+    private RemoteUTXOShard(ShardChannel channel) {
+        this.channel = channel;
+        id = 0;
+        ownsChannel = true;
+        copies = new HashSet<>();
+        unreachable = new ReferenceQueue<>();
+        reference = null;
+    }
+
+    private RemoteUTXOShard(RemoteUTXOShard original, int id) {
+        channel = original.channel;
+        this.id = id;
+        ownsChannel = false;
+        copies = original.copies;
+        unreachable = original.unreachable;
+        reference = new CopyReference(this, unreachable);
+        copies.add(reference);
+    }
+
+    /** @return the empty shard the server at {@code address} creates for a new connection */
+    public static RemoteUTXOShard connect(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address);
+            return new RemoteUTXOShard(new ShardChannel(socket));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void request(byte op) throws IOException {
+        releaseUnreachable();
+        begin(op, id);
+    }
+
+    private void begin(byte op, int shard) throws IOException {
+        channel.begin();
+        channel.out.writeByte(op);
+        channel.out.writeInt(shard);
+    }
+
+    /** Releases the copies the garbage collector found unreachable since the last call */
+    private void releaseUnreachable() throws IOException {
+        for (Reference<? extends RemoteUTXOShard> r; (r = unreachable.poll()) != null; ) {
+            CopyReference copy = (CopyReference) r;
+            if (copies.remove(copy)) {
+                begin(ShardChannel.RELEASE, copy.id);
+                send();
+            }
+        }
+    }
+
+    private void send() throws IOException {
+        channel.flush();
+        channel.readStatus();
+    }
+
+    @Override
+    public Transaction.Output[] get(UTXO[] utxos) throws IOException {
+        request(ShardChannel.GET);
+        channel.writeUTXOs(utxos);
+        send();
+        Transaction.Output[] outputs = new Transaction.Output[utxos.length];
+        for (int i = 0; i < outputs.length; i++) {
+            if (channel.in.readBoolean()) {
+                outputs[i] = channel.readOutput();
+            }
+        }
+        return outputs;
+    }
+
+    @Override
+    public int apply(UTXO[] removed, UTXO[] added, Transaction.Output[] outputs) throws IOException {
+        request(ShardChannel.APPLY);
+        channel.writeUTXOs(removed);
+        channel.out.writeInt(added.length);
+        for (int i = 0; i < added.length; i++) {
+            channel.writeUTXO(added[i]);
+            channel.writeOutput(outputs[i]);
+        }
+        send();
+        return channel.in.readInt();
+    }
+
+    @Override
+    public int size() throws IOException {
+        request(ShardChannel.SIZE);
+        send();
+        return channel.in.readInt();
+    }
+
+    @Override
+    public List<Map.Entry<UTXO, Transaction.Output>> entries() throws IOException {
+        request(ShardChannel.ENTRIES);
+        send();
+        int count = channel.in.readInt();
+        List<Map.Entry<UTXO, Transaction.Output>> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UTXO utxo = channel.readUTXO();
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(utxo, channel.readOutput()));
+        }
+        return entries;
+    }
+
+    @Override
+    public UTXOShard copy() throws IOException {
+        request(ShardChannel.COPY);
+        send();
+        return new RemoteUTXOShard(this, channel.in.readInt());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel) {
+            channel.close();
+            return;
+        }
+        if (copies.remove(reference)) {
+            reference.clear();
+            request(ShardChannel.RELEASE);
+            send();
+        }
+    }
+}
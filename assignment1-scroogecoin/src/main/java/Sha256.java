@@ -0,0 +1,27 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** Thread-confined SHA-256 digests, so hashing on the hot path never goes through provider lookup */
+public class Sha256 {
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by any provider", e);
+        }
+    });
+
+    private Sha256() {
+    }
+
+    /**
+     * @return the calling thread's digest, reset and ready for use. It must not be shared with
+     *         other threads or held across calls that may hash as well
+     */
+    public static MessageDigest get() {
+        MessageDigest md = DIGESTS.get();
+        md.reset();
+        return md;
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One end of a connection between a {@link RemoteUTXOShard} and a {@link UTXOShardServer}. Every
+ * request names the shard it is for, since a connection carries a shard and all its copies:
+ * <pre>
+ * request:  op:byte | shard:int | body
+ * response: OK:byte | body, or ERROR:byte | message:UTF
+ * utxo:     -1:int | hash:long[4] | index:int     for 32-byte hashes
+ *           length:int | hash:byte[length] | index:int
+ * output:   value:long | keyRef:int               keyRef 0 is a null address, i is key i,
+ *                                                 -1 introduces the next key of the connection:
+ *           value:long | -1:int | scheme:byte | [algorithmLength:int | algorithm] | length:int
+ *           | X.509 encoding
+ * </pre>
+ * Keys are sent in full once per connection and direction, then by number, so a batch repeating
+ * a few addresses does not decode the same key over and over. They are written as
+ * {@link KeyEncoding} describes, like in the log and the snapshot.
+ *
+ * Messages are built in memory through {@link #out} and sent whole by {@link #flush}, so one that
+ * fails to encode, e.g. on an address without an X.509 encoding, is never partly sent and the
+ * connection stays in step. {@link #begin} drops whatever such a message left behind, including
+ * the keys it would have introduced.
+ */
+final class ShardChannel implements Closeable {
+
+    static final byte GET = 1;
+    static final byte APPLY = 2;
+    static final byte SIZE = 3;
+    static final byte ENTRIES = 4;
+    static final byte COPY = 5;
+    static final byte RELEASE = 6;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private final Socket socket;
+    final DataInputStream in;
+    /** the message being built */
+    private final ByteArrayOutputStream message = new ByteArrayOutputStream(1 << 16);
+    final DataOutputStream out = new DataOutputStream(message);
+    private final OutputStream socketOut;
+    private final Map<PublicKey, Integer> sentKeys = new HashMap<>();
+    /** keys the message being built introduces, numbered after {@link #sentKeys} */
+    private final Map<PublicKey, Integer> newKeys = new HashMap<>();
+    private final List<PublicKey> receivedKeys = new ArrayList<>();
+
+    ShardChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        socketOut = socket.getOutputStream();
+    }
+
+    /** Starts a new message, dropping what is left of one that failed to encode */
+    void begin() {
+        message.reset();
+        newKeys.clear();
+    }
+
+    /** Sends the message built since {@link #begin} */
+    void flush() throws IOException {
+        message.writeTo(socketOut);
+        socketOut.flush();
+        message.reset();
+        sentKeys.putAll(newKeys);
+        newKeys.clear();
+    }
+
+    void writeUTXO(UTXO utxo) throws IOException {
+        if (utxo.hasInlineHash()) {
+            out.writeInt(-1);
+            for (int i = 0; i < 4; i++) {
+                out.writeLong(utxo.hashWord(i));
+            }
+        } else {
+            byte[] hash = utxo.getTxHash();
+            out.writeInt(hash.length);
+            out.write(hash);
+        }
+        out.writeInt(utxo.getIndex());
+    }
+
+    UTXO readUTXO() throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return new UTXO(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt());
+        }
+        if (length < 0) {
+            throw new IOException("Corrupt UTXO in shard message");
+        }
+        byte[] hash = new byte[length];
+        in.readFully(hash);
+        return new UTXO(hash, in.readInt());
+    }
+
+    void writeUTXOs(UTXO[] utxos) throws IOException {
+        out.writeInt(utxos.length);
+        for (UTXO utxo : utxos) {
+            writeUTXO(utxo);
+        }
+    }
+
+    UTXO[] readUTXOs() throws IOException {
+        UTXO[] utxos = new UTXO[in.readInt()];
+        for (int i = 0; i < utxos.length; i++) {
+            utxos[i] = readUTXO();
+        }
+        return utxos;
+    }
+
+    void writeOutput(Transaction.Output output) throws IOException {
+        out.writeLong(output.value);
+        PublicKey key = output.address;
+        if (key == null) {
+            out.writeInt(0);
+            return;
+        }
+        Integer ref = sentKeys.get(key);
+        if (ref == null) {
+            ref = newKeys.get(key);
+        }
+        if (ref != null) {
+            out.writeInt(ref);
+            return;
+        }
+        KeyEncoding encoding = KeyEncoding.of(key);
+        out.writeInt(-1);
+        out.writeByte(encoding.code);
+        if (encoding.algorithm != null) {
+            out.writeInt(encoding.algorithm.length);
+            out.write(encoding.algorithm);
+        }
+        out.writeInt(encoding.encoded.length);
+        out.write(encoding.encoded);
+        newKeys.put(key, sentKeys.size() + newKeys.size() + 1);
+    }
+
+    Transaction.Output readOutput() throws IOException {
+        long value = in.readLong();
+        int ref = in.readInt();
+        if (ref == 0) {
+            return Transaction.outputOfUnits(value, null);
+        }
+        if (ref > 0 && ref <= receivedKeys.size()) {
+            return Transaction.outputOfUnits(value, receivedKeys.get(ref - 1));
+        }
+        if (ref != -1) {
+            throw new IOException("Unknown key in shard message: " + ref);
+        }
+        int code = in.readByte();
+        byte[] algorithm = code == KeyEncoding.OTHER ? readBytes() : null;
+        PublicKey key = KeyEncoding.decode(code, algorithm, readBytes());
+        if (key == null) {
+            throw new IOException("Corrupt key in shard message");
+        }
+        receivedKeys.add(key);
+        return Transaction.outputOfUnits(value, key);
+    }
+
+    private byte[] readBytes() throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt key in shard message");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /** Reads the status of a response, throwing the error it reports */
+    void readStatus() throws IOException {
+        byte status = in.readByte();
+        if (status == ERROR) {
+            throw new IOException("Shard server: " + in.readUTF());
+        }
+        if (status != OK) {
+            throw new IOException("Corrupt shard response");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link UTXOPool} partitioned by transaction hash prefix over independent shards, each on a
+ * thread of its own and either in this JVM ({@link #local}) or in a {@link UTXOShardServer}
+ * reached over a loopback socket ({@link #connect}), so the pool can outgrow one heap.
+ *
+ * It is a plain {@code UTXOPool} to its callers: {@link TxHandler} and the other handlers take
+ * it unchanged, and their copies of it stay sharded, since {@link ShardedUTXOStore} copies each
+ * shard where it lives. Such copies cannot be closed, a {@link RemoteUTXOShard} drops them on its
+ * server once they are unreachable. {@link #getTxOutputs} and {@link #apply}, which overlays
+ * commit through, make one call per shard, run on all shards at once. See
+ * {@link ShardedUTXOStore} for the rules on copies and threads.
+ */
+public class ShardedUTXOPool extends UTXOPool implements Closeable {
+
+    private final ShardedUTXOStore shards;
+
+    /** Creates a pool over {@code shards}, which it takes ownership of */
+    public ShardedUTXOPool(List<? extends UTXOShard> shards) throws IOException {
+        super(new ShardedUTXOStore(shards));
+        this.shards = (ShardedUTXOStore) store();
+    }
+
+    /** @return an empty pool of {@code count} shards in this JVM, each a {@link LocalUTXOShard} */
+    public static ShardedUTXOPool local(int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive: " + count);
+        }
+        List<UTXOShard> shards = new ArrayList<>(count);
+        for (int s = 0; s < count; s++) {
+            shards.add(new LocalUTXOShard());
+        }
+        return new ShardedUTXOPool(shards);
+    }
+
+    /**
+     * @return a pool with one shard on each of the {@link UTXOShardServer}s at {@code servers}, in
+     *         the order given; every client must list the servers in the same order
+     */
+    public static ShardedUTXOPool connect(List<InetSocketAddress> servers) throws IOException {
+        List<UTXOShard> shards = new ArrayList<>(servers.size());
+        try {
+            for (InetSocketAddress server : servers) {
+                shards.add(RemoteUTXOShard.connect(server));
+            }
+            return new ShardedUTXOPool(shards);
+        } catch (IOException | RuntimeException e) {
+            for (UTXOShard shard : shards) {
+                try {
+                    shard.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /** @return the number of shards */
+    public int getShardCount() {
+        return shards.getShardCount();
+    }
+
+    /** @return the number of the shard holding {@code utxo} */
+    public int shardOf(UTXO utxo) {
+        return shards.shardOf(utxo);
+    }
+
+    /** Closes the shards and stops their threads; copies of the pool can no longer be used */
+    @Override
+    public void close() throws IOException {
+        shards.close();
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * {@link UTXOStore} partitioned over {@link UTXOShard}s by the first 16 bits of the transaction
+ * hash, so each shard holds a contiguous range of hashes. Every shard runs on a thread of its
+ * own; {@link #getAll} and {@link #apply} split a batch by shard and run the parts at the same
+ * time, one call per shard. Single lookups and changes cost a call each, a round trip for a
+ * {@link RemoteUTXOShard}, so callers that can should batch.
+ *
+ * {@link #copy} copies every shard where it lives. Copies share the threads of the store they
+ * came from, which {@link #close} stops, so close copies before the original. Like
+ * {@link HashMapUTXOStore}, a store must not be used by several threads at once.
+ * {@link #forEach} and {@link #spliterator} fetch one shard at a time.
+ *
+ * Changes are checked before any shard sees them: an output whose address has no X.509
+ * encoding, which a {@link RemoteUTXOShard} could not send, is rejected in every store. If a
+ * shard fails partway through a batch anyway, e.g. on a lost connection, the other shards keep
+ * their part and the sizes are fetched again, so {@link #size} stays right.
+ */
+public class ShardedUTXOStore implements UTXOStore, Closeable {
+
+    private static final UTXO[] NO_UTXOS = new UTXO[0];
+    private static final Transaction.Output[] NO_OUTPUTS = new Transaction.Output[0];
+
+    private final UTXOShard[] shards;
+    /** the thread of each shard, shared with the copies */
+    private final ExecutorService[] threads;
+    /** true if this store started the threads and stops them on close */
+    private final boolean ownsThreads;
+    /** the size of each shard, as returned by the last change */
+    private final int[] sizes;
+
+    /** Creates a store over {@code shards}, which it takes ownership of, and starts their threads */
+    public ShardedUTXOStore(List<? extends UTXOShard> shards) throws IOException {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A sharded store needs at least one shard");
+        }
+        this.shards = shards.toArray(new UTXOShard[0]);
+        threads = new ExecutorService[this.shards.length];
+        for (int s = 0; s < threads.length; s++) {
+            String name = "utxo-shard-" + s;
+            threads[s] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        ownsThreads = true;
+        sizes = new int[this.shards.length];
+        try {
+            for (int s = 0; s < sizes.length; s++) {
+                sizes[s] = await(submit(s, UTXOShard::size));
+            }
+        } catch (UncheckedIOException e) {
+            close();
+            throw e.getCause();
+        }
+    }
+
+    private ShardedUTXOStore(UTXOShard[] shards, ExecutorService[] threads, int[] sizes) {
+        this.shards = shards;
+        this.threads = threads;
+        this.sizes = sizes;
+        ownsThreads = false;
+    }
+
+    /** @return the number of shards */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /** @return the number of the shard holding {@code utxo} */
+    public int shardOf(UTXO utxo) {
+        int prefix;
+        if (utxo.hasInlineHash()) {
+            prefix = (int) (utxo.hashWord(0) >>> 48);
+        } else {
+            byte[] hash = utxo.getTxHash();
+            prefix = (hash.length > 0 ? (hash[0] & 0xff) << 8 : 0) | (hash.length > 1 ? hash[1] & 0xff : 0);
+        }
+        return (int) ((long) prefix * shards.length >>> 16);
+    }
+
+    /** A call made on the thread of a shard */
+    private interface ShardCall<T> {
+        T call(UTXOShard shard) throws IOException;
+    }
+
+    private <T> Future<T> submit(int s, ShardCall<T> call) {
+        UTXOShard shard = shards[s];
+        return threads[s].submit(() -> call.call(shard));
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for a shard"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return await(submit(shardOf(utxo), shard -> shard.get(new UTXO[]{utxo})))[0];
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        if (output.address != null) {
+            KeyEncoding.of(output.address);
+        }
+        int s = shardOf(utxo);
+        try {
+            sizes[s] = await(submit(s, shard -> shard.apply(NO_UTXOS, new UTXO[]{utxo}, new Transaction.Output[]{output})));
+        } catch (RuntimeException e) {
+            refreshSize(s, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        int s = shardOf(utxo);
+        try {
+            sizes[s] = await(submit(s, shard -> shard.apply(new UTXO[]{utxo}, NO_UTXOS, NO_OUTPUTS)));
+        } catch (RuntimeException e) {
+            refreshSize(s, e);
+            throw e;
+        }
+    }
+
+    /** Fetches the size of shard {@code s} again after a change of it failed with {@code failure} */
+    private void refreshSize(int s, RuntimeException failure) {
+        try {
+            sizes[s] = await(submit(s, UTXOShard::size));
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    @Override
+    public Transaction.Output[] getAll(UTXO[] utxos) {
+        // positions[s] lists the indexes into utxos that shard s answers for
+        int[] route = new int[utxos.length];
+        int[] counts = new int[shards.length];
+        for (int i = 0; i < utxos.length; i++) {
+            route[i] = shardOf(utxos[i]);
+            counts[route[i]]++;
+        }
+        int[][] positions = new int[shards.length][];
+        for (int s = 0; s < shards.length; s++) {
+            positions[s] = new int[counts[s]];
+            counts[s] = 0;
+        }
+        for (int i = 0; i < utxos.length; i++) {
+            positions[route[i]][counts[route[i]]++] = i;
+        }
+
+        List<Future<Transaction.Output[]>> futures = new ArrayList<>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            if (positions[s].length == 0) {
+                futures.add(null);
+                continue;
+            }
+            UTXO[] part = new UTXO[positions[s].length];
+            for (int j = 0; j < part.length; j++) {
+                part[j] = utxos[positions[s][j]];
+            }
+            futures.add(submit(s, shard -> shard.get(part)));
+        }
+        Transaction.Output[] outputs = new Transaction.Output[utxos.length];
+        for (int s = 0; s < shards.length; s++) {
+            if (futures.get(s) != null) {
+                Transaction.Output[] found = await(futures.get(s));
+                for (int j = 0; j < found.length; j++) {
+                    outputs[positions[s][j]] = found[j];
+                }
+            }
+        }
+        return outputs;
+    }
+
+    @Override
+    public void apply(Collection<UTXO> removed, Map<UTXO, Transaction.Output> added) {
+        List<List<UTXO>> removedBy = new ArrayList<>(shards.length);
+        List<List<UTXO>> addedBy = new ArrayList<>(shards.length);
+        List<List<Transaction.Output>> outputsBy = new ArrayList<>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            removedBy.add(new ArrayList<>());
+            addedBy.add(new ArrayList<>());
+            outputsBy.add(new ArrayList<>());
+        }
+        for (UTXO utxo : removed) {
+            removedBy.get(shardOf(utxo)).add(utxo);
+        }
+        // key hash codes are computed from the encoding on every call, compare by identity
+        Set<PublicKey> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<UTXO, Transaction.Output> e : added.entrySet()) {
+            PublicKey address = e.getValue().address;
+            if (address != null && checked.add(address)) {
+                KeyEncoding.of(address);
+            }
+            int s = shardOf(e.getKey());
+            addedBy.get(s).add(e.getKey());
+            outputsBy.get(s).add(e.getValue());
+        }
+
+        List<Future<Integer>> futures = new ArrayList<>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            if (removedBy.get(s).isEmpty() && addedBy.get(s).isEmpty()) {
+                futures.add(null);
+                continue;
+            }
+            UTXO[] removedPart = removedBy.get(s).toArray(NO_UTXOS);
+            UTXO[] addedPart = addedBy.get(s).toArray(NO_UTXOS);
+            Transaction.Output[] outputsPart = outputsBy.get(s).toArray(NO_OUTPUTS);
+            futures.add(submit(s, shard -> shard.apply(removedPart, addedPart, outputsPart)));
+        }
+        // wait for every shard, so none is left running and the sizes of all that succeeded are kept
+        RuntimeException failure = null;
+        List<Integer> failed = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++) {
+            if (futures.get(s) == null) {
+                continue;
+            }
+            try {
+                sizes[s] = await(futures.get(s));
+            } catch (RuntimeException e) {
+                failed.add(s);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            for (int s : failed) {
+                refreshSize(s, failure);
+            }
+            throw failure;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int shardSize : sizes) {
+            size += shardSize;
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        // fetch the next shard while the caller goes through this one
+        Future<List<Map.Entry<UTXO, Transaction.Output>>> next = submit(0, UTXOShard::entries);
+        for (int s = 0; s < shards.length; s++) {
+            List<Map.Entry<UTXO, Transaction.Output>> entries = await(next);
+            if (s + 1 < shards.length) {
+                next = submit(s + 1, UTXOShard::entries);
+            }
+            for (Map.Entry<UTXO, Transaction.Output> e : entries) {
+                action.accept(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /** Splits by shards, each fetched when the traversal reaches it */
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return IntStream.range(0, shards.length).boxed()
+                .flatMap(s -> await(submit(s, UTXOShard::entries)).stream())
+                .spliterator();
+    }
+
+    @Override
+    public UTXOStore copy() {
+        List<Future<UTXOShard>> futures = new ArrayList<>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            futures.add(submit(s, UTXOShard::copy));
+        }
+        UTXOShard[] copies = new UTXOShard[shards.length];
+        for (int s = 0; s < shards.length; s++) {
+            copies[s] = await(futures.get(s));
+        }
+        return new ShardedUTXOStore(copies, threads, sizes.clone());
+    }
+
+    /** Closes the shards, and stops their threads if this store is not a copy */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (int s = 0; s < shards.length; s++) {
+            try {
+                await(submit(s, shard -> {
+                    shard.close();
+                    return null;
+                }));
+            } catch (UncheckedIOException e) {
+                failure = failure == null ? e.getCause() : failure;
+            }
+        }
+        if (ownsThreads) {
+            for (ExecutorService thread : threads) {
+                thread.shutdown();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
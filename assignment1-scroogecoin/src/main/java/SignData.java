@@ -0,0 +1,55 @@
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * The data one input of a transaction signs, {@link Transaction#getRawDataToSign}, kept as two
+ * parts: the input's own prefix and the outputs section. All inputs of a transaction share the same
+ * outputs section array, so it is encoded once per transaction instead of once per input, and the
+ * parts can be fed to a {@link Signature} or {@link MessageDigest} without being concatenated.
+ */
+public class SignData {
+
+    /** prevTxHash and outputIndex of the input */
+    private final byte[] prefix;
+    /** values and addresses of all outputs, shared between the inputs of a transaction */
+    private final byte[] outputs;
+
+    public SignData(byte[] prefix, byte[] outputs) {
+        this.prefix = prefix;
+        this.outputs = outputs;
+    }
+
+    public byte[] getPrefix() {
+        return prefix;
+    }
+
+    public byte[] getOutputs() {
+        return outputs;
+    }
+
+    /** @return the number of bytes signed */
+    public int length() {
+        return prefix.length + outputs.length;
+    }
+
+    /** @return the signed data as one array, equal to {@link Transaction#getRawDataToSign} */
+    public byte[] toByteArray() {
+        byte[] data = new byte[length()];
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        System.arraycopy(outputs, 0, data, prefix.length, outputs.length);
+        return data;
+    }
+
+    /** Feeds the signed data to {@code sig} */
+    public void update(Signature sig) throws SignatureException {
+        sig.update(prefix);
+        sig.update(outputs);
+    }
+
+    /** Feeds the signed data to {@code md} */
+    public void update(MessageDigest md) {
+        md.update(prefix);
+        md.update(outputs);
+    }
+}
@@ -0,0 +1,121 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of signature checks that already succeeded, so transactions re-proposed in a later
+ * epoch are not verified again. Entries are keyed by a SHA-256 digest of the encoded public key,
+ * the signed message and the signature; once {@code capacity} is reached the least recently used
+ * entry is evicted. Failed checks are never cached.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final Object PRESENT = new Object();
+
+    private final Map<ByteBuffer, Object> verified;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache holding at most {@code capacity} verified signatures */
+    public SignatureCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        verified = new LruMap(capacity);
+    }
+
+    /** Access-ordered map that evicts its least recently used entry beyond {@code capacity} */
+    private static final class LruMap extends LinkedHashMap<ByteBuffer, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Object> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /** @return the cache key of the check of {@code signature} over {@code message} under {@code pubKey} */
+    public ByteBuffer keyOf(PublicKey pubKey, byte[] message, byte[] signature) {
+        return keyOf(pubKey, message, null, signature);
+    }
+
+    /** @return the cache key of the check of {@code signature} over {@code signData} under {@code pubKey} */
+    public ByteBuffer keyOf(PublicKey pubKey, SignData signData, byte[] signature) {
+        return keyOf(pubKey, signData.getPrefix(), signData.getOutputs(), signature);
+    }
+
+    private ByteBuffer keyOf(PublicKey pubKey, byte[] message, byte[] messageTail, byte[] signature) {
+        MessageDigest md = Sha256.get();
+        // length prefixes keep the three fields from shifting into each other
+        update(md, pubKey.getEncoded());
+        int messageLength = message.length + (messageTail != null ? messageTail.length : 0);
+        updateLength(md, messageLength);
+        md.update(message);
+        if (messageTail != null) {
+            md.update(messageTail);
+        }
+        update(md, signature);
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    private static void update(MessageDigest md, byte[] field) {
+        updateLength(md, field != null ? field.length : -1);
+        if (field != null) {
+            md.update(field);
+        }
+    }
+
+    private static void updateLength(MessageDigest md, int length) {
+        md.update((byte) (length >>> 24));
+        md.update((byte) (length >>> 16));
+        md.update((byte) (length >>> 8));
+        md.update((byte) length);
+    }
+
+    /** @return true if the check identified by {@code key} already succeeded */
+    public boolean isVerified(ByteBuffer key) {
+        boolean found;
+        synchronized (verified) {
+            found = verified.get(key) != null;
+        }
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    /** Records that the check identified by {@code key} succeeded */
+    public void markVerified(ByteBuffer key) {
+        synchronized (verified) {
+            verified.put(key, PRESENT);
+        }
+    }
+
+    /** @return the number of lookups that found a verified signature */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** @return the number of lookups that had to fall back to verification */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** @return the number of verified signatures currently cached */
+    public int size() {
+        synchronized (verified) {
+            return verified.size();
+        }
+    }
+}
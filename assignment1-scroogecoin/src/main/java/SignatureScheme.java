@@ -0,0 +1,85 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Signature algorithms {@link Crypto} can verify. The scheme of an input is picked from the key
+ * type of the output it spends, so outputs locked to different kinds of keys can coexist.
+ */
+public enum SignatureScheme {
+
+    /** RSA keys, the original scheme */
+    RSA(1, "RSA", "SHA256withRSA"),
+    /** EC keys, normally on the P-256 curve */
+    ECDSA(2, "EC", "SHA256withECDSA"),
+    /** Ed25519 keys, needs a provider that ships it (JDK 15+) */
+    ED25519(3, "Ed25519", "Ed25519");
+
+    private final int code;
+    private final String keyAlgorithm;
+    private final String algorithm;
+
+    SignatureScheme(int code, String keyAlgorithm, String algorithm) {
+        this.code = code;
+        this.keyAlgorithm = keyAlgorithm;
+        this.algorithm = algorithm;
+    }
+
+    /** @return the stable number identifying the scheme in serialized data */
+    public int getCode() {
+        return code;
+    }
+
+    /** @return the JCA name of the key algorithm, as used by {@link java.security.KeyFactory} */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /** @return the JCA name of the signature algorithm */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the public key of this scheme whose X.509 encoding is {@code encoded}
+     * @throws IllegalArgumentException if {@code encoded} is not a valid key of this scheme or the
+     *         running JDK does not support the scheme
+     */
+    public PublicKey decodeKey(byte[] encoded) {
+        try {
+            return KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot decode " + keyAlgorithm + " key", e);
+        }
+    }
+
+    /** @return the scheme with the given {@link #getCode code}, or null if there is none */
+    public static SignatureScheme byCode(int code) {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.code == code) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    /** @return the scheme matching the type of {@code key}, or null if the key type is not supported */
+    public static SignatureScheme of(PublicKey key) {
+        String keyAlgorithm = key.getAlgorithm();
+        if (keyAlgorithm == null) {
+            return null;
+        }
+        switch (keyAlgorithm) {
+            case "RSA":
+                return RSA;
+            case "EC":
+                return ECDSA;
+            case "EdDSA":
+            case "Ed25519":
+                return ED25519;
+            default:
+                return null;
+        }
+    }
+}
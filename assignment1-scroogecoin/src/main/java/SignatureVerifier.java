@@ -0,0 +1,95 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Signature verification engine used behind {@link Crypto#verifySignature}. Each thread owns one
+ * instance holding pre-built {@link Signature} contexts, one per {@link SignatureScheme}, so
+ * provider lookup happens once per thread instead of once per input. When consecutive inputs are
+ * signed by the same key the {@code initVerify} state is reused as well.
+ */
+public class SignatureVerifier {
+
+    private static final ThreadLocal<SignatureVerifier> VERIFIERS =
+            ThreadLocal.withInitial(SignatureVerifier::new);
+
+    /** pre-built verification contexts, confined to the owning thread */
+    private final Map<SignatureScheme, Signature> contexts = new EnumMap<>(SignatureScheme.class);
+
+    /** context that was used last */
+    private Signature sig;
+
+    /** key {@code sig} is currently initialized with, or null if it must be re-initialized */
+    private PublicKey initializedKey;
+
+    private SignatureVerifier() {
+    }
+
+    /** @return the verifier confined to the calling thread */
+    public static SignatureVerifier get() {
+        return VERIFIERS.get();
+    }
+
+    /**
+     * @return true is {@code signature} is a valid digital signature of {@code message} under the
+     *         key {@code pubKey}, using the scheme that matches the key type; false if no
+     *         {@link SignatureScheme} handles the key type
+     */
+    public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        return verify(pubKey, message, null, signature);
+    }
+
+    /**
+     * @return true is {@code signature} is a valid digital signature of {@code signData} under the
+     *         key {@code pubKey}; the two parts are fed to the context without being concatenated
+     */
+    public boolean verify(PublicKey pubKey, SignData signData, byte[] signature) {
+        return verify(pubKey, signData.getPrefix(), signData.getOutputs(), signature);
+    }
+
+    private boolean verify(PublicKey pubKey, byte[] message, byte[] messageTail, byte[] signature) {
+        if (!isInitializedWith(pubKey)) {
+            initializedKey = null;
+            SignatureScheme scheme = SignatureScheme.of(pubKey);
+            if (scheme == null) {
+                // nobody can prove ownership of such an output
+                return false;
+            }
+            try {
+                sig = context(scheme);
+                sig.initVerify(pubKey);
+                initializedKey = pubKey;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                return false;
+            }
+        }
+        try {
+            sig.update(message);
+            if (messageTail != null)
+                sig.update(messageTail);
+            // verify() resets the context to its post-initVerify state, so the key stays usable
+            return sig.verify(signature);
+        } catch (SignatureException e) {
+            // the context may be left mid-update, force a re-init on the next call
+            initializedKey = null;
+        }
+        return false;
+    }
+
+    private Signature context(SignatureScheme scheme) throws NoSuchAlgorithmException {
+        Signature context = contexts.get(scheme);
+        if (context == null) {
+            context = Signature.getInstance(scheme.getAlgorithm());
+            contexts.put(scheme, context);
+        }
+        return context;
+    }
+
+    private boolean isInitializedWith(PublicKey pubKey) {
+        return initializedKey != null && (initializedKey == pubKey || initializedKey.equals(pubKey));
+    }
+}
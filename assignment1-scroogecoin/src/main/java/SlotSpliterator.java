@@ -0,0 +1,81 @@
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Spliterator over the slots {@code [lo, hi)} of a store laid out as a flat table, skipping the
+ * empty ones. Splitting halves the slot range, so the parts stay contiguous in memory.
+ */
+abstract class SlotSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+
+    /** below this many slots a range is not split further */
+    private static final long MIN_SPLIT = 1024;
+
+    private long lo;
+    private final long hi;
+    private final boolean dense;
+
+    /** {@code dense} tells that no slot is empty, so the size is exact */
+    SlotSpliterator(long lo, long hi, boolean dense) {
+        this.lo = lo;
+        this.hi = hi;
+        this.dense = dense;
+    }
+
+    /** @return the entry in {@code slot}, or null if the slot is empty */
+    abstract Map.Entry<UTXO, Transaction.Output> entry(long slot);
+
+    /** @return a spliterator over the slots {@code [lo, hi)} of the same table */
+    abstract SlotSpliterator slice(long lo, long hi);
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+        while (lo < hi) {
+            Map.Entry<UTXO, Transaction.Output> entry = entry(lo++);
+            if (entry != null) {
+                action.accept(entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+        for (; lo < hi; lo++) {
+            Map.Entry<UTXO, Transaction.Output> entry = entry(lo);
+            if (entry != null) {
+                action.accept(entry);
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+        if (hi - lo < 2 * MIN_SPLIT) {
+            return null;
+        }
+        long mid = (lo + hi) >>> 1;
+        SlotSpliterator prefix = slice(lo, mid);
+        lo = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return hi - lo;
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL | (dense ? SIZED | SUBSIZED : 0);
+    }
+
+    /** @return a spliterator over the entries of {@code first} followed by those of {@code second} */
+    static Spliterator<Map.Entry<UTXO, Transaction.Output>> concat(Spliterator<Map.Entry<UTXO, Transaction.Output>> first,
+                                                                   Spliterator<Map.Entry<UTXO, Transaction.Output>> second) {
+        return Stream.concat(StreamSupport.stream(first, false), StreamSupport.stream(second, false)).spliterator();
+    }
+}
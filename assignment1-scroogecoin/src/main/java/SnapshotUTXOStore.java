@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only {@link UTXOStore} over a {@link UTXOSnapshot} file, mapped into memory instead of
+ * loaded: opening it reads only the header, and a lookup is a binary search over the sorted
+ * fixed-width records, so the operating system pages in just the parts that are used. This is
+ * what {@link UTXOPool#mapFrom} puts under an {@link OverlayUTXOPool}, which takes the changes.
+ *
+ * {@link #put} and {@link #remove} throw {@link UnsupportedOperationException}. Since the store
+ * never changes, {@link #copy} returns the store itself.
+ */
+public class SnapshotUTXOStore implements UTXOStore {
+
+    /** records per mapping, keeps each mapping below 2 GB */
+    private static final int SEGMENT_RECORDS = 1 << 24;
+    private static final int SEGMENT_SHIFT = 24;
+
+    private final UTXOSnapshot.Header header;
+    private final MappedByteBuffer[] segments;
+
+    /** Maps the snapshot in {@code file}, which must not change while the store is in use */
+    public SnapshotUTXOStore(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = ByteBuffer.allocate(1 << 16);
+            in.limit(0);
+            header = UTXOSnapshot.readHeader(channel, in);
+            int count = (int) (((long) header.count + SEGMENT_RECORDS - 1) >>> SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[count];
+            for (int s = 0; s < count; s++) {
+                long first = (long) s << SEGMENT_SHIFT;
+                long bytes = Math.min(header.count - first, SEGMENT_RECORDS) * UTXOSnapshot.RECORD;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        header.recordsOffset + first * UTXOSnapshot.RECORD, bytes);
+            }
+        }
+    }
+
+    private MappedByteBuffer segment(int record) {
+        return segments[record >>> SEGMENT_SHIFT];
+    }
+
+    private static int offset(int record) {
+        return (record & (SEGMENT_RECORDS - 1)) * UTXOSnapshot.RECORD;
+    }
+
+    /** @return the number of the record of {@code utxo}, or -1 if there is none */
+    private int find(UTXO utxo) {
+        int lo = 0;
+        int hi = header.count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid, utxo);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** compares record {@code record} with {@code utxo} in {@link UTXO#HASH_ORDER} */
+    private int compare(int record, UTXO utxo) {
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        for (int i = 0; i < 4; i++) {
+            int c = Long.compareUnsigned(segment.getLong(offset + 8 * i), utxo.hashWord(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(segment.getInt(offset + 32), utxo.getIndex());
+    }
+
+    private Transaction.Output output(int record) {
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        return header.output(segment.getInt(offset + 36), segment.getLong(offset + 40));
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        if (!utxo.hasInlineHash()) {
+            return header.other.get(utxo);
+        }
+        int record = find(utxo);
+        return record < 0 ? null : output(record);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return utxo.hasInlineHash() ? find(utxo) >= 0 : header.other.containsKey(utxo);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        throw new UnsupportedOperationException("Snapshot stores are read-only");
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        throw new UnsupportedOperationException("Snapshot stores are read-only");
+    }
+
+    @Override
+    public int size() {
+        return header.count + header.other.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (int record = 0; record < header.count; record++) {
+            MappedByteBuffer segment = segment(record);
+            int offset = offset(record);
+            UTXO utxo = new UTXO(segment.getLong(offset), segment.getLong(offset + 8),
+                    segment.getLong(offset + 16), segment.getLong(offset + 24), segment.getInt(offset + 32));
+            action.accept(utxo, output(record));
+        }
+        header.other.forEach(action);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        Records records = new Records(0, header.count);
+        return header.other.isEmpty() ? records : SlotSpliterator.concat(records, header.other.entrySet().spliterator());
+    }
+
+    private final class Records extends SlotSpliterator {
+        Records(long lo, long hi) {
+            super(lo, hi, true);
+        }
+
+        @Override
+        Map.Entry<UTXO, Transaction.Output> entry(long slot) {
+            int record = (int) slot;
+            MappedByteBuffer segment = segment(record);
+            int offset = offset(record);
+            UTXO utxo = new UTXO(segment.getLong(offset), segment.getLong(offset + 8),
+                    segment.getLong(offset + 16), segment.getLong(offset + 24), segment.getInt(offset + 32));
+            return new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(utxo, output(record));
+        }
+
+        @Override
+        SlotSpliterator slice(long lo, long hi) {
+            return new Records(lo, hi);
+        }
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return this;
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Thread-safe {@link UTXOStore} for parallel validators: the UTXOs are split over a fixed number
+ * of {@link HashMap} stripes by the top bits of their hash, each guarded by its own read-write
+ * lock. Any number of threads may call {@link #get} and {@link #contains} while a committer puts
+ * and removes; readers only wait for a writer holding the same stripe, and never for each other.
+ *
+ * {@link #forEach}, {@link #spliterator}, {@link #size} and {@link #copy} visit the stripes one at
+ * a time, so they see each stripe consistently but not the whole store at a single point in time.
+ * The indexes and the filter of {@link UTXOPool} live outside the store and are not thread-safe,
+ * see {@link UTXOPool}.
+ */
+public class StripedUTXOStore implements UTXOStore {
+
+    /** default number of stripes, enough to keep 64 threads from meeting on one */
+    public static final int DEFAULT_STRIPES = 256;
+
+    private final Stripe[] stripes;
+    private final int shift;
+
+    public StripedUTXOStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /** Creates a store with {@code stripes} stripes, rounded up to a power of two */
+    public StripedUTXOStore(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+        int count = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe(new HashMap<UTXO, Transaction.Output>());
+        }
+        shift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    private StripedUTXOStore(StripedUTXOStore other) {
+        stripes = new Stripe[other.stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = other.stripes[i];
+            stripe.lock.readLock().lock();
+            try {
+                stripes[i] = new Stripe(new HashMap<UTXO, Transaction.Output>(stripe.map));
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        shift = other.shift;
+    }
+
+    private Stripe stripe(UTXO utxo) {
+        // HashMap buckets on the low bits, take the stripe from the high bits of the mixed hash
+        int h = utxo.hashCode() * 0x9E3779B9;
+        return shift == 32 ? stripes[0] : stripes[h >>> shift];
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        Stripe stripe = stripe(utxo);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.map.get(utxo);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        Stripe stripe = stripe(utxo);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.map.containsKey(utxo);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        Stripe stripe = stripe(utxo);
+        stripe.lock.writeLock().lock();
+        try {
+            stripe.map.put(utxo, output);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        Stripe stripe = stripe(utxo);
+        stripe.lock.writeLock().lock();
+        try {
+            stripe.map.remove(utxo);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                size += stripe.map.size();
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Calls {@code action} under the read lock of each stripe; it must not change this store */
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                stripe.map.forEach(action);
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /** Splits by stripes; each stripe is copied under its read lock when the traversal reaches it */
+    @Override
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return Arrays.stream(stripes).flatMap(stripe -> stripe.entries().stream()).spliterator();
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new StripedUTXOStore(this);
+    }
+
+    private static final class Stripe {
+        final HashMap<UTXO, Transaction.Output> map;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Stripe(HashMap<UTXO, Transaction.Output> map) {
+            this.map = map;
+        }
+
+        List<Map.Entry<UTXO, Transaction.Output>> entries() {
+            lock.readLock().lock();
+            try {
+                List<Map.Entry<UTXO, Transaction.Output>> entries = new ArrayList<>(map.size());
+                map.forEach((utxo, output) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(utxo, output)));
+                return entries;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -1,11 +1,12 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
-public class Transaction {
+public class Transaction implements TransactionData {
+
+    /** number of base units in one bitcoin; output values are whole numbers of base units */
+    public static final long COIN = 100_000_000L;
 
     public class Input {
         /** hash of the Transaction whose output is being used */
@@ -24,6 +25,7 @@ public class Transaction {
         }
 
         public void addSignature(byte[] sig) {
+            invalidateRawTx();
             if (sig == null)
                 signature = null;
             else
@@ -32,15 +34,37 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, 1/{@link #COIN} of a bitcoin */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        /**
+         * Creates an output of {@code v} base units. Private so that an int or long argument to
+         * {@code new Output} selects the bitcoin constructor; see {@link #outputOfUnits}
+         */
+        private Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /**
+         * Creates an output of {@code v} bitcoins, rounded to the nearest base unit.
+         *
+         * @throws IllegalArgumentException if {@code v} is not finite or out of the range of a long
+         *         amount of base units
+         */
+        public Output(double v, PublicKey addr) {
+            this(toBaseUnits(v), addr);
+        }
+    }
+
+    /** outer instance of the outputs built by {@link #outputOfUnits} */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    /** @return an output of {@code units} base units, 1/{@link #COIN} of a bitcoin each */
+    public static Output outputOfUnits(long units, PublicKey address) {
+        return OUTPUTS.new Output(units, address);
     }
 
     /** hash of the transaction, its unique id */
@@ -48,143 +72,268 @@ public class Transaction {
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
 
+    /*
+     * Encodings are computed lazily and kept until the transaction is changed through one of its
+     * methods. Assigning the public fields of an Input or Output directly bypasses this, and so
+     * does changing the lists returned by getInputs() and getOutputs().
+     */
+    /** cached result of getRawTx(), or null */
+    private byte[] rawTx;
+    /** cached sign data of every input, or null; does not depend on the signatures */
+    private SignData[] signData;
+    /** cached results of getRawDataToSign(i), or null; slots are filled on first use */
+    private byte[][] rawDataToSign;
+    /** true if {@code hash} was computed by finalize() from the current contents */
+    private boolean hashFinal;
+
+    /** encoding this transaction was parsed from, until its inputs and outputs are decoded */
+    private TxWireFormat.Layout wire;
+    /** true while {@code hash} still has to be read from {@code wire} */
+    private boolean wireHash;
+
     public Transaction() {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
     }
 
+    /**
+     * Copies {@code tx}. The inputs are copied as well, so signing an input of the copy changes
+     * the copy only and invalidates its own cached encodings.
+     */
     public Transaction(Transaction tx) {
+        tx.decode();
         hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.signature = in.signature != null ? in.signature.clone() : null;
+            inputs.add(copy);
+        }
         outputs = new ArrayList<Output>(tx.outputs);
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        decode();
+        invalidateSignData();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
+    /** Adds an output of {@code value} bitcoins, rounded to the nearest base unit */
     public void addOutput(double value, PublicKey address) {
+        addOutputUnits(toBaseUnits(value), address);
+    }
+
+    /**
+     * Adds an output of {@code value} base units. Not an overload of {@link #addOutput}, so
+     * existing calls with whole numbers of bitcoins keep their meaning
+     */
+    public void addOutputUnits(long value, PublicKey address) {
+        decode();
+        invalidateSignData();
         Output op = new Output(value, address);
         outputs.add(op);
     }
 
+    /**
+     * @return {@code coins} bitcoins in base units, rounded to the nearest one
+     * @throws IllegalArgumentException if the amount is not finite or does not fit a long
+     */
+    public static long toBaseUnits(double coins) {
+        double units = Math.rint(coins * COIN);
+        if (!(Math.abs(units) < 0x1p63)) {
+            throw new IllegalArgumentException("Amount out of range: " + coins);
+        }
+        return (long) units;
+    }
+
+    /** @return {@code units} base units in bitcoins, the double nearest to the exact amount */
+    public static double toCoins(long units) {
+        return units / (double) COIN;
+    }
+
     public void removeInput(int index) {
+        decode();
+        invalidateSignData();
         inputs.remove(index);
     }
 
     public void removeInput(UTXO ut) {
+        decode();
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
+                invalidateSignData();
                 inputs.remove(i);
                 return;
             }
         }
     }
 
+    /**
+     * @return the data input {@code index} signs: that input and all outputs. The array is cached
+     *         and must not be modified
+     */
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        decode();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
+        if (rawDataToSign == null)
+            rawDataToSign = new byte[inputs.size()][];
+        byte[] sigD = rawDataToSign[index];
+        if (sigD == null) {
+            sigD = getAllSignData()[index].toByteArray();
+            rawDataToSign[index] = sigD;
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
         return sigD;
     }
 
+    /**
+     * @return the data each input signs, in input order. Unlike calling {@link #getRawDataToSign}
+     *         per input this encodes the outputs only once for the whole transaction. The array is
+     *         cached and must not be modified
+     */
+    public SignData[] getAllSignData() {
+        decode();
+        if (signData == null)
+            signData = TransactionSerializer.signData(this);
+        return signData;
+    }
+
+    /** @return the data input {@code index} signs, or null if there is no such input */
+    public SignData getSignData(int index) {
+        SignData[] all = getAllSignData();
+        return index >= 0 && index < all.length ? all[index] : null;
+    }
+
     public void addSignature(byte[] signature, int index) {
+        decode();
+        invalidateRawTx();
         inputs.get(index).addSignature(signature);
     }
 
+    /** @return the raw encoding of the transaction. The array is cached and must not be modified */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
-
-        }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        decode();
+        if (rawTx == null)
+            rawTx = TransactionSerializer.rawTx(this);
+        return rawTx;
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        if (hashFinal)
+            return;
+        decode();
+        if (rawTx != null)
+            hash = Sha256.get().digest(rawTx);
+        else
+            hash = TransactionSerializer.hash(this);
+        hashFinal = true;
+    }
+
+    /** Finalizes all of {@code txs}, hashing them in parallel on the common fork-join pool */
+    public static void finalizeAll(Transaction[] txs) {
+        Arrays.stream(txs).parallel().forEach(Transaction::finalize);
     }
 
     public void setHash(byte[] h) {
         hash = h;
+        hashFinal = false;
+        wireHash = false;
+    }
+
+    /**
+     * Reads the transaction encoded in {@link TxWireFormat} at the position of {@code in} and
+     * advances past it. The encoding is only scanned and validated here; the hash, inputs and
+     * outputs are copied out of {@code in} when they are first accessed, so its contents must not
+     * change until then. The hash is not checked, {@link #finalize} computes it again.
+     *
+     * @throws IllegalArgumentException if {@code in} does not hold a complete, well-formed
+     *         transaction
+     */
+    public static Transaction parse(ByteBuffer in) {
+        return parse(in, false);
+    }
+
+    /**
+     * Reads a transaction like {@link #parse(ByteBuffer)}, checking its hash against its contents
+     * if {@code verifyHash} is set, in which case {@link #finalize} keeps it.
+     *
+     * @throws IllegalArgumentException if {@code in} does not hold a complete, well-formed
+     *         transaction, or the hash is checked and does not match
+     */
+    public static Transaction parse(ByteBuffer in, boolean verifyHash) {
+        return fromWire(TxWireFormat.read(in, verifyHash));
+    }
+
+    /** @return a transaction decoded from {@code layout} on first access */
+    static Transaction fromWire(TxWireFormat.Layout layout) {
+        Transaction tx = new Transaction();
+        tx.wire = layout;
+        tx.wireHash = true;
+        tx.inputs = null;
+        tx.outputs = null;
+        return tx;
+    }
+
+    /** Copies the inputs and outputs of a parsed transaction out of its encoding */
+    private void decode() {
+        if (wire == null)
+            return;
+        getHash();
+        ArrayList<Input> decodedInputs = new ArrayList<Input>(wire.numInputs());
+        for (int i = 0; i < wire.numInputs(); i++) {
+            Input in = new Input(null, wire.outputIndex(i));
+            in.prevTxHash = wire.prevTxHash(i);
+            in.signature = wire.signature(i);
+            decodedInputs.add(in);
+        }
+        ArrayList<Output> decodedOutputs = new ArrayList<Output>(wire.numOutputs());
+        for (int i = 0; i < wire.numOutputs(); i++) {
+            decodedOutputs.add(new Output(wire.value(i), wire.address(i)));
+        }
+        inputs = decodedInputs;
+        outputs = decodedOutputs;
+        wire = null;
+    }
+
+    /** Drops every cached encoding, the inputs or outputs changed */
+    private void invalidateSignData() {
+        signData = null;
+        rawDataToSign = null;
+        invalidateRawTx();
+    }
+
+    /** Drops the cached encodings that include the signatures */
+    private void invalidateRawTx() {
+        rawTx = null;
+        hashFinal = false;
     }
 
     public byte[] getHash() {
+        if (wireHash) {
+            // a hash checked against the contents when the frame was read can be kept by finalize()
+            hash = wire.hash();
+            hashFinal = hash != null && wire.isHashVerified();
+            wireHash = false;
+        }
         return hash;
     }
 
     public ArrayList<Input> getInputs() {
+        decode();
         return inputs;
     }
 
     public ArrayList<Output> getOutputs() {
+        decode();
         return outputs;
     }
 
     public Input getInput(int index) {
+        decode();
         if (index < inputs.size()) {
             return inputs.get(index);
         }
@@ -192,17 +341,38 @@ public class Transaction {
     }
 
     public Output getOutput(int index) {
+        decode();
         if (index < outputs.size()) {
             return outputs.get(index);
         }
         return null;
     }
 
+    @Override
+    public UTXO getInputUTXO(int index) {
+        Input in = getInputs().get(index);
+        return new UTXO(in.prevTxHash, in.outputIndex);
+    }
+
+    @Override
+    public byte[] getInputSignature(int index) {
+        return getInputs().get(index).signature;
+    }
+
+    @Override
+    public long getOutputValue(int index) {
+        return getOutputs().get(index).value;
+    }
+
     public int numInputs() {
+        if (wire != null)
+            return wire.numInputs();
         return inputs.size();
     }
 
     public int numOutputs() {
+        if (wire != null)
+            return wire.numOutputs();
         return outputs.size();
     }
 }
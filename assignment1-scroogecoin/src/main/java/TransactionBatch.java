@@ -0,0 +1,215 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Struct-of-arrays copy of the fields of one epoch's transactions that {@link TxHandler} checks,
+ * built once with {@link #of} and consumed by {@link TxHandler#handleTxs(TransactionBatch)}.
+ *
+ * Inputs and outputs of all transactions are stored back to back in primitive arrays, with
+ * {@code inputStart}/{@code outputStart} giving the slice of transaction {@code i} as
+ * {@code [start[i], start[i + 1])}. Transaction hashes and output keys are replaced by small int
+ * ids: equal hashes share an id and so do identical key objects, so matching an input to the
+ * output it spends is an int comparison. Signatures and sign data are still read from the
+ * {@link Transaction} objects, which the batch keeps.
+ */
+public class TransactionBatch {
+
+    /** id of a null hash or address */
+    static final int NONE = -1;
+
+    final Transaction[] txs;
+
+    /** id of the hash of each transaction */
+    final int[] txHashId;
+    /** transaction with each hash id, or -1 if the hash is only referenced by inputs */
+    final int[] txOfHashId;
+    /** distinct hashes, by id */
+    final byte[][] hashes;
+
+    /** inputs of transaction {@code i} are {@code inputStart[i]} up to {@code inputStart[i + 1]} */
+    final int[] inputStart;
+    /** spent output of each input: prevTxHash id in the high and outputIndex in the low 32 bits */
+    final long[] inputOutpoint;
+
+    /** outputs of transaction {@code i} are {@code outputStart[i]} up to {@code outputStart[i + 1]} */
+    final int[] outputStart;
+    /** value of each output in base units */
+    final long[] outputValue;
+    /** id of the address of each output */
+    final int[] outputKey;
+    /** distinct address objects, by id */
+    final PublicKey[] keys;
+
+    private TransactionBatch(Transaction[] txs, int inputs, int outputs) {
+        this.txs = txs;
+        txHashId = new int[txs.length];
+        inputStart = new int[txs.length + 1];
+        inputOutpoint = new long[inputs];
+        outputStart = new int[txs.length + 1];
+        outputValue = new long[outputs];
+        outputKey = new int[outputs];
+
+        Map<ByteBuffer, Integer> hashIds = new HashMap<>();
+        Map<PublicKey, Integer> keyIds = new IdentityHashMap<>();
+        int input = 0;
+        int output = 0;
+        for (int i = 0; i < txs.length; i++) {
+            Transaction tx = txs[i];
+            txHashId[i] = idOf(hashIds, tx.getHash());
+            inputStart[i] = input;
+            for (Transaction.Input in : tx.getInputs()) {
+                inputOutpoint[input++] = outpoint(idOf(hashIds, in.prevTxHash), in.outputIndex);
+            }
+            outputStart[i] = output;
+            for (Transaction.Output op : tx.getOutputs()) {
+                outputValue[output] = op.value;
+                outputKey[output++] = op.address != null ? idOf(keyIds, op.address) : NONE;
+            }
+        }
+        inputStart[txs.length] = input;
+        outputStart[txs.length] = output;
+
+        hashes = new byte[hashIds.size()][];
+        for (Map.Entry<ByteBuffer, Integer> e : hashIds.entrySet()) {
+            hashes[e.getValue()] = e.getKey().array();
+        }
+        keys = new PublicKey[keyIds.size()];
+        for (Map.Entry<PublicKey, Integer> e : keyIds.entrySet()) {
+            keys[e.getValue()] = e.getKey();
+        }
+        txOfHashId = new int[hashes.length];
+        Arrays.fill(txOfHashId, NONE);
+        for (int i = 0; i < txs.length; i++) {
+            if (txHashId[i] != NONE) {
+                txOfHashId[txHashId[i]] = i;
+            }
+        }
+    }
+
+    /**
+     * @return the batch of {@code txs}. The transactions must not be changed while the batch is in
+     *         use
+     */
+    public static TransactionBatch of(Transaction[] txs) {
+        int inputs = 0;
+        int outputs = 0;
+        for (Transaction tx : txs) {
+            inputs += tx.numInputs();
+            outputs += tx.numOutputs();
+        }
+        return new TransactionBatch(txs.clone(), inputs, outputs);
+    }
+
+    private static int idOf(Map<ByteBuffer, Integer> ids, byte[] hash) {
+        if (hash == null) {
+            return NONE;
+        }
+        return idOf(ids, ByteBuffer.wrap(hash));
+    }
+
+    private static <K> int idOf(Map<K, Integer> ids, K key) {
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = ids.size();
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    static long outpoint(int hashId, int outputIndex) {
+        return ((long) hashId << 32) | (outputIndex & 0xFFFFFFFFL);
+    }
+
+    static int outpointHashId(long outpoint) {
+        return (int) (outpoint >> 32);
+    }
+
+    static int outpointIndex(long outpoint) {
+        return (int) outpoint;
+    }
+
+    /** @return the number of transactions in the batch */
+    public int size() {
+        return txs.length;
+    }
+
+    /** @return the transactions of the batch, in their original order */
+    public Transaction[] getTransactions() {
+        return txs.clone();
+    }
+
+    public Transaction getTransaction(int index) {
+        return txs[index];
+    }
+
+    public int numInputs(int index) {
+        return inputStart[index + 1] - inputStart[index];
+    }
+
+    public int numOutputs(int index) {
+        return outputStart[index + 1] - outputStart[index];
+    }
+
+    /**
+     * @return the transactions in an order where every transaction comes after the transactions of
+     *         the batch it spends from: those spending from none first, in batch order, then the
+     *         others as their parents are reached. Transactions on a cycle can never be valid and
+     *         are left out
+     */
+    int[] topologicalOrder() {
+        int n = txs.length;
+        // children of transaction i are child[childStart[i]] up to child[childStart[i + 1]]
+        int[] parents = new int[n];
+        int[] childStart = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            for (int in = inputStart[i]; in < inputStart[i + 1]; in++) {
+                int parent = parentOf(in);
+                if (parent != NONE) {
+                    childStart[parent + 1]++;
+                    parents[i]++;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        int[] child = new int[childStart[n]];
+        int[] fill = Arrays.copyOf(childStart, n);
+        for (int i = 0; i < n; i++) {
+            for (int in = inputStart[i]; in < inputStart[i + 1]; in++) {
+                int parent = parentOf(in);
+                if (parent != NONE) {
+                    child[fill[parent]++] = i;
+                }
+            }
+        }
+
+        // Kahn's algorithm; the queue is the result array itself
+        int[] order = new int[n];
+        int tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (parents[i] == 0) {
+                order[tail++] = i;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int tx = order[head];
+            for (int c = childStart[tx]; c < childStart[tx + 1]; c++) {
+                if (--parents[child[c]] == 0) {
+                    order[tail++] = child[c];
+                }
+            }
+        }
+        return tail == n ? order : Arrays.copyOf(order, tail);
+    }
+
+    /** @return the transaction of the batch input {@code in} spends from, or -1 */
+    int parentOf(int in) {
+        int hashId = outpointHashId(inputOutpoint[in]);
+        return hashId != NONE ? txOfHashId[hashId] : NONE;
+    }
+}
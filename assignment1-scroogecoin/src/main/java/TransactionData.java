@@ -0,0 +1,31 @@
+/**
+ * Read access to the parts of a transaction validation needs, shared by {@link Transaction} and
+ * the buffer-backed {@link TransactionView} so {@link TxHandler#isValidTx} accepts either.
+ */
+public interface TransactionData {
+
+    /** @return the hash of the transaction, its unique id */
+    byte[] getHash();
+
+    int numInputs();
+
+    int numOutputs();
+
+    /** @return the unspent output input {@code index} claims */
+    UTXO getInputUTXO(int index);
+
+    /** @return the signature of input {@code index}, or null if it was not signed */
+    byte[] getInputSignature(int index);
+
+    /** @return the data input {@code index} signs: that input and all outputs */
+    byte[] getRawDataToSign(int index);
+
+    /**
+     * @return the data input {@code index} signs, split into its own part and the outputs part
+     *         shared by all inputs, so it can be verified and hashed without being concatenated
+     */
+    SignData getSignData(int index);
+
+    /** @return the value of output {@code index} in base units */
+    long getOutputValue(int index);
+}
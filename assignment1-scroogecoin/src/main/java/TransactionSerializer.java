@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Encodes {@link Transaction#getRawTx} and {@link Transaction#getRawDataToSign} without boxing.
+ * The exact encoded size is computed first and the fields are written straight into a single
+ * {@code byte[]} or a caller-supplied {@link ByteBuffer}. The layout is the original one, byte for
+ * byte: all numbers are big-endian and nothing is length-prefixed. Values are written as bitcoins in
+ * a double ({@link Transaction#toCoins}), as they were before amounts became base units, so hashes
+ * and signatures stay the same.
+ *
+ * <pre>
+ * raw tx:    (prevTxHash | outputIndex:int | signature)* (value:double | address)*
+ * sign data:  prevTxHash | outputIndex:int               (value:double | address)*
+ * </pre>
+ *
+ * The outputs part of the sign data is the same for every input of a transaction, see
+ * {@link #signData(Transaction)} to encode it once for all of them.
+ */
+public class TransactionSerializer {
+
+    private static final int INDEX_SIZE = Integer.SIZE / 8;
+    private static final int VALUE_SIZE = Double.SIZE / 8;
+
+    private TransactionSerializer() {
+    }
+
+    /** @return the raw encoding of {@code tx}, inputs including their signatures followed by the outputs */
+    public static byte[] rawTx(Transaction tx) {
+        byte[][] addresses = encodeAddresses(tx.getOutputs());
+        byte[] raw = new byte[rawTxSize(tx.getInputs(), addresses)];
+        writeRawTx(tx.getInputs(), tx.getOutputs(), addresses, ByteBuffer.wrap(raw));
+        return raw;
+    }
+
+    /**
+     * Writes the raw encoding of {@code tx} to {@code out}, starting at its current position.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} has less than {@link #rawTxSize}
+     *         bytes remaining
+     */
+    public static void writeRawTx(Transaction tx, ByteBuffer out) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN);
+        writeRawTx(tx.getInputs(), tx.getOutputs(), encodeAddresses(tx.getOutputs()), out);
+        out.order(order);
+    }
+
+    /** @return the number of bytes {@link #rawTx} produces for {@code tx} */
+    public static int rawTxSize(Transaction tx) {
+        return rawTxSize(tx.getInputs(), encodeAddresses(tx.getOutputs()));
+    }
+
+    /** @return the data input {@code index} of {@code tx} signs: that input and all outputs */
+    public static byte[] rawDataToSign(Transaction tx, int index) {
+        Transaction.Input in = tx.getInputs().get(index);
+        byte[][] addresses = encodeAddresses(tx.getOutputs());
+        byte[] sigData = new byte[inputSize(in, false) + outputsSize(addresses)];
+        writeRawDataToSign(in, tx.getOutputs(), addresses, ByteBuffer.wrap(sigData));
+        return sigData;
+    }
+
+    /**
+     * Writes the data input {@code index} of {@code tx} signs to {@code out}, starting at its
+     * current position.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} has less than
+     *         {@link #rawDataToSignSize} bytes remaining
+     */
+    public static void writeRawDataToSign(Transaction tx, int index, ByteBuffer out) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN);
+        writeRawDataToSign(tx.getInputs().get(index), tx.getOutputs(), encodeAddresses(tx.getOutputs()), out);
+        out.order(order);
+    }
+
+    /** @return the number of bytes {@link #rawDataToSign} produces for input {@code index} of {@code tx} */
+    public static int rawDataToSignSize(Transaction tx, int index) {
+        return inputSize(tx.getInputs().get(index), false) + outputsSize(encodeAddresses(tx.getOutputs()));
+    }
+
+    /**
+     * @return the SHA-256 hash of the raw encoding of {@code tx}. Fields are streamed into the
+     *         calling thread's digest one by one, the raw encoding itself is never materialized
+     */
+    public static byte[] hash(Transaction tx) {
+        MessageDigest md = Sha256.get();
+        byte[] scratch = new byte[VALUE_SIZE];
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            md.update(putInt(scratch, in.outputIndex), 0, INDEX_SIZE);
+            if (in.signature != null)
+                md.update(in.signature);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            md.update(putLong(scratch, Double.doubleToRawLongBits(Transaction.toCoins(op.value))), 0, VALUE_SIZE);
+            md.update(op.address.getEncoded());
+        }
+        return md.digest();
+    }
+
+    private static byte[] putInt(byte[] b, int v) {
+        b[0] = (byte) (v >>> 24);
+        b[1] = (byte) (v >>> 16);
+        b[2] = (byte) (v >>> 8);
+        b[3] = (byte) v;
+        return b;
+    }
+
+    private static byte[] putLong(byte[] b, long v) {
+        putInt(b, (int) (v >>> 32));
+        b[4] = (byte) (v >>> 24);
+        b[5] = (byte) (v >>> 16);
+        b[6] = (byte) (v >>> 8);
+        b[7] = (byte) v;
+        return b;
+    }
+
+    /**
+     * @return the sign data of every input of {@code tx}; the outputs section is encoded once and
+     *         shared by all of them
+     */
+    public static SignData[] signData(Transaction tx) {
+        byte[] outputs = outputsSection(tx.getOutputs());
+        SignData[] signData = new SignData[tx.numInputs()];
+        for (int i = 0; i < signData.length; i++) {
+            signData[i] = new SignData(inputSection(tx.getInputs().get(i)), outputs);
+        }
+        return signData;
+    }
+
+    /** @return the encoded values and addresses of {@code outputs}, the part all inputs sign */
+    public static byte[] outputsSection(List<Transaction.Output> outputs) {
+        byte[][] addresses = encodeAddresses(outputs);
+        byte[] section = new byte[outputsSize(addresses)];
+        writeOutputs(outputs, addresses, ByteBuffer.wrap(section));
+        return section;
+    }
+
+    /** @return the encoded prevTxHash and outputIndex of {@code in}, the part only {@code in} signs */
+    public static byte[] inputSection(Transaction.Input in) {
+        byte[] section = new byte[inputSize(in, false)];
+        writeInput(in, ByteBuffer.wrap(section));
+        return section;
+    }
+
+    private static byte[][] encodeAddresses(List<Transaction.Output> outputs) {
+        // getEncoded() returns a fresh copy on every call, so each address is encoded only once
+        byte[][] addresses = new byte[outputs.size()][];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = outputs.get(i).address.getEncoded();
+        }
+        return addresses;
+    }
+
+    private static int rawTxSize(List<Transaction.Input> inputs, byte[][] addresses) {
+        int size = outputsSize(addresses);
+        for (Transaction.Input in : inputs) {
+            size += inputSize(in, true);
+        }
+        return size;
+    }
+
+    private static int inputSize(Transaction.Input in, boolean withSignature) {
+        int size = INDEX_SIZE;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        if (withSignature && in.signature != null)
+            size += in.signature.length;
+        return size;
+    }
+
+    private static int outputsSize(byte[][] addresses) {
+        int size = addresses.length * VALUE_SIZE;
+        for (byte[] address : addresses) {
+            size += address.length;
+        }
+        return size;
+    }
+
+    private static void writeRawTx(List<Transaction.Input> inputs, List<Transaction.Output> outputs,
+                                   byte[][] addresses, ByteBuffer out) {
+        for (Transaction.Input in : inputs) {
+            writeInput(in, out);
+            if (in.signature != null)
+                out.put(in.signature);
+        }
+        writeOutputs(outputs, addresses, out);
+    }
+
+    private static void writeRawDataToSign(Transaction.Input in, List<Transaction.Output> outputs,
+                                           byte[][] addresses, ByteBuffer out) {
+        writeInput(in, out);
+        writeOutputs(outputs, addresses, out);
+    }
+
+    private static void writeInput(Transaction.Input in, ByteBuffer out) {
+        if (in.prevTxHash != null)
+            out.put(in.prevTxHash);
+        out.putInt(in.outputIndex);
+    }
+
+    private static void writeOutputs(List<Transaction.Output> outputs, byte[][] addresses, ByteBuffer out) {
+        for (int i = 0; i < addresses.length; i++) {
+            out.putDouble(Transaction.toCoins(outputs.get(i).value));
+            out.put(addresses[i]);
+        }
+    }
+}
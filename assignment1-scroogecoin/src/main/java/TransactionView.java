@@ -0,0 +1,149 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+/**
+ * Read-only flyweight over one transaction encoded in {@link TxWireFormat}, meant for replaying
+ * and bulk-validating history straight from a direct or memory-mapped buffer. Fields are read
+ * from the buffer when they are accessed rather than copied into {@link Transaction.Input} and
+ * {@link Transaction.Output} objects, and sign data is assembled from the stored key encodings.
+ * Only the addresses are decoded, once, when the view is made, so a malformed key fails
+ * {@link #wrap} rather than a later access. The buffer contents must not change while the view
+ * is in use.
+ */
+public class TransactionView implements TransactionData {
+
+    private final TxWireFormat.Layout layout;
+    private final InputView input = new InputView();
+    private final OutputView output = new OutputView();
+
+    /** outputs section of the sign data, built on first use */
+    private byte[] signedOutputs;
+
+    private TransactionView(TxWireFormat.Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * @return a view of the transaction at the position of {@code in}, which is advanced past it
+     * @throws IllegalArgumentException if {@code in} does not hold a complete, well-formed
+     *         transaction
+     */
+    public static TransactionView wrap(ByteBuffer in) {
+        return wrap(in, false);
+    }
+
+    /**
+     * @return a view like {@link #wrap(ByteBuffer)}, with the hash checked against the contents if
+     *         {@code verifyHash} is set
+     * @throws IllegalArgumentException if {@code in} does not hold a complete, well-formed
+     *         transaction, or the hash is checked and does not match
+     */
+    public static TransactionView wrap(ByteBuffer in, boolean verifyHash) {
+        return new TransactionView(TxWireFormat.read(in, verifyHash));
+    }
+
+    /** Input {@code index} of the viewed transaction; reused, it is only valid until the next {@link #getInput} */
+    public class InputView {
+        private int index;
+
+        /** @return a copy of the hash of the transaction whose output is being used */
+        public byte[] prevTxHash() {
+            return layout.prevTxHash(index);
+        }
+
+        /** @return used output's index in the previous transaction */
+        public int outputIndex() {
+            return layout.outputIndex(index);
+        }
+
+        /** @return a copy of the signature, or null if the input was not signed */
+        public byte[] signature() {
+            return layout.signature(index);
+        }
+    }
+
+    /** Output {@code index} of the viewed transaction; reused, it is only valid until the next {@link #getOutput} */
+    public class OutputView {
+        private int index;
+
+        /** @return value of the output in base units */
+        public long value() {
+            return layout.value(index);
+        }
+
+        /** @return the decoded address of the recipient */
+        public PublicKey address() {
+            return layout.address(index);
+        }
+    }
+
+    /** @return the flyweight positioned at input {@code index}, or null if there is no such input */
+    public InputView getInput(int index) {
+        if (index < 0 || index >= numInputs()) {
+            return null;
+        }
+        input.index = index;
+        return input;
+    }
+
+    /** @return the flyweight positioned at output {@code index}, or null if there is no such output */
+    public OutputView getOutput(int index) {
+        if (index < 0 || index >= numOutputs()) {
+            return null;
+        }
+        output.index = index;
+        return output;
+    }
+
+    @Override
+    public byte[] getHash() {
+        return layout.hash();
+    }
+
+    @Override
+    public int numInputs() {
+        return layout.numInputs();
+    }
+
+    @Override
+    public int numOutputs() {
+        return layout.numOutputs();
+    }
+
+    @Override
+    public UTXO getInputUTXO(int index) {
+        return layout.inputUTXO(index);
+    }
+
+    @Override
+    public byte[] getInputSignature(int index) {
+        return layout.signature(index);
+    }
+
+    @Override
+    public long getOutputValue(int index) {
+        return layout.value(index);
+    }
+
+    /** @return the data input {@code index} signs, split as in {@link Transaction#getAllSignData} */
+    @Override
+    public SignData getSignData(int index) {
+        if (signedOutputs == null) {
+            signedOutputs = layout.signedOutputs();
+        }
+        return new SignData(layout.signedInput(index), signedOutputs);
+    }
+
+    @Override
+    public byte[] getRawDataToSign(int index) {
+        return getSignData(index).toByteArray();
+    }
+
+    /**
+     * @return a regular transaction with the contents of this view. Like {@link Transaction#parse}
+     *         it copies fields out of the buffer on first access
+     */
+    public Transaction toTransaction() {
+        return Transaction.fromWire(layout);
+    }
+}
@@ -1,18 +1,37 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class TxHandler {
 
     private UTXOPool unspentPool;
 
+    /** signature checks of the epoch being handled, verified up front in one parallel batch */
+    private EpochSignatures epochSignatures = EpochSignatures.NONE;
+
+    /** signatures proven valid in earlier epochs */
+    private final SignatureCache signatureCache;
+
+    /** log every epoch is written to before it reaches the pool, or null */
+    private UTXOLog log;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, new SignatureCache(SignatureCache.DEFAULT_CAPACITY));
+    }
+
+    /** Creates a ledger like {@link #TxHandler(UTXOPool)} that remembers verified signatures in {@code signatureCache} */
+    public TxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
         this.unspentPool = utxoPool != null ? new UTXOPool(utxoPool) : new UTXOPool();
+        this.signatureCache = signatureCache;
     }
 
     /**
@@ -23,51 +42,114 @@ public class TxHandler {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * {@code tx} may be a {@link Transaction} or a {@link TransactionView} read from a buffer. Sums
+     * are exact; a sum that overflows a long makes {@code tx} invalid.
      */
-    public boolean isValidTx(Transaction tx) {
+    public boolean isValidTx(TransactionData tx) {
         boolean isValid = true;
         final Set<UTXO> usedUnspentOutputs = new HashSet<UTXO>();
-        double inputSum = 0;
+        long inputSum = 0;
 
-        int ind = 0;
-        for(Transaction.Input input : tx.getInputs()) {
+        for (int ind = 0; ind < tx.numInputs(); ind++) {
             // (1) all outputs claimed by {@code tx} are in the current UTXO pool
-            UTXO unspentOutput = new UTXO(input.prevTxHash, input.outputIndex);
-            isValid = isValid && this.unspentPool.contains(unspentOutput);
-            if (!isValid) {
+            UTXO unspentOutput = tx.getInputUTXO(ind);
+            Transaction.Output output = this.unspentPool.getTxOutput(unspentOutput);
+            if (output == null) {
                 return false;
             }
 
             //(2) the signatures on each input of {@code tx} are valid,
-            Transaction.Output output = this.unspentPool.getTxOutput(unspentOutput);
             PublicKey publicKey = output.address;
-            byte[] providedSignature = input.signature;
+            byte[] providedSignature = tx.getInputSignature(ind);
             if (publicKey == null || providedSignature == null) {
                 return false;
             }
-            byte[] signedMessage = tx.getRawDataToSign(ind++);
-            isValid = isValid && Crypto.verifySignature(publicKey, signedMessage, providedSignature);
+            isValid = isValid && isValidSignature(tx, ind, publicKey, providedSignature);
 
             //(3) no UTXO is claimed multiple times by {@code tx}
             isValid = isValid && !usedUnspentOutputs.contains(unspentOutput);
             usedUnspentOutputs.add(unspentOutput);
 
-            inputSum += output.value;
+            try {
+                inputSum = Math.addExact(inputSum, output.value);
+            } catch (ArithmeticException e) {
+                return false;
+            }
         }
         //(4) all of {@code tx}s output values are non-negative, and
-        double outputSum = 0;
-        for(Transaction.Output output : tx.getOutputs()) {
-            double outputValue = output.value;
-            isValid = isValid && !(outputValue < 0);
+        long outputSum = 0;
+        for (int ind = 0; ind < tx.numOutputs(); ind++) {
+            long outputValue = tx.getOutputValue(ind);
+            isValid = isValid && outputValue >= 0;
             outputSum += outputValue;
+            // both non-negative, so the sum wraps around to a negative number on overflow
+            isValid = isValid && outputSum >= 0;
         }
 
         //(5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-        isValid = isValid && !(inputSum < outputSum);
+        isValid = isValid && inputSum >= outputSum;
 
         return isValid;
     }
 
+    private boolean isValidSignature(TransactionData tx, int index, PublicKey publicKey, byte[] signature) {
+        Boolean verified = epochSignatures.lookup(tx, index, publicKey);
+        if (verified != null) {
+            return verified;
+        }
+        SignData message = tx.getSignData(index);
+        ByteBuffer cacheKey = signatureCache.keyOf(publicKey, message, signature);
+        if (signatureCache.isVerified(cacheKey)) {
+            return true;
+        }
+        if (Crypto.verifySignature(publicKey, message, signature)) {
+            signatureCache.markVerified(cacheKey);
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the cache of verified signatures, e.g. to report its hit and miss counters */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Makes every later epoch go to {@code log} before it changes the pool; null stops logging.
+     * Epochs whose append fails throw {@link UncheckedIOException} and leave the pool unchanged.
+     */
+    public void setLog(UTXOLog log) {
+        this.log = log;
+    }
+
+    /** @return a copy of the current pool, e.g. for {@link UTXOLog#checkpoint} */
+    public UTXOPool getUTXOPool() {
+        return new UTXOPool(unspentPool);
+    }
+
+    /**
+     * Runs {@code epoch}, which changes {@code unspentPool}. With a log, the changes are made on an
+     * overlay and committed to the pool only once they are in the log.
+     */
+    private Transaction[] logged(Supplier<Transaction[]> epoch) {
+        if (log == null) {
+            return epoch.get();
+        }
+        UTXOPool basePool = unspentPool;
+        OverlayUTXOPool epochPool = new OverlayUTXOPool(basePool);
+        unspentPool = epochPool;
+        try {
+            Transaction[] approved = epoch.get();
+            log.append(epochPool);
+            epochPool.commit();
+            return approved;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            unspentPool = basePool;
+        }
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
@@ -77,7 +159,13 @@ public class TxHandler {
         if (possibleTxs == null) {
             return new Transaction[0];
         }
+        return logged(() -> handleEpoch(possibleTxs));
+    }
+
+    private Transaction[] handleEpoch(Transaction[] possibleTxs) {
         List<Transaction> approvedTransactions = new ArrayList<>();
+        // verify every signature of the epoch in one parallel batch, the loop below only does the cheap checks
+        epochSignatures = EpochSignatures.verify(possibleTxs, unspentPool, signatureCache);
         TxGraph txGraph = TxGraph.createDAG(possibleTxs);
         Transaction[] sortedTx = txGraph.getTopologicalSortedTx();
 
@@ -96,10 +184,132 @@ public class TxHandler {
                 approvedTransactions.add(transaction);
             }
         }
+        epochSignatures = EpochSignatures.NONE;
+
+        return approvedTransactions.toArray(new Transaction[approvedTransactions.size()]);
+    }
+
+    /**
+     * Handles an epoch laid out as a {@link TransactionBatch}, with the same checks and pool updates
+     * as {@link #handleTxs(Transaction[])}. The ordering is computed on the batch arrays, and
+     * outputs created in the epoch are tracked there too; only the ones still unspent at the end
+     * are added to the pool. When transactions conflict, the one processed first in
+     * {@link TransactionBatch#topologicalOrder} wins.
+     */
+    public Transaction[] handleTxs(TransactionBatch batch) {
+        return logged(() -> handleEpoch(batch));
+    }
+
+    private Transaction[] handleEpoch(TransactionBatch batch) {
+        epochSignatures = EpochSignatures.verify(batch.txs, unspentPool, signatureCache);
+        boolean[] accepted = new boolean[batch.size()];
+        BitSet spentInEpoch = new BitSet(batch.outputValue.length);
+        List<Transaction> approvedTransactions = new ArrayList<>();
+
+        for (int tx : batch.topologicalOrder()) {
+            if (isValidTx(batch, tx, accepted, spentInEpoch)) {
+                for (int in = batch.inputStart[tx]; in < batch.inputStart[tx + 1]; in++) {
+                    long outpoint = batch.inputOutpoint[in];
+                    int index = TransactionBatch.outpointIndex(outpoint);
+                    UTXO spent = new UTXO(batch.hashes[TransactionBatch.outpointHashId(outpoint)], index);
+                    if (unspentPool.contains(spent)) {
+                        unspentPool.removeUTXO(spent);
+                    } else {
+                        spentInEpoch.set(batch.outputStart[batch.parentOf(in)] + index);
+                    }
+                }
+                accepted[tx] = true;
+                approvedTransactions.add(batch.txs[tx]);
+            }
+        }
+        for (int tx = 0; tx < accepted.length; tx++) {
+            if (!accepted[tx]) {
+                continue;
+            }
+            byte[] hashTx = batch.txs[tx].getHash();
+            for (int ind = 0; ind < batch.numOutputs(tx); ind++) {
+                if (!spentInEpoch.get(batch.outputStart[tx] + ind)) {
+                    this.unspentPool.addUTXO(new UTXO(hashTx, ind), batch.txs[tx].getOutput(ind));
+                }
+            }
+        }
+        epochSignatures = EpochSignatures.NONE;
 
         return approvedTransactions.toArray(new Transaction[approvedTransactions.size()]);
     }
 
+    /**
+     * {@link #isValidTx(TransactionData)} for transaction {@code tx} of {@code batch}. Outputs it
+     * spends are looked up in the pool and then among the outputs of {@code accepted} transactions
+     * of the batch that are not {@code spentInEpoch}.
+     */
+    private boolean isValidTx(TransactionBatch batch, int tx, boolean[] accepted, BitSet spentInEpoch) {
+        Transaction transaction = batch.txs[tx];
+        int start = batch.inputStart[tx];
+        int end = batch.inputStart[tx + 1];
+        long inputSum = 0;
+        for (int in = start; in < end; in++) {
+            // (1) all outputs claimed by {@code tx} are unspent
+            long outpoint = batch.inputOutpoint[in];
+            int hashId = TransactionBatch.outpointHashId(outpoint);
+            int index = TransactionBatch.outpointIndex(outpoint);
+            if (hashId == TransactionBatch.NONE) {
+                return false;
+            }
+            long value;
+            PublicKey publicKey;
+            Transaction.Output output = this.unspentPool.getTxOutput(new UTXO(batch.hashes[hashId], index));
+            if (output != null) {
+                value = output.value;
+                publicKey = output.address;
+            } else {
+                int parent = batch.txOfHashId[hashId];
+                if (parent == TransactionBatch.NONE || !accepted[parent] || index < 0 || index >= batch.numOutputs(parent)
+                        || spentInEpoch.get(batch.outputStart[parent] + index)) {
+                    return false;
+                }
+                value = batch.outputValue[batch.outputStart[parent] + index];
+                int key = batch.outputKey[batch.outputStart[parent] + index];
+                publicKey = key != TransactionBatch.NONE ? batch.keys[key] : null;
+            }
+
+            //(2) the signatures on each input of {@code tx} are valid,
+            byte[] providedSignature = transaction.getInputSignature(in - start);
+            if (publicKey == null || providedSignature == null
+                    || !isValidSignature(transaction, in - start, publicKey, providedSignature)) {
+                return false;
+            }
+            try {
+                inputSum = Math.addExact(inputSum, value);
+            } catch (ArithmeticException e) {
+                return false;
+            }
+        }
+        //(3) no UTXO is claimed multiple times by {@code tx}: equal outpoints sort next to each other
+        if (end - start > 1) {
+            long[] outpoints = Arrays.copyOfRange(batch.inputOutpoint, start, end);
+            Arrays.sort(outpoints);
+            for (int i = 1; i < outpoints.length; i++) {
+                if (outpoints[i] == outpoints[i - 1]) {
+                    return false;
+                }
+            }
+        }
+
+        //(4) all of {@code tx}s output values are non-negative, and
+        boolean isValid = true;
+        long outputSum = 0;
+        for (int op = batch.outputStart[tx]; op < batch.outputStart[tx + 1]; op++) {
+            long outputValue = batch.outputValue[op];
+            isValid = isValid && outputValue >= 0;
+            outputSum += outputValue;
+            isValid = isValid && outputSum >= 0;
+        }
+
+        //(5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
+        return isValid && inputSum >= outputSum;
+    }
+
     public static class TxGraph {
         private Map<TxGraphKey, List<TxGraphKey>> edgesMap;
         private Map<TxGraphKey, Transaction> newTxMap;
@@ -0,0 +1,464 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.List;
+
+/**
+ * Versioned, length-prefixed binary format for storing and sending transactions. Unlike
+ * {@link Transaction#getRawTx} it can be read back, see {@link Transaction#parse}. Counts and
+ * lengths are varints and every transaction is framed by the length of its body, so a reader can
+ * skip one without decoding it.
+ *
+ * <pre>
+ * frame:  version:byte | bodyLength:varint | body
+ * body:   hash:bytes | inputCount:varint | input* | outputCount:varint | output*
+ * input:  prevTxHash:bytes | outputIndex:zigzag varint | signature:bytes
+ * output: value:long | scheme:byte | address:bytes
+ * bytes:  (length + 1):varint | byte*       a length of 0 encodes null
+ * </pre>
+ *
+ * {@code value} is in base units, see {@link Transaction#COIN}. {@code scheme} is the
+ * {@link SignatureScheme#getCode code} of the address key, 0 for a null address, and the address
+ * holds its X.509 encoding. Fixed-width numbers are big-endian. Version 1 stored the value as a
+ * double number of bitcoins and is still read.
+ *
+ * {@code hash} is either null or the SHA-256 hash of the raw encoding of the rest of the body,
+ * {@link Transaction#getRawTx}. Reading only scans the frame, so by default the hash is taken as
+ * it is, like one given to {@link Transaction#setHash}; a reader that cannot trust the sender
+ * asks {@link #read(ByteBuffer, boolean)} to check it, which streams the body through SHA-256.
+ * The addresses are decoded during the scan, so a frame with a malformed key fails to read
+ * instead of failing later, wherever its outputs are first used.
+ */
+public class TxWireFormat {
+
+    public static final int VERSION = 2;
+
+    /** the version whose output values are doubles in bitcoins */
+    private static final int VERSION_DOUBLE_VALUES = 1;
+
+    private static final int VALUE_SIZE = Long.SIZE / 8;
+    private static final int NULL_SCHEME = 0;
+
+    private TxWireFormat() {
+    }
+
+    /** @return the wire encoding of {@code tx} */
+    public static byte[] encode(Transaction tx) {
+        byte[] encoded = new byte[encodedSize(tx)];
+        write(tx, ByteBuffer.wrap(encoded));
+        return encoded;
+    }
+
+    /** @return the number of bytes {@link #encode} produces for {@code tx} */
+    public static int encodedSize(Transaction tx) {
+        int bodySize = bodySize(tx, encodeAddresses(tx.getOutputs()));
+        return 1 + varintSize(bodySize) + bodySize;
+    }
+
+    /**
+     * Writes the wire encoding of {@code tx} to {@code out}, starting at its current position.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} has less than {@link #encodedSize}
+     *         bytes remaining
+     * @throws IllegalArgumentException if an output address is of a type no {@link SignatureScheme}
+     *         supports
+     */
+    public static void write(Transaction tx, ByteBuffer out) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN);
+        byte[][] addresses = encodeAddresses(tx.getOutputs());
+        out.put((byte) VERSION);
+        putVarint(out, bodySize(tx, addresses));
+        putBytes(out, tx.getHash());
+        putVarint(out, tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(out, in.prevTxHash);
+            putVarint(out, zigzag(in.outputIndex));
+            putBytes(out, in.signature);
+        }
+        putVarint(out, tx.numOutputs());
+        for (int i = 0; i < addresses.length; i++) {
+            Transaction.Output op = tx.getOutputs().get(i);
+            out.putLong(op.value);
+            out.put((byte) schemeCode(op.address));
+            putBytes(out, addresses[i]);
+        }
+        out.order(order);
+    }
+
+    /**
+     * Reads the frame at the position of {@code in} and advances past it, without checking its
+     * hash. Only the addresses are decoded: the returned layout reads the other fields from a
+     * slice of {@code in}.
+     *
+     * @throws IllegalArgumentException if {@code in} does not hold a complete, well-formed frame
+     */
+    public static Layout read(ByteBuffer in) {
+        return read(in, false);
+    }
+
+    /**
+     * Reads the frame at the position of {@code in} like {@link #read(ByteBuffer)}, and if
+     * {@code verifyHash} is set also checks that its hash, if any, is the hash of its contents.
+     *
+     * @throws IllegalArgumentException if {@code in} does not hold a complete, well-formed frame,
+     *         or the hash is checked and does not match
+     */
+    public static Layout read(ByteBuffer in, boolean verifyHash) {
+        int start = in.position();
+        try {
+            int version = in.get(start);
+            if (version != VERSION && version != VERSION_DOUBLE_VALUES) {
+                throw new IllegalArgumentException("Unsupported transaction version " + version);
+            }
+            long bodyLength = varintAt(in, start + 1);
+            int bodyStart = start + 1 + varintLength(bodyLength);
+            int bodySize = varintValue(bodyLength);
+            if (bodySize < 0 || bodySize > in.limit() - bodyStart) {
+                throw new IllegalArgumentException("Truncated transaction: body of " + bodySize + " bytes");
+            }
+            ByteBuffer body = in.duplicate();
+            body.position(bodyStart);
+            body.limit(bodyStart + bodySize);
+            Layout layout = new Layout(version, body.slice().asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN), verifyHash);
+            in.position(bodyStart + bodySize);
+            return layout;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated transaction", e);
+        }
+    }
+
+    /**
+     * Offsets of the fields of one encoded transaction body, found by a single scan that also
+     * validates every length and decodes the addresses. The other accessors decode the requested
+     * field on each call.
+     */
+    public static final class Layout {
+
+        private final int version;
+        private final ByteBuffer body;
+        private final int[] inputOffsets;
+        private final int[] outputOffsets;
+        private final PublicKey[] addresses;
+        private final boolean hashVerified;
+
+        private Layout(int version, ByteBuffer body, boolean verifyHash) {
+            this.version = version;
+            this.body = body;
+            int offset = skipBytes(body, 0);
+            long count = varintAt(body, offset);
+            offset += varintLength(count);
+            inputOffsets = new int[checkCount(varintValue(count))];
+            for (int i = 0; i < inputOffsets.length; i++) {
+                inputOffsets[i] = offset;
+                offset = skipBytes(body, offset);
+                offset += varintLength(varintAt(body, offset));
+                offset = skipBytes(body, offset);
+            }
+            count = varintAt(body, offset);
+            offset += varintLength(count);
+            outputOffsets = new int[checkCount(varintValue(count))];
+            addresses = new PublicKey[outputOffsets.length];
+            for (int i = 0; i < outputOffsets.length; i++) {
+                outputOffsets[i] = offset;
+                offset += VALUE_SIZE;
+                int code = body.get(offset++);
+                SignatureScheme scheme = SignatureScheme.byCode(code);
+                if (code != NULL_SCHEME && scheme == null) {
+                    throw new IllegalArgumentException("Unknown address scheme " + code);
+                }
+                int end = skipBytes(body, offset);
+                byte[] encoded = bytesAt(body, offset);
+                if (scheme != null && encoded != null) {
+                    addresses[i] = scheme.decodeKey(encoded);
+                }
+                offset = end;
+            }
+            if (offset != body.limit()) {
+                throw new IllegalArgumentException((body.limit() - offset) + " trailing bytes after transaction");
+            }
+            byte[] hash = hash();
+            if (verifyHash && hash != null && !MessageDigest.isEqual(hash, rawTxHash())) {
+                throw new IllegalArgumentException("Transaction hash does not match its contents");
+            }
+            hashVerified = verifyHash;
+        }
+
+        /** @return true if the hash was checked against the contents when the frame was read */
+        public boolean isHashVerified() {
+            return hashVerified;
+        }
+
+        /**
+         * @return the SHA-256 hash of the raw encoding, laid out as in {@link TransactionSerializer},
+         *         with the fields streamed from the body into the digest
+         */
+        private byte[] rawTxHash() {
+            MessageDigest md = Sha256.get();
+            ByteBuffer scratch = ByteBuffer.allocate(VALUE_SIZE);
+            for (int i = 0; i < inputOffsets.length; i++) {
+                int offset = updateBytes(md, inputOffsets[i]);
+                scratch.putInt(0, outputIndex(i));
+                md.update(scratch.array(), 0, Integer.SIZE / 8);
+                offset += varintLength(varintAt(body, offset));
+                updateBytes(md, offset);
+            }
+            for (int i = 0; i < outputOffsets.length; i++) {
+                // version 1 hashed the stored double as it is
+                double coins = version == VERSION_DOUBLE_VALUES
+                        ? body.getDouble(outputOffsets[i]) : Transaction.toCoins(value(i));
+                scratch.putDouble(0, coins);
+                md.update(scratch.array(), 0, VALUE_SIZE);
+                updateBytes(md, outputOffsets[i] + VALUE_SIZE + 1);
+            }
+            return md.digest();
+        }
+
+        /** Feeds the contents of the bytes field at {@code offset} to {@code md} */
+        private int updateBytes(MessageDigest md, int offset) {
+            long length = varintAt(body, offset);
+            int start = offset + varintLength(length);
+            int size = Math.max(varintValue(length) - 1, 0);
+            ByteBuffer field = body.duplicate();
+            field.position(start);
+            field.limit(start + size);
+            md.update(field);
+            return start + size;
+        }
+
+        private int checkCount(int count) {
+            // every input and output takes at least 3 bytes
+            if (count < 0 || count > body.limit() / 3) {
+                throw new IllegalArgumentException("Invalid count " + count);
+            }
+            return count;
+        }
+
+        /** @return the encoded body this layout reads from */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+
+        public int numInputs() {
+            return inputOffsets.length;
+        }
+
+        public int numOutputs() {
+            return outputOffsets.length;
+        }
+
+        /** @return a copy of the transaction hash, or null if it was not set */
+        public byte[] hash() {
+            return bytesAt(body, 0);
+        }
+
+        /** @return a copy of the prevTxHash of input {@code index} */
+        public byte[] prevTxHash(int index) {
+            return bytesAt(body, inputOffsets[index]);
+        }
+
+        /**
+         * @return the UTXO input {@code index} claims. A 32-byte hash is read as four words
+         *         straight from the body, without copying it into an array first
+         */
+        public UTXO inputUTXO(int index) {
+            int offset = inputOffsets[index];
+            long length = varintAt(body, offset);
+            if (varintValue(length) - 1 != 4 * Long.BYTES) {
+                return new UTXO(prevTxHash(index), outputIndex(index));
+            }
+            int start = offset + varintLength(length);
+            return new UTXO(body.getLong(start), body.getLong(start + Long.BYTES),
+                    body.getLong(start + 2 * Long.BYTES), body.getLong(start + 3 * Long.BYTES), outputIndex(index));
+        }
+
+        /** @return the outputIndex of input {@code index} */
+        public int outputIndex(int index) {
+            int offset = skipBytes(body, inputOffsets[index]);
+            return unzigzag(varintValue(varintAt(body, offset)));
+        }
+
+        /** @return a copy of the signature of input {@code index}, or null if it was not signed */
+        public byte[] signature(int index) {
+            int offset = skipBytes(body, inputOffsets[index]);
+            offset += varintLength(varintAt(body, offset));
+            return bytesAt(body, offset);
+        }
+
+        /** @return the value of output {@code index} in base units */
+        public long value(int index) {
+            if (version == VERSION_DOUBLE_VALUES) {
+                return Transaction.toBaseUnits(body.getDouble(outputOffsets[index]));
+            }
+            return body.getLong(outputOffsets[index]);
+        }
+
+        /** @return the address of output {@code index}, decoded when the frame was read, or null if it has none */
+        public PublicKey address(int index) {
+            return addresses[index];
+        }
+
+        /**
+         * @return the part of the sign data only input {@code index} signs, laid out as in
+         *         {@link TransactionSerializer}: prevTxHash followed by outputIndex as an int
+         */
+        public byte[] signedInput(int index) {
+            int offset = inputOffsets[index];
+            long length = varintAt(body, offset);
+            int hashSize = Math.max(varintValue(length) - 1, 0);
+            ByteBuffer section = ByteBuffer.allocate(hashSize + Integer.SIZE / 8);
+            copy(offset + varintLength(length), hashSize, section);
+            section.putInt(outputIndex(index));
+            return section.array();
+        }
+
+        /**
+         * @return the part of the sign data all inputs share, laid out as in
+         *         {@link TransactionSerializer}: value in bitcoins and encoded address of every
+         *         output. Built from the stored encodings, no key is decoded
+         */
+        public byte[] signedOutputs() {
+            int size = 0;
+            for (int offset : outputOffsets) {
+                size += VALUE_SIZE + Math.max(varintValue(varintAt(body, offset + VALUE_SIZE + 1)) - 1, 0);
+            }
+            ByteBuffer section = ByteBuffer.allocate(size);
+            for (int i = 0; i < outputOffsets.length; i++) {
+                int offset = outputOffsets[i];
+                section.putDouble(Transaction.toCoins(value(i)));
+                long length = varintAt(body, offset + VALUE_SIZE + 1);
+                copy(offset + VALUE_SIZE + 1 + varintLength(length), Math.max(varintValue(length) - 1, 0), section);
+            }
+            return section.array();
+        }
+
+        private void copy(int offset, int length, ByteBuffer out) {
+            ByteBuffer field = body.duplicate();
+            field.position(offset);
+            field.limit(offset + length);
+            out.put(field);
+        }
+    }
+
+    private static byte[][] encodeAddresses(List<Transaction.Output> outputs) {
+        byte[][] addresses = new byte[outputs.size()][];
+        for (int i = 0; i < addresses.length; i++) {
+            PublicKey address = outputs.get(i).address;
+            addresses[i] = address != null ? address.getEncoded() : null;
+        }
+        return addresses;
+    }
+
+    private static int schemeCode(PublicKey address) {
+        if (address == null) {
+            return NULL_SCHEME;
+        }
+        SignatureScheme scheme = SignatureScheme.of(address);
+        if (scheme == null) {
+            throw new IllegalArgumentException("Unsupported key type: " + address.getAlgorithm());
+        }
+        return scheme.getCode();
+    }
+
+    private static int bodySize(Transaction tx, byte[][] addresses) {
+        int size = bytesSize(tx.getHash()) + varintSize(tx.numInputs()) + varintSize(tx.numOutputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            size += bytesSize(in.prevTxHash) + varintSize(zigzag(in.outputIndex)) + bytesSize(in.signature);
+        }
+        for (byte[] address : addresses) {
+            size += VALUE_SIZE + 1 + bytesSize(address);
+        }
+        return size;
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        if (bytes == null)
+            return 1;
+        return varintSize(bytes.length + 1) + bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            putVarint(out, 0);
+            return;
+        }
+        putVarint(out, bytes.length + 1);
+        out.put(bytes);
+    }
+
+    /** @return a copy of the bytes field at {@code offset} */
+    private static byte[] bytesAt(ByteBuffer body, int offset) {
+        long length = varintAt(body, offset);
+        int size = varintValue(length) - 1;
+        if (size < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[size];
+        ByteBuffer field = body.duplicate();
+        field.position(offset + varintLength(length));
+        field.get(bytes);
+        return bytes;
+    }
+
+    /** @return the offset just past the bytes field at {@code offset}, checking it fits the body */
+    private static int skipBytes(ByteBuffer body, int offset) {
+        long length = varintAt(body, offset);
+        int size = varintValue(length) - 1;
+        int end = offset + varintLength(length) + Math.max(size, 0);
+        if (size < -1 || end > body.limit() || end < offset) {
+            throw new IllegalArgumentException("Field at " + offset + " overruns the transaction");
+        }
+        return end;
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static int varintSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            size++;
+            v >>>= 7;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    /**
+     * Reads the unsigned varint at absolute {@code offset} without moving the buffer position.
+     *
+     * @return the encoded length in the high and the value in the low 32 bits
+     */
+    private static long varintAt(ByteBuffer b, int offset) {
+        int value = 0;
+        for (int i = 0; i < 5; i++) {
+            byte x = b.get(offset + i);
+            value |= (x & 0x7F) << (7 * i);
+            if (x >= 0) {
+                return ((long) (i + 1) << 32) | (value & 0xFFFFFFFFL);
+            }
+        }
+        throw new IllegalArgumentException("Varint at " + offset + " is longer than 5 bytes");
+    }
+
+    private static int varintLength(long varint) {
+        return (int) (varint >>> 32);
+    }
+
+    private static int varintValue(long varint) {
+        return (int) varint;
+    }
+}
@@ -1,24 +1,116 @@
 import java.util.Arrays;
+import java.util.Comparator;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /**
+     * Orders UTXOs by transaction hash, compared as unsigned bytes with a prefix before its
+     * extensions, then by index. All outputs of one transaction, and all hashes starting with the
+     * same bytes, are next to each other in this order.
+     */
+    public static final Comparator<UTXO> HASH_ORDER = UTXO::compareByHash;
+
+    /** length of a SHA-256 transaction hash, the size stored inline */
+    private static final int HASH_SIZE = 32;
+
+    /*
+     * A 32-byte txHash is kept as four big-endian longs, so keys are built and compared without
+     * touching an array. Hashes of any other length (tests use short made-up ones) are copied into
+     * {@code otherHash} instead and the longs are zero.
+     */
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h3;
+    /** the txHash if it is not {@value #HASH_SIZE} bytes long, null otherwise */
+    private final byte[] otherHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** precomputed from the hash bits and the index */
+    private final int hashCode;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        if (txHash.length == HASH_SIZE) {
+            h0 = getLong(txHash, 0);
+            h1 = getLong(txHash, 8);
+            h2 = getLong(txHash, 16);
+            h3 = getLong(txHash, 24);
+            otherHash = null;
+            // SHA-256 output is uniformly distributed, any 64 bits of it make a good hash; keep in
+            // sync with the constructor taking longs
+            hashCode = (int) (h0 ^ (h0 >>> 32)) * 31 + index;
+        } else {
+            h0 = h1 = h2 = h3 = 0;
+            otherHash = Arrays.copyOf(txHash, txHash.length);
+            hashCode = Arrays.hashCode(otherHash) * 31 + index;
+        }
         this.index = index;
     }
 
-    /** @return the transaction hash of this UTXO */
+    /** Creates the UTXO of a 32-byte hash given as four big-endian longs, see {@link #hashWord} */
+    UTXO(long h0, long h1, long h2, long h3, int index) {
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+        otherHash = null;
+        hashCode = (int) (h0 ^ (h0 >>> 32)) * 31 + index;
+        this.index = index;
+    }
+
+    /** @return true if the transaction hash is 32 bytes long and readable through {@link #hashWord} */
+    boolean hasInlineHash() {
+        return otherHash == null;
+    }
+
+    /** @return bytes {@code 8 * i} to {@code 8 * i + 7} of a 32-byte transaction hash, big-endian */
+    long hashWord(int i) {
+        switch (i) {
+            case 0:
+                return h0;
+            case 1:
+                return h1;
+            case 2:
+                return h2;
+            default:
+                return h3;
+        }
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        return ((long) b[offset] << 56)
+                | ((long) (b[offset + 1] & 0xFF) << 48)
+                | ((long) (b[offset + 2] & 0xFF) << 40)
+                | ((long) (b[offset + 3] & 0xFF) << 32)
+                | ((long) (b[offset + 4] & 0xFF) << 24)
+                | ((b[offset + 5] & 0xFF) << 16)
+                | ((b[offset + 6] & 0xFF) << 8)
+                | (b[offset + 7] & 0xFF);
+    }
+
+    private static void putLong(byte[] b, int offset, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    /** @return a copy of the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        if (otherHash != null) {
+            return otherHash.clone();
+        }
+        byte[] txHash = new byte[HASH_SIZE];
+        putLong(txHash, 0, h0);
+        putLong(txHash, 8, h1);
+        putLong(txHash, 16, h2);
+        putLong(txHash, 24, h3);
         return txHash;
     }
 
@@ -40,15 +132,11 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        if (hashCode != utxo.hashCode || index != utxo.index)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        if (otherHash != null || utxo.otherHash != null)
+            return Arrays.equals(otherHash, utxo.otherHash);
+        return h0 == utxo.h0 && h1 == utxo.h1 && h2 == utxo.h2 && h3 == utxo.h3;
     }
 
     /**
@@ -56,36 +144,95 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
-        return hash;
+        return hashCode;
     }
 
-    /** Compares this UTXO to the one specified by {@code utxo} */
+    /**
+     * Compares this UTXO to the one specified by {@code utxo}: by index, then by hash length, then
+     * by the hash bytes compared as signed numbers
+     */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
         int in = utxo.index;
         if (in > index)
             return -1;
         else if (in < index)
             return 1;
-        else {
+        if (otherHash != null || utxo.otherHash != null) {
+            byte[] hash = utxo.otherHash != null ? utxo.otherHash : utxo.getTxHash();
+            byte[] txHash = otherHash != null ? otherHash : getTxHash();
             int len1 = txHash.length;
             int len2 = hash.length;
             if (len2 > len1)
                 return -1;
             else if (len2 < len1)
                 return 1;
-            else {
-                for (int i = 0; i < len1; i++) {
-                    if (hash[i] > txHash[i])
-                        return -1;
-                    else if (hash[i] < txHash[i])
-                        return 1;
-                }
-                return 0;
+            for (int i = 0; i < len1; i++) {
+                if (hash[i] > txHash[i])
+                    return -1;
+                else if (hash[i] < txHash[i])
+                    return 1;
             }
+            return 0;
         }
+        int c = compareSignedBytes(h0, utxo.h0);
+        if (c == 0)
+            c = compareSignedBytes(h1, utxo.h1);
+        if (c == 0)
+            c = compareSignedBytes(h2, utxo.h2);
+        if (c == 0)
+            c = compareSignedBytes(h3, utxo.h3);
+        return c;
+    }
+
+    private static int compareByHash(UTXO a, UTXO b) {
+        int c;
+        if (a.otherHash == null && b.otherHash == null) {
+            c = Long.compareUnsigned(a.h0, b.h0);
+            if (c == 0)
+                c = Long.compareUnsigned(a.h1, b.h1);
+            if (c == 0)
+                c = Long.compareUnsigned(a.h2, b.h2);
+            if (c == 0)
+                c = Long.compareUnsigned(a.h3, b.h3);
+        } else {
+            byte[] hashA = a.otherHash != null ? a.otherHash : a.getTxHash();
+            byte[] hashB = b.otherHash != null ? b.otherHash : b.getTxHash();
+            int length = Math.min(hashA.length, hashB.length);
+            c = 0;
+            for (int i = 0; i < length && c == 0; i++) {
+                c = Integer.compare(hashA[i] & 0xFF, hashB[i] & 0xFF);
+            }
+            if (c == 0)
+                c = Integer.compare(hashA.length, hashB.length);
+        }
+        return c != 0 ? c : Integer.compare(a.index, b.index);
+    }
+
+    /** @return true if the transaction hash of this UTXO starts with {@code prefix} */
+    public boolean hasHashPrefix(byte[] prefix) {
+        if (otherHash != null) {
+            if (prefix.length > otherHash.length)
+                return false;
+            for (int i = 0; i < prefix.length; i++) {
+                if (prefix[i] != otherHash[i])
+                    return false;
+            }
+            return true;
+        }
+        if (prefix.length > HASH_SIZE)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            long word = i < 8 ? h0 : i < 16 ? h1 : i < 24 ? h2 : h3;
+            if ((byte) (word >>> (56 - 8 * (i & 7))) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** Compares two runs of 8 bytes the way comparing them one signed byte at a time would */
+    private static int compareSignedBytes(long a, long b) {
+        // flipping the sign bit of every byte turns signed byte order into unsigned order
+        final long signBits = 0x8080808080808080L;
+        return Long.compareUnsigned(a ^ signBits, b ^ signBits);
     }
 }
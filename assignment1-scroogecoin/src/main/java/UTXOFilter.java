@@ -0,0 +1,164 @@
+/**
+ * Bloom filter over the UTXOs of a {@link UTXOPool}, which {@link UTXOPool#contains} and
+ * {@link UTXOPool#getTxOutput} consult before the store: a UTXO the filter has never seen is
+ * rejected without probing the store, which matters most when the store is on disk. See
+ * {@link UTXOPool#setFilterBudget}.
+ *
+ * A Bloom filter cannot forget, so removed UTXOs leave their bits set and only cost false
+ * positives. The pool rebuilds the filter from the store once enough UTXOs were added to fill it,
+ * which also clears the bits of the removed ones.
+ *
+ * The metrics count since the filter was first enabled, across rebuilds. They are plain counters,
+ * so they may miss updates when several threads read the pool at once.
+ */
+public class UTXOFilter {
+
+    private static final int MAX_HASHES = 16;
+    /** the largest bit array, 2^30 longs */
+    private static final long MAX_BITS = 1L << 36;
+
+    private final long[] bits;
+    private final long mask;
+    private final int hashes;
+    /** number of adds after which half the bits are set and the filter should be rebuilt */
+    private final long capacity;
+    /** UTXOs in the store when the filter was built */
+    private final long built;
+    private long added;
+    /** set when the store changed behind the filter, which must then be built again */
+    private boolean stale;
+
+    private long queries;
+    private long rejected;
+    private long falsePositives;
+
+    /**
+     * Creates an empty filter of at most {@code memoryBytes}, sized for {@code expected} UTXOs and
+     * taking over the metrics of {@code previous} if it is not null
+     */
+    UTXOFilter(long memoryBytes, long expected, UTXOFilter previous) {
+        long size = Long.highestOneBit(Math.min(Math.max(memoryBytes * 8, 64), MAX_BITS));
+        bits = new long[(int) (size >>> 6)];
+        mask = size - 1;
+        // k = m/n ln 2 makes the false positive rate 2^-k, with half the bits set at n entries
+        long k = Math.round((double) size / Math.max(expected, 1) * Math.log(2));
+        hashes = (int) Math.max(1, Math.min(MAX_HASHES, k));
+        capacity = (long) (size * Math.log(2) / hashes);
+        built = expected;
+        if (previous != null) {
+            queries = previous.queries;
+            rejected = previous.rejected;
+            falsePositives = previous.falsePositives;
+        }
+    }
+
+    /** @return a filter of at most {@code memoryBytes} holding the UTXOs of {@code store} */
+    static UTXOFilter of(UTXOStore store, long memoryBytes, UTXOFilter previous) {
+        UTXOFilter filter = new UTXOFilter(memoryBytes, store.size(), previous);
+        store.forEach((utxo, output) -> filter.add(utxo));
+        return filter;
+    }
+
+    private static long mix(long h) {
+        // splitmix64 finalizer
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    private static long hash1(UTXO utxo) {
+        long h = utxo.hasInlineHash() ? utxo.hashWord(1) : utxo.hashCode();
+        return mix(h + utxo.getIndex() * 0x9E3779B97F4A7C15L);
+    }
+
+    private static long hash2(UTXO utxo) {
+        long h = utxo.hasInlineHash() ? utxo.hashWord(2) : ~(long) utxo.hashCode();
+        // odd, so the probes of one UTXO never repeat a bit before wrapping around
+        return mix(h ^ utxo.getIndex()) | 1;
+    }
+
+    void add(UTXO utxo) {
+        long h = hash1(utxo);
+        long step = hash2(utxo);
+        for (int i = 0; i < hashes; i++, h += step) {
+            long bit = h & mask;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        added++;
+    }
+
+    /** @return false if {@code utxo} was never added, true if it may have been */
+    boolean mightContain(UTXO utxo) {
+        queries++;
+        long h = hash1(utxo);
+        long step = hash2(utxo);
+        for (int i = 0; i < hashes; i++, h += step) {
+            long bit = h & mask;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                rejected++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Records that the store did not hold a UTXO this filter let through */
+    void falsePositive() {
+        falsePositives++;
+    }
+
+    void markStale() {
+        stale = true;
+    }
+
+    boolean isStale() {
+        return stale;
+    }
+
+    /** @return true once enough UTXOs were added that the filter should be built again */
+    boolean isFull() {
+        // never sooner than the store doubles, so a budget too small for the pool cannot make
+        // every add rebuild
+        return added > Math.max(capacity, 2 * built);
+    }
+
+    /** @return the memory taken by the bit array, in bytes */
+    public long getMemoryBytes() {
+        return bits.length * 8L;
+    }
+
+    /** @return the number of bits each UTXO sets */
+    public int getHashes() {
+        return hashes;
+    }
+
+    /** @return the number of lookups that consulted the filter */
+    public long getQueries() {
+        return queries;
+    }
+
+    /** @return the number of lookups the filter answered without probing the store */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /** @return the number of lookups the filter let through for UTXOs the store did not hold */
+    public long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /** @return the fraction of lookups of absent UTXOs that still probed the store, or 0 if none */
+    public double getFalsePositiveRate() {
+        long absent = rejected + falsePositives;
+        return absent == 0 ? 0 : (double) falsePositives / absent;
+    }
+
+    /** @return the false positive rate expected from the bits set now, ignoring removed UTXOs */
+    public double getExpectedFalsePositiveRate() {
+        long set = 0;
+        for (long word : bits) {
+            set += Long.bitCount(word);
+        }
+        return Math.pow((double) set / (mask + 1), hashes);
+    }
+}
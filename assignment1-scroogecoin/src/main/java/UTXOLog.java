@@ -0,0 +1,335 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the UTXO changes of each epoch. A handler with a log applies an
+ * epoch to an {@link OverlayUTXOPool}, appends the overlay's changes here and only then commits
+ * them to its pool, so every change that reached the pool is in the log.
+ *
+ * <pre>
+ * record: length:int | crc32:int | body        crc32 is over the body
+ * body:   sequence:long | keyCount:int | key* | removeCount:int | utxo* | addCount:int | add*
+ * key:    scheme:byte | [algorithmLength:int | algorithm] | length:int | X.509 encoding
+ * utxo:   hashLength:int | hash | index:int
+ * add:    utxo | keyRef:int | value:long        keyRef 0 is a null address, i + 1 is key i
+ * </pre>
+ *
+ * Keys are written as {@link KeyEncoding} describes, so outputs locked to keys of no
+ * {@link SignatureScheme} are logged too. Records are self-contained, each carries the keys it
+ * uses. A record cut short by a crash fails its length or checksum check and ends the log; opening
+ * the log cuts it off.
+ *
+ * Recovery loads the last snapshot and replays the log onto it, see {@link #replay}. Replaying
+ * only removes and adds UTXOs, so replaying epochs the snapshot already contains leaves it as it
+ * was; {@link #checkpoint} can therefore write the snapshot first and empty the log afterwards
+ * without a window in which a crash loses epochs. Not thread-safe.
+ */
+public class UTXOLog implements Closeable {
+
+    /** When an appended epoch is forced to disk */
+    public enum Durability {
+        /**
+         * Never forced; records are handed to the operating system, so they survive a crash of the
+         * process but not of the machine
+         */
+        NONE,
+        /**
+         * Forced once per group of epochs: when a group holds {@code groupEpochs} epochs or its first
+         * epoch is {@code groupMillis} old. A machine crash loses at most the open group
+         */
+        GROUP,
+        /** Forced before each append returns */
+        EPOCH
+    }
+
+    public static final int DEFAULT_GROUP_EPOCHS = 16;
+    public static final long DEFAULT_GROUP_MILLIS = 50;
+
+    private static final int RECORD_HEADER = 8;
+
+    private final FileChannel channel;
+    private final Durability durability;
+    private final int groupEpochs;
+    private final long groupNanos;
+
+    private long sequence;
+    private int unsynced;
+    private long groupStart;
+
+    /** Opens {@code file} for appending with the default group size, creating it if needed */
+    public UTXOLog(Path file, Durability durability) throws IOException {
+        this(file, durability, DEFAULT_GROUP_EPOCHS, DEFAULT_GROUP_MILLIS);
+    }
+
+    /**
+     * Opens {@code file} for appending, creating it if needed, and cuts off a record left
+     * incomplete by a crash. {@code groupEpochs} and {@code groupMillis} bound the groups of
+     * {@link Durability#GROUP}.
+     */
+    public UTXOLog(Path file, Durability durability, int groupEpochs, long groupMillis) throws IOException {
+        this(open(file, groupEpochs, groupMillis), durability, groupEpochs, groupMillis);
+    }
+
+    /** Creates a log over {@code channel}, which it takes ownership of */
+    UTXOLog(FileChannel channel, Durability durability, int groupEpochs, long groupMillis) throws IOException {
+        checkGroup(groupEpochs, groupMillis);
+        this.durability = durability;
+        this.groupEpochs = groupEpochs;
+        this.groupNanos = groupMillis * 1_000_000;
+        this.channel = channel;
+        long[] lastSequence = {0};
+        long end = scan(channel, (seq, body) -> lastSequence[0] = seq);
+        if (end < channel.size()) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        sequence = lastSequence[0];
+    }
+
+    private static FileChannel open(Path file, int groupEpochs, long groupMillis) throws IOException {
+        checkGroup(groupEpochs, groupMillis);
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void checkGroup(int groupEpochs, long groupMillis) {
+        if (groupEpochs < 1 || groupMillis < 0) {
+            throw new IllegalArgumentException("invalid group: " + groupEpochs + " epochs, " + groupMillis + " ms");
+        }
+    }
+
+    /** @return the sequence number of the last epoch in the log, 0 if there is none */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Appends the changes recorded in {@code epoch} as the next epoch, forcing them to disk as the
+     * durability level asks. If writing or forcing fails, the record is cut off again before the
+     * exception is thrown, so the log only holds the epochs whose append returned.
+     *
+     * @throws IllegalArgumentException if an added output's address has no X.509 encoding
+     */
+    public void append(OverlayUTXOPool epoch) throws IOException {
+        Map<PublicKey, Integer> keyRefs = new HashMap<>();
+        List<PublicKey> keys = new ArrayList<>();
+        epoch.addedUTXOs().forEach((utxo, output) -> {
+            if (output.address != null && !keyRefs.containsKey(output.address)) {
+                keys.add(output.address);
+                keyRefs.put(output.address, keys.size());
+            }
+        });
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeLong(sequence + 1);
+        body.writeInt(keys.size());
+        for (PublicKey key : keys) {
+            KeyEncoding encoding = KeyEncoding.of(key);
+            body.writeByte(encoding.code);
+            if (encoding.algorithm != null) {
+                body.writeInt(encoding.algorithm.length);
+                body.write(encoding.algorithm);
+            }
+            body.writeInt(encoding.encoded.length);
+            body.write(encoding.encoded);
+        }
+        body.writeInt(epoch.removedUTXOs().size());
+        for (UTXO utxo : epoch.removedUTXOs()) {
+            writeUTXO(body, utxo);
+        }
+        body.writeInt(epoch.addedUTXOs().size());
+        for (Map.Entry<UTXO, Transaction.Output> e : epoch.addedUTXOs().entrySet()) {
+            writeUTXO(body, e.getKey());
+            Transaction.Output output = e.getValue();
+            body.writeInt(output.address == null ? 0 : keyRefs.get(output.address));
+            body.writeLong(output.value);
+        }
+
+        byte[] encoded = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(encoded);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).putInt(encoded.length).putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer[] record = {header, ByteBuffer.wrap(encoded)};
+        long start = channel.position();
+        try {
+            while (record[1].hasRemaining()) {
+                channel.write(record);
+            }
+            if (durability == Durability.EPOCH) {
+                channel.force(false);
+            } else if (durability == Durability.GROUP) {
+                long now = System.nanoTime();
+                if (unsynced == 0) {
+                    groupStart = now;
+                }
+                if (unsynced + 1 >= groupEpochs || now - groupStart >= groupNanos) {
+                    sync();
+                } else {
+                    unsynced++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // a torn record would end the log on recovery, and the records after it with it
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        sequence++;
+    }
+
+    private static void writeUTXO(DataOutputStream out, UTXO utxo) throws IOException {
+        byte[] hash = utxo.getTxHash();
+        out.writeInt(hash.length);
+        out.write(hash);
+        out.writeInt(utxo.getIndex());
+    }
+
+    /** Forces every appended epoch to disk, e.g. when a {@link Durability#GROUP} log goes idle */
+    public void sync() throws IOException {
+        channel.force(false);
+        unsynced = 0;
+    }
+
+    /**
+     * Writes {@code pool}, which must contain every epoch of the log, to {@code snapshot} and then
+     * empties the log
+     */
+    public void checkpoint(UTXOPool pool, Path snapshot) throws IOException {
+        sync();
+        pool.snapshotTo(snapshot);
+        channel.truncate(0);
+        channel.force(true);
+    }
+
+    /** Forces the log to disk and closes it */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Applies every complete epoch of the log in {@code file} to {@code pool}, in order. A missing
+     * file is an empty log.
+     *
+     * @return {@code pool}
+     */
+    public static UTXOPool replay(Path file, UTXOPool pool) throws IOException {
+        if (!Files.exists(file)) {
+            return pool;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            scan(channel, (seq, body) -> apply(body, pool));
+        }
+        return pool;
+    }
+
+    /**
+     * @return the pool of the snapshot in {@code snapshot}, or an empty pool if there is none, with
+     *         the epochs of the log in {@code log} replayed onto it
+     */
+    public static UTXOPool recover(Path snapshot, Path log) throws IOException {
+        return replay(log, Files.exists(snapshot) ? UTXOPool.loadFrom(snapshot) : new UTXOPool());
+    }
+
+    private static void apply(DataInputStream in, UTXOPool pool) throws IOException {
+        PublicKey[] keys = new PublicKey[in.readInt()];
+        for (int k = 0; k < keys.length; k++) {
+            int code = in.readByte();
+            byte[] algorithm = null;
+            if (code == KeyEncoding.OTHER) {
+                algorithm = new byte[in.readInt()];
+                in.readFully(algorithm);
+            }
+            byte[] encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+            keys[k] = KeyEncoding.decode(code, algorithm, encoded);
+            if (keys[k] == null) {
+                throw new IOException("Unknown key scheme in UTXO log");
+            }
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            pool.removeUTXO(readUTXO(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            UTXO utxo = readUTXO(in);
+            int keyRef = in.readInt();
+            pool.addUTXO(utxo, Transaction.outputOfUnits(in.readLong(), keyRef == 0 ? null : keys[keyRef - 1]));
+        }
+    }
+
+    private static UTXO readUTXO(DataInputStream in) throws IOException {
+        byte[] hash = new byte[in.readInt()];
+        in.readFully(hash);
+        return new UTXO(hash, in.readInt());
+    }
+
+    private interface RecordVisitor {
+        void visit(long sequence, DataInputStream body) throws IOException;
+    }
+
+    /**
+     * Reads the records of {@code channel} from the start and hands each complete one to
+     * {@code visitor}, with the body positioned after the sequence number
+     *
+     * @return the offset after the last complete record
+     */
+    private static long scan(FileChannel channel, RecordVisitor visitor) throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        while (size - offset >= RECORD_HEADER) {
+            header.clear();
+            readFully(channel, header, offset);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 8 || length > size - offset - RECORD_HEADER) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(channel, body, offset + RECORD_HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+            visitor.visit(in.readLong(), in);
+            offset += RECORD_HEADER + length;
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("UTXO log shrank while reading");
+            }
+        }
+    }
+}
@@ -1,32 +1,153 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * The unspent transaction outputs, kept in a {@link UTXOStore} with optional indexes and a Bloom
+ * filter on top.
+ *
+ * A pool is not thread-safe, not even for lookups. The hash order index, the address index and
+ * the filter are built by the first call that needs them and updated by later changes, without
+ * any locking. Only a pool without a filter, used for {@link #getTxOutput}, {@link #contains} and
+ * {@link #getTxOutputs} alone, is as thread-safe as its store, e.g. a {@link StripedUTXOStore}.
+ * Any other pool must be confined to one thread at a time or guarded by the caller. Copies share
+ * nothing mutable with the pool they came from.
+ */
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
 
-    /** Creates a new empty UTXOPool */
+    /**
+     * The keys of {@code H} in {@link UTXO#HASH_ORDER}, for the range queries. Built on the first
+     * query and kept up to date from then on; null until then, so pools that are never queried
+     * (copies in particular) do not pay for it.
+     */
+    private TreeSet<UTXO> ordered;
+
+    /**
+     * The UTXOs of {@code H} by address, with the balance of each. Like {@link #ordered}, built on
+     * the first query and kept up to date from then on; dropped if a balance overflows, so the
+     * next query rebuilds it and reports the overflow
+     */
+    private AddressIndex addresses;
+
+    /** memory budget of {@link #filter} in bytes, 0 when the pool has no filter */
+    private long filterBudget;
+
+    /** Bloom filter over the keys of {@code H}; null until the first lookup, like the indexes */
+    private UTXOFilter filter;
+
+    /** Creates a new empty UTXOPool, backed by a {@link HamtUTXOStore} so copies are O(1) */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        this(new HamtUTXOStore());
+    }
+
+    /** Creates a new UTXOPool backed by {@code store}, which it takes ownership of */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, backed by the same kind of store and
+     * with the same filter budget; the copy builds its own filter on its first lookup
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+        filterBudget = uPool.filterBudget;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        if (addresses != null) {
+            Transaction.Output replaced = H.get(utxo);
+            try {
+                if (replaced != null)
+                    addresses.remove(utxo, replaced);
+                addresses.add(utxo, txOut);
+            } catch (ArithmeticException e) {
+                addresses = null;
+            }
+        }
         H.put(utxo, txOut);
+        if (ordered != null)
+            ordered.add(utxo);
+        filterAdded(utxo);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
+        if (addresses != null) {
+            Transaction.Output removed = H.get(utxo);
+            try {
+                if (removed != null)
+                    addresses.remove(utxo, removed);
+            } catch (ArithmeticException e) {
+                addresses = null;
+            }
+        }
         H.remove(utxo);
+        if (ordered != null)
+            ordered.remove(utxo);
+    }
+
+    /**
+     * Removes the UTXOs {@code removed} and then adds {@code added}, as one batch: a store split
+     * over shards gets one call per shard instead of one per UTXO. If the store fails partway, the
+     * indexes are dropped and rebuilt from the store on their next use
+     */
+    public void apply(Collection<UTXO> removed, Map<UTXO, Transaction.Output> added) {
+        UTXO[] touched = null;
+        Transaction.Output[] before = null;
+        if (addresses != null) {
+            touched = new UTXO[removed.size() + added.size()];
+            int n = 0;
+            for (UTXO utxo : removed)
+                touched[n++] = utxo;
+            for (UTXO utxo : added.keySet())
+                touched[n++] = utxo;
+            before = H.getAll(touched);
+        }
+        try {
+            H.apply(removed, added);
+        } catch (RuntimeException e) {
+            storeChanged();
+            throw e;
+        }
+        if (addresses != null) {
+            try {
+                for (int i = 0; i < touched.length; i++) {
+                    if (before[i] != null)
+                        addresses.remove(touched[i], before[i]);
+                }
+                added.forEach(addresses::add);
+            } catch (ArithmeticException e) {
+                addresses = null;
+            }
+        }
+        if (ordered != null) {
+            ordered.removeAll(removed);
+            ordered.addAll(added.keySet());
+        }
+        for (UTXO utxo : added.keySet())
+            filterAdded(utxo);
+    }
+
+    private void filterAdded(UTXO utxo) {
+        if (filter != null && !filter.isStale()) {
+            filter.add(utxo);
+            if (filter.isFull())
+                filter = UTXOFilter.of(H, filterBudget, filter);
+        }
     }
 
     /**
@@ -34,21 +155,221 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        UTXOFilter filter = filter();
+        if (filter == null)
+            return H.get(ut);
+        if (!filter.mightContain(ut))
+            return null;
+        Transaction.Output txOut = H.get(ut);
+        if (txOut == null)
+            filter.falsePositive();
+        return txOut;
+    }
+
+    /**
+     * @return the transaction outputs of {@code utxos}, null for those not in the pool, looked up
+     *         as one batch like {@link #apply}
+     */
+    public Transaction.Output[] getTxOutputs(UTXO[] utxos) {
+        UTXOFilter filter = filter();
+        if (filter == null)
+            return H.getAll(utxos);
+        // only the UTXOs the filter lets through go to the store
+        int[] passed = new int[utxos.length];
+        int n = 0;
+        for (int i = 0; i < utxos.length; i++) {
+            if (filter.mightContain(utxos[i]))
+                passed[n++] = i;
+        }
+        UTXO[] probes = new UTXO[n];
+        for (int j = 0; j < n; j++)
+            probes[j] = utxos[passed[j]];
+        Transaction.Output[] found = H.getAll(probes);
+        Transaction.Output[] txOuts = new Transaction.Output[utxos.length];
+        for (int j = 0; j < n; j++) {
+            if (found[j] == null)
+                filter.falsePositive();
+            txOuts[passed[j]] = found[j];
+        }
+        return txOuts;
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        UTXOFilter filter = filter();
+        if (filter == null)
+            return H.contains(utxo);
+        if (!filter.mightContain(utxo))
+            return false;
+        if (H.contains(utxo))
+            return true;
+        filter.falsePositive();
+        return false;
+    }
+
+    /**
+     * Puts a Bloom filter of at most {@code memoryBytes} in front of the store, so that
+     * {@link #contains} and {@link #getTxOutput} answer most lookups of absent UTXOs without
+     * probing it; 0 removes the filter. The filter is built on the next lookup, in O(n), and
+     * rebuilt as the pool grows. About 10 bits per UTXO give a false positive rate near 1%
+     */
+    public void setFilterBudget(long memoryBytes) {
+        if (memoryBytes < 0)
+            throw new IllegalArgumentException("memoryBytes must not be negative: " + memoryBytes);
+        filterBudget = memoryBytes;
+        filter = null;
+    }
+
+    /** Builds the filter again from the store, dropping the bits of removed UTXOs */
+    public void rebuildFilter() {
+        if (filterBudget > 0)
+            filter = UTXOFilter.of(H, filterBudget, filter);
+    }
+
+    /** @return the filter with its metrics, or null if there is none or it is not built yet */
+    public UTXOFilter getFilter() {
+        return filter;
+    }
+
+    /** Calls {@code action} for every UTXO in the pool and its output, without copying the pool */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    /**
+     * @return the UTXOs in the pool and their outputs, read in place rather than copied like
+     *         {@link #getAllUTXO}. A parallel stream is split by ranges of the backing store. The
+     *         pool must not change while the stream runs
+     */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+        return StreamSupport.stream(H.spliterator(), false);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return the UTXOs in the pool from the transaction with hash {@code txHash}, by index. Takes
+     *         O(log n + k) for k results once the ordered index exists; the first range query
+     *         builds it in O(n log n)
+     */
+    public ArrayList<UTXO> outputsOf(byte[] txHash) {
+        return new ArrayList<UTXO>(ordered().subSet(
+                new UTXO(txHash, Integer.MIN_VALUE), true, new UTXO(txHash, Integer.MAX_VALUE), true));
+    }
+
+    /** @return true if no output of the transaction with hash {@code txHash} is left in the pool */
+    public boolean isFullySpent(byte[] txHash) {
+        UTXO first = ordered().ceiling(new UTXO(txHash, Integer.MIN_VALUE));
+        return first == null || UTXO.HASH_ORDER.compare(first, new UTXO(txHash, Integer.MAX_VALUE)) > 0;
+    }
+
+    /**
+     * @return the UTXOs in the pool whose transaction hash starts with {@code prefix}, in
+     *         {@link UTXO#HASH_ORDER}. Takes O(log n + k) like {@link #outputsOf}
+     */
+    public ArrayList<UTXO> utxosWithHashPrefix(byte[] prefix) {
+        ArrayList<UTXO> matches = new ArrayList<UTXO>();
+        // a prefix sorts before all hashes extending it
+        for (UTXO ut : ordered().tailSet(new UTXO(prefix, Integer.MIN_VALUE), true)) {
+            if (!ut.hasHashPrefix(prefix))
+                break;
+            matches.add(ut);
+        }
+        return matches;
+    }
+
+    /**
+     * @return the UTXOs in the pool locked to {@code address}. Takes O(k) for k results once the
+     *         address index exists; the first address query builds it in O(n)
+     */
+    public ArrayList<UTXO> utxosOf(PublicKey address) {
+        AddressIndex.Holdings holdings = addresses().get(address);
+        return holdings == null ? new ArrayList<UTXO>() : new ArrayList<UTXO>(holdings.utxos);
+    }
+
+    /**
+     * @return the total value of the UTXOs in the pool locked to {@code address}, in base units.
+     *         Takes O(1) once the address index exists, like {@link #utxosOf}
+     * @throws ArithmeticException if the UTXOs of some address add up past {@link Long#MAX_VALUE},
+     *         as then the index cannot be built; so does {@link #utxosOf}
+     */
+    public long balanceOf(PublicKey address) {
+        AddressIndex.Holdings holdings = addresses().get(address);
+        return holdings == null ? 0 : holdings.balance;
+    }
+
+    /**
+     * Writes the UTXOs of the pool to {@code file} as a {@link UTXOSnapshot}, replacing the file
+     * only once the snapshot is complete
+     */
+    public void snapshotTo(Path file) throws IOException {
+        UTXOSnapshot.write(H, file);
+    }
+
+    /** @return a pool holding the UTXOs of the snapshot in {@code file}, read in full with block reads */
+    public static UTXOPool loadFrom(Path file) throws IOException {
+        return loadFrom(file, new HamtUTXOStore());
+    }
+
+    /** @return a pool like {@link #loadFrom(Path)}, backed by {@code store}, which should be empty */
+    public static UTXOPool loadFrom(Path file, UTXOStore store) throws IOException {
+        UTXOSnapshot.read(file, store);
+        return new UTXOPool(store);
+    }
+
+    /**
+     * @return a pool over the snapshot in {@code file} that is mapped instead of read, so it opens in
+     *         time independent of its size. Changes are kept in the returned overlay; the file must
+     *         not change while the pool is in use, and the overlay cannot be committed
+     */
+    public static OverlayUTXOPool mapFrom(Path file) throws IOException {
+        return new OverlayUTXOPool(new UTXOPool(new SnapshotUTXOStore(file)));
+    }
+
+    /** @return the store backing the pool, for pools layered on top of this one */
+    UTXOStore store() {
+        return H;
+    }
+
+    /** Drops the indexes built from the store, after the store was changed other than through the pool */
+    void storeChanged() {
+        ordered = null;
+        addresses = null;
+        // the change may have brought back UTXOs the filter never saw
+        if (filter != null)
+            filter.markStale();
+    }
+
+    private TreeSet<UTXO> ordered() {
+        if (ordered == null) {
+            ordered = new TreeSet<UTXO>(UTXO.HASH_ORDER);
+            H.forEach((ut, txOut) -> ordered.add(ut));
+        }
+        return ordered;
+    }
+
+    private AddressIndex addresses() {
+        if (addresses == null) {
+            AddressIndex index = new AddressIndex();
+            H.forEach(index::add);
+            addresses = index;
+        }
+        return addresses;
+    }
+
+    private UTXOFilter filter() {
+        if (filterBudget > 0 && (filter == null || filter.isStale()))
+            filter = UTXOFilter.of(H, filterBudget, filter);
+        return filter;
+    }
 }
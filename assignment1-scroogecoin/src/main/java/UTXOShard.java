@@ -0,0 +1,31 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One partition of a {@link ShardedUTXOStore}, in this JVM or behind a {@link UTXOShardServer}.
+ * The calls take whole batches, so a shard in another process costs one round trip per batch.
+ * The store makes all calls of a shard and of its copies from a single thread.
+ */
+public interface UTXOShard extends Closeable {
+
+    /** @return the outputs of {@code utxos}, null for those not in the shard */
+    Transaction.Output[] get(UTXO[] utxos) throws IOException;
+
+    /**
+     * Removes {@code removed}, then maps each of {@code added} to the output at the same index
+     *
+     * @return the number of UTXOs in the shard afterwards
+     */
+    int apply(UTXO[] removed, UTXO[] added, Transaction.Output[] outputs) throws IOException;
+
+    /** @return the number of UTXOs in the shard */
+    int size() throws IOException;
+
+    /** @return all UTXOs in the shard with their outputs */
+    List<Map.Entry<UTXO, Transaction.Output>> entries() throws IOException;
+
+    /** @return an independent shard with the same contents, in the same place as this one */
+    UTXOShard copy() throws IOException;
+}
@@ -0,0 +1,166 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves {@link RemoteUTXOShard}s over loopback sockets, so the shards of a
+ * {@link ShardedUTXOPool} can live in other JVMs with heaps of their own. Run one per shard:
+ * {@code java -cp target/classes UTXOShardServer [port]}; it prints the port it listens on.
+ *
+ * Every connection starts with one empty shard, number 0, kept in a {@link HamtUTXOStore} so
+ * copies are O(1) on the server as well. The shards of a connection are dropped when it closes.
+ * Connections are served each on its own thread and share nothing. A request that fails, e.g. on
+ * an unknown shard, is answered with an error and the connection keeps serving.
+ */
+public class UTXOShardServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final AtomicInteger shardCount = new AtomicInteger();
+
+    /** Starts serving on {@code port} of the loopback interface, any free port if it is 0 */
+    public UTXOShardServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "utxo-shard-server-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** @return the port the server listens on */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** @return the address to {@link RemoteUTXOShard#connect} to */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), getPort());
+    }
+
+    /** @return the number of shards held for all open connections, copies included */
+    public int getShardCount() {
+        return shardCount.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> serve(socket), "utxo-shard-connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // closed, or a connection failed before it was accepted
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Map<Integer, LocalUTXOShard> shards = new HashMap<>();
+        shards.put(0, new LocalUTXOShard());
+        shardCount.incrementAndGet();
+        int nextId = 1;
+        try (ShardChannel channel = new ShardChannel(socket)) {
+            while (true) {
+                byte op = channel.in.readByte();
+                int id = channel.in.readInt();
+                // read the whole request first, so an error leaves the connection usable
+                UTXO[] utxos = null;
+                UTXO[] added = null;
+                Transaction.Output[] outputs = null;
+                if (op == ShardChannel.GET || op == ShardChannel.APPLY) {
+                    utxos = channel.readUTXOs();
+                }
+                if (op == ShardChannel.APPLY) {
+                    added = new UTXO[channel.in.readInt()];
+                    outputs = new Transaction.Output[added.length];
+                    for (int i = 0; i < added.length; i++) {
+                        added[i] = channel.readUTXO();
+                        outputs[i] = channel.readOutput();
+                    }
+                }
+                channel.begin();
+                try {
+                    LocalUTXOShard shard = shards.get(id);
+                    if (shard == null) {
+                        throw new IllegalArgumentException("No such shard: " + id);
+                    }
+                    switch (op) {
+                        case ShardChannel.GET:
+                            Transaction.Output[] found = shard.get(utxos);
+                            channel.out.writeByte(ShardChannel.OK);
+                            for (Transaction.Output output : found) {
+                                channel.out.writeBoolean(output != null);
+                                if (output != null) {
+                                    channel.writeOutput(output);
+                                }
+                            }
+                            break;
+                        case ShardChannel.APPLY:
+                            int size = shard.apply(utxos, added, outputs);
+                            channel.out.writeByte(ShardChannel.OK);
+                            channel.out.writeInt(size);
+                            break;
+                        case ShardChannel.SIZE:
+                            channel.out.writeByte(ShardChannel.OK);
+                            channel.out.writeInt(shard.size());
+                            break;
+                        case ShardChannel.ENTRIES:
+                            List<Map.Entry<UTXO, Transaction.Output>> entries = shard.entries();
+                            channel.out.writeByte(ShardChannel.OK);
+                            channel.out.writeInt(entries.size());
+                            for (Map.Entry<UTXO, Transaction.Output> e : entries) {
+                                channel.writeUTXO(e.getKey());
+                                channel.writeOutput(e.getValue());
+                            }
+                            break;
+                        case ShardChannel.COPY:
+                            shards.put(nextId, shard.copy());
+                            shardCount.incrementAndGet();
+                            channel.out.writeByte(ShardChannel.OK);
+                            channel.out.writeInt(nextId++);
+                            break;
+                        case ShardChannel.RELEASE:
+                            shards.remove(id);
+                            shardCount.decrementAndGet();
+                            channel.out.writeByte(ShardChannel.OK);
+                            break;
+                        default:
+                            // the length of the request is unknown, the connection cannot go on
+                            throw new IOException("Unknown shard operation: " + op);
+                    }
+                } catch (RuntimeException e) {
+                    // the response is sent whole, so nothing of the failed one went out yet
+                    channel.begin();
+                    channel.out.writeByte(ShardChannel.ERROR);
+                    channel.out.writeUTF(e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+                channel.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client went away or sent a request that could not be read; it sees the
+            // connection close
+        } finally {
+            shardCount.addAndGet(-shards.size());
+        }
+    }
+
+    /** Stops accepting connections; the open ones are served until their clients close them */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        UTXOShardServer server = new UTXOShardServer(port);
+        System.out.println("listening on " + server.getPort());
+        server.acceptor.join();
+    }
+}
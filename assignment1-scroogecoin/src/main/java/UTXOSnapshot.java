@@ -0,0 +1,276 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of a UTXO set, written by {@link UTXOPool#snapshotTo} and read back by
+ * {@link UTXOPool#loadFrom} or, lazily, by {@link SnapshotUTXOStore}.
+ *
+ * <pre>
+ * file:   magic:int | version:int | keyCount:int | count:int | otherCount:int
+ *         | key* | other* | record*
+ * key:    scheme:byte | [algorithmLength:int | algorithm] | length:int | X.509 encoding
+ * other:  hashLength:int | hash | index:int | keyRef:int | value:long
+ * record: hash:32 bytes | index:int | keyRef:int | value:long
+ * </pre>
+ *
+ * The {@code count} records of the UTXOs with a 32-byte hash fill the rest of the file with a
+ * fixed width of {@value #RECORD} bytes, sorted in {@link UTXO#HASH_ORDER}, so they can be read
+ * sequentially in large blocks or binary-searched in place. The few UTXOs whose hash has another
+ * length come before them. {@code keyRef} is 0 for a null address and {@code i + 1} for key
+ * {@code i}; {@code scheme} is the {@link SignatureScheme#getCode code} of the key, or 0 for a key
+ * of no scheme, which is followed by the UTF-8 name of its key algorithm, see {@link KeyEncoding}.
+ * Numbers are big-endian and values are in base units.
+ */
+public class UTXOSnapshot {
+
+    public static final int VERSION = 1;
+
+    static final int MAGIC = 0x55545853;
+    static final int RECORD = 48;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** The part of a snapshot before the fixed-width records */
+    static final class Header {
+        PublicKey[] keys;
+        int count;
+        Map<UTXO, Transaction.Output> other;
+        /** file offset of the first record */
+        long recordsOffset;
+
+        Transaction.Output output(int keyRef, long value) {
+            return Transaction.outputOfUnits(value, keyRef == 0 ? null : keys[keyRef - 1]);
+        }
+    }
+
+    private UTXOSnapshot() {
+    }
+
+    /**
+     * Writes the contents of {@code store} to {@code file}. The snapshot is written to a temporary
+     * file next to it and moved into place at the end, so an existing snapshot is only replaced by
+     * a complete one.
+     *
+     * @throws IllegalArgumentException if an address has no X.509 encoding
+     */
+    static void write(UTXOStore store, Path file) throws IOException {
+        List<Map.Entry<UTXO, Transaction.Output>> unsorted = new ArrayList<>(store.size());
+        List<Map.Entry<UTXO, Transaction.Output>> other = new ArrayList<>();
+        store.forEach((utxo, output) ->
+                (utxo.hasInlineHash() ? unsorted : other).add(new AbstractMap.SimpleImmutableEntry<>(utxo, output)));
+        List<Map.Entry<UTXO, Transaction.Output>> inline = sortByHash(unsorted);
+        other.sort(Map.Entry.comparingByKey(UTXO.HASH_ORDER));
+
+        // key hash codes are computed from the encoding on every call, look up by identity first
+        Map<PublicKey, Integer> keyRefs = new IdentityHashMap<>();
+        Map<PublicKey, Integer> equalKeyRefs = new HashMap<>();
+        List<PublicKey> keys = new ArrayList<>();
+        for (List<Map.Entry<UTXO, Transaction.Output>> entries : Arrays.asList(inline, other)) {
+            for (Map.Entry<UTXO, Transaction.Output> e : entries) {
+                PublicKey address = e.getValue().address;
+                if (address == null || keyRefs.containsKey(address)) {
+                    continue;
+                }
+                Integer keyRef = equalKeyRefs.get(address);
+                if (keyRef == null) {
+                    keys.add(address);
+                    keyRef = keys.size();
+                    equalKeyRefs.put(address, keyRef);
+                }
+                keyRefs.put(address, keyRef);
+            }
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            out.putInt(MAGIC).putInt(VERSION).putInt(keys.size()).putInt(inline.size()).putInt(other.size());
+            for (PublicKey key : keys) {
+                KeyEncoding encoding = KeyEncoding.of(key);
+                if (encoding.algorithm != null) {
+                    ensure(channel, out, 5 + encoding.algorithm.length);
+                    out.put((byte) encoding.code).putInt(encoding.algorithm.length).put(encoding.algorithm);
+                } else {
+                    ensure(channel, out, 1);
+                    out.put((byte) encoding.code);
+                }
+                ensure(channel, out, 4 + encoding.encoded.length);
+                out.putInt(encoding.encoded.length).put(encoding.encoded);
+            }
+            for (Map.Entry<UTXO, Transaction.Output> e : other) {
+                byte[] hash = e.getKey().getTxHash();
+                ensure(channel, out, 4 + hash.length + 16);
+                out.putInt(hash.length).put(hash);
+                putTail(out, e.getKey(), e.getValue(), keyRefs);
+            }
+            for (Map.Entry<UTXO, Transaction.Output> e : inline) {
+                ensure(channel, out, RECORD);
+                UTXO utxo = e.getKey();
+                out.putLong(utxo.hashWord(0)).putLong(utxo.hashWord(1)).putLong(utxo.hashWord(2)).putLong(utxo.hashWord(3));
+                putTail(out, utxo, e.getValue(), keyRefs);
+            }
+            flush(channel, out);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sorts entries with 32-byte hashes in {@link UTXO#HASH_ORDER}: a counting pass distributes
+     * them by the top 16 bits of the hash, then each bucket is sorted on its own. Transaction
+     * hashes are uniform, so the buckets are small and sort in cache, several times faster than
+     * one comparison sort over millions of entries.
+     */
+    private static List<Map.Entry<UTXO, Transaction.Output>> sortByHash(List<Map.Entry<UTXO, Transaction.Output>> entries) {
+        int[] start = new int[(1 << 16) + 1];
+        for (Map.Entry<UTXO, Transaction.Output> e : entries) {
+            start[(int) (e.getKey().hashWord(0) >>> 48) + 1]++;
+        }
+        for (int b = 1; b < start.length; b++) {
+            start[b] += start[b - 1];
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Map.Entry<UTXO, Transaction.Output>[] sorted = new Map.Entry[entries.size()];
+        int[] next = Arrays.copyOf(start, start.length - 1);
+        for (Map.Entry<UTXO, Transaction.Output> e : entries) {
+            sorted[next[(int) (e.getKey().hashWord(0) >>> 48)]++] = e;
+        }
+        for (int b = 0; b + 1 < start.length; b++) {
+            if (start[b + 1] - start[b] > 1) {
+                Arrays.sort(sorted, start[b], start[b + 1], Map.Entry.comparingByKey(UTXO.HASH_ORDER));
+            }
+        }
+        return Arrays.asList(sorted);
+    }
+
+    private static void putTail(ByteBuffer out, UTXO utxo, Transaction.Output output, Map<PublicKey, Integer> keyRefs) {
+        out.putInt(utxo.getIndex());
+        out.putInt(output.address == null ? 0 : keyRefs.get(output.address));
+        out.putLong(output.value);
+    }
+
+    /** Writes out the buffer if fewer than {@code bytes} are left in it */
+    private static void ensure(FileChannel channel, ByteBuffer out, int bytes) throws IOException {
+        if (out.remaining() < bytes) {
+            flush(channel, out);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /** Reads the whole snapshot in {@code file} into {@code store} with sequential block reads */
+    static void read(Path file, UTXOStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            in.limit(0);
+            Header header = readHeader(channel, in);
+            header.other.forEach(store::put);
+            for (int i = 0; i < header.count; i++) {
+                fill(channel, in, RECORD);
+                UTXO utxo = new UTXO(in.getLong(), in.getLong(), in.getLong(), in.getLong(), in.getInt());
+                store.put(utxo, header.output(in.getInt(), in.getLong()));
+            }
+        }
+    }
+
+    /**
+     * Reads everything before the records from {@code channel}, through {@code in}, which must
+     * start out empty.
+     *
+     * @throws IOException if the file is not a snapshot or is truncated
+     */
+    static Header readHeader(FileChannel channel, ByteBuffer in) throws IOException {
+        long start = channel.position();
+        fill(channel, in, 20);
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a UTXO snapshot");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported UTXO snapshot version: " + version);
+        }
+        Header header = new Header();
+        header.keys = new PublicKey[in.getInt()];
+        header.count = in.getInt();
+        int otherCount = in.getInt();
+        for (int k = 0; k < header.keys.length; k++) {
+            fill(channel, in, 5);
+            int code = in.get();
+            byte[] algorithm = null;
+            if (code == KeyEncoding.OTHER) {
+                algorithm = readBytes(channel, in, in.getInt());
+                fill(channel, in, 4);
+            }
+            byte[] encoded = readBytes(channel, in, in.getInt());
+            header.keys[k] = KeyEncoding.decode(code, algorithm, encoded);
+            if (header.keys[k] == null) {
+                throw new IOException("Unknown key scheme in UTXO snapshot");
+            }
+        }
+        header.other = new HashMap<>();
+        for (int i = 0; i < otherCount; i++) {
+            fill(channel, in, 4);
+            byte[] hash = readBytes(channel, in, in.getInt());
+            fill(channel, in, 16);
+            UTXO utxo = new UTXO(hash, in.getInt());
+            header.other.put(utxo, header.output(in.getInt(), in.getLong()));
+        }
+        header.recordsOffset = channel.position() - in.remaining() - start;
+        if (channel.size() - start - header.recordsOffset != (long) header.count * RECORD) {
+            throw new IOException("Truncated UTXO snapshot");
+        }
+        return header;
+    }
+
+    private static byte[] readBytes(FileChannel channel, ByteBuffer in, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Corrupt UTXO snapshot");
+        }
+        byte[] bytes = new byte[length];
+        for (int done = 0; done < length; ) {
+            fill(channel, in, 1);
+            int n = Math.min(in.remaining(), length - done);
+            in.get(bytes, done, n);
+            done += n;
+        }
+        return bytes;
+    }
+
+    /** Refills {@code in} from {@code channel} until at least {@code bytes} are available */
+    private static void fill(FileChannel channel, ByteBuffer in, int bytes) throws IOException {
+        if (in.remaining() >= bytes) {
+            return;
+        }
+        in.compact();
+        while (in.position() < bytes) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("Truncated UTXO snapshot");
+            }
+        }
+        in.flip();
+    }
+}
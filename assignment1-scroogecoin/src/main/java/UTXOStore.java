@@ -0,0 +1,62 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/**
+ * The map from unspent outputs to their transaction outputs a {@link UTXOPool} is backed by.
+ * Implementations trade memory, copy cost and concurrency differently; the pool adds the
+ * secondary indexes on top.
+ */
+public interface UTXOStore {
+
+    /** @return the output of {@code utxo}, or null if it is not in the store */
+    Transaction.Output get(UTXO utxo);
+
+    /** @return true if {@code utxo} is in the store */
+    boolean contains(UTXO utxo);
+
+    /** Maps {@code utxo} to {@code output}, replacing any previous mapping */
+    void put(UTXO utxo, Transaction.Output output);
+
+    /** Removes {@code utxo}, if present */
+    void remove(UTXO utxo);
+
+    /**
+     * @return the outputs of {@code utxos}, null for those not in the store. Stores that pay per
+     *         call, such as {@link ShardedUTXOStore}, answer the whole batch at once
+     */
+    default Transaction.Output[] getAll(UTXO[] utxos) {
+        Transaction.Output[] outputs = new Transaction.Output[utxos.length];
+        for (int i = 0; i < utxos.length; i++) {
+            outputs[i] = get(utxos[i]);
+        }
+        return outputs;
+    }
+
+    /** Removes {@code removed} and then puts {@code added}, in one batch like {@link #getAll} */
+    default void apply(Collection<UTXO> removed, Map<UTXO, Transaction.Output> added) {
+        for (UTXO utxo : removed) {
+            remove(utxo);
+        }
+        for (Map.Entry<UTXO, Transaction.Output> e : added.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** Calls {@code action} for every UTXO and its output, in no particular order */
+    void forEach(BiConsumer<UTXO, Transaction.Output> action);
+
+    /**
+     * @return a spliterator over the UTXOs and outputs of the store that reads them in place and
+     *         splits without copying, so the parts can be processed in parallel. The store must not
+     *         change while it is in use, and the entries must not be changed
+     */
+    Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator();
+
+    /** @return an independent store with the same contents */
+    UTXOStore copy();
+}
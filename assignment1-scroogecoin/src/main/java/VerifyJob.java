@@ -0,0 +1,33 @@
+import java.security.PublicKey;
+
+/** A single signature check: {@code signature} over the signed data under {@code pubKey} */
+public class VerifyJob {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final PublicKey pubKey;
+    private final SignData signData;
+    private final byte[] signature;
+
+    public VerifyJob(PublicKey pubKey, byte[] message, byte[] signature) {
+        this(pubKey, new SignData(message, EMPTY), signature);
+    }
+
+    public VerifyJob(PublicKey pubKey, SignData signData, byte[] signature) {
+        this.pubKey = pubKey;
+        this.signData = signData;
+        this.signature = signature;
+    }
+
+    public PublicKey getPubKey() {
+        return pubKey;
+    }
+
+    public SignData getSignData() {
+        return signData;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+}
@@ -0,0 +1,96 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Random;
+
+/**
+ * Measures signature verification throughput over one epoch of inputs. Not a unit test, run it
+ * directly: {@code java -cp target/classes:target/test-classes CryptoBenchmark [inputs]}.
+ *
+ * A limited number of distinct signatures is produced up front (signing is much slower than
+ * verifying) and cycled through the epoch; every {@code INPUTS_PER_KEY} consecutive inputs share
+ * a key, like a transaction spending several outputs of the same owner.
+ */
+public class CryptoBenchmark {
+
+    private static final int DEFAULT_INPUTS = 100_000;
+    private static final int KEYS = 16;
+    private static final int SIGNATURES_PER_KEY = 64;
+    private static final int INPUTS_PER_KEY = 4;
+    private static final int ROUNDS = 3;
+
+    private final PublicKey[] keys = new PublicKey[KEYS];
+    private final byte[][][] messages = new byte[KEYS][SIGNATURES_PER_KEY][];
+    private final byte[][][] signatures = new byte[KEYS][SIGNATURES_PER_KEY][];
+
+    public static void main(String[] args) throws Exception {
+        int inputs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_INPUTS;
+        CryptoBenchmark benchmark = new CryptoBenchmark();
+        benchmark.setup();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            report("per-call Signature.getInstance", inputs, benchmark.run(inputs, true));
+            report("thread-confined SignatureVerifier", inputs, benchmark.run(inputs, false));
+        }
+    }
+
+    private void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        Random random = new Random(42);
+        for (int k = 0; k < KEYS; k++) {
+            KeyPair pair = generator.generateKeyPair();
+            keys[k] = pair.getPublic();
+            for (int s = 0; s < SIGNATURES_PER_KEY; s++) {
+                // roughly the size of getRawDataToSign for a small transaction
+                byte[] message = new byte[36 + 2 * (8 + 294)];
+                random.nextBytes(message);
+                messages[k][s] = message;
+                signatures[k][s] = sign(pair.getPrivate(), message);
+            }
+        }
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] message) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(key);
+        sig.update(message);
+        return sig.sign();
+    }
+
+    /** @return elapsed nanoseconds to verify {@code inputs} signatures */
+    private long run(int inputs, boolean legacy) throws Exception {
+        int valid = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < inputs; i++) {
+            int k = (i / INPUTS_PER_KEY) % KEYS;
+            int s = i % SIGNATURES_PER_KEY;
+            boolean ok = legacy
+                    ? legacyVerify(keys[k], messages[k][s], signatures[k][s])
+                    : Crypto.verifySignature(keys[k], messages[k][s], signatures[k][s]);
+            if (ok) {
+                valid++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (valid != inputs) {
+            throw new IllegalStateException("only " + valid + " of " + inputs + " signatures verified");
+        }
+        return elapsed;
+    }
+
+    /** The verification path as it was before {@link SignatureVerifier} */
+    private static boolean legacyVerify(PublicKey pubKey, byte[] message, byte[] signature) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initVerify(pubKey);
+        sig.update(message);
+        return sig.verify(signature);
+    }
+
+    private static void report(String name, int inputs, long nanos) {
+        System.out.printf("%-36s %8d inputs %10.1f ms %12.0f verifications/sec%n",
+                name, inputs, nanos / 1e6, inputs * 1e9 / nanos);
+    }
+}
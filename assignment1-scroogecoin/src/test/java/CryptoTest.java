@@ -0,0 +1,104 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CryptoTest {
+
+    private static KeyPair[] KEYS;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        KEYS = new KeyPair[3];
+        for (int k = 0; k < KEYS.length; k++) {
+            KEYS[k] = generator.generateKeyPair();
+        }
+    }
+
+    private static byte[] sign(KeyPair keys, byte[] message) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(keys.getPrivate());
+        sig.update(message);
+        return sig.sign();
+    }
+
+    /**
+     * Signs {@code count} messages, spread over the keys, and corrupts every seventh signature,
+     * then checks {@link Crypto#verifyBatch} flags exactly the intact ones
+     */
+    private static void checkBatch(int count) throws Exception {
+        List<VerifyJob> jobs = new ArrayList<>(count);
+        BitSet expected = new BitSet();
+        for (int i = 0; i < count; i++) {
+            KeyPair keys = KEYS[i % KEYS.length];
+            byte[] message = ("input " + i).getBytes();
+            byte[] signature = sign(keys, message);
+            if (i % 7 == 3) {
+                signature[signature.length / 2] ^= 1;
+            } else {
+                expected.set(i);
+            }
+            jobs.add(new VerifyJob(keys.getPublic(), message, signature));
+        }
+
+        BitSet valid = Crypto.verifyBatch(jobs);
+        assertEquals(expected, valid);
+    }
+
+    @Test
+    public void testVerifyBatchBelowThreshold() throws Exception {
+        checkBatch(Crypto.PARALLEL_THRESHOLD - 1);
+    }
+
+    @Test
+    public void testVerifyBatchAboveThreshold() throws Exception {
+        checkBatch(Crypto.PARALLEL_THRESHOLD * 3 + 5);
+    }
+
+    @Test
+    public void testVerifyEcdsaSignature() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        KeyPair keys = generator.generateKeyPair();
+        assertEquals(SignatureScheme.ECDSA, SignatureScheme.of(keys.getPublic()));
+
+        byte[] message = "spend".getBytes();
+        Signature sig = Signature.getInstance(SignatureScheme.ECDSA.getAlgorithm());
+        sig.initSign(keys.getPrivate());
+        sig.update(message);
+        byte[] signature = sig.sign();
+
+        assertTrue(Crypto.verifySignature(keys.getPublic(), message, signature));
+        assertFalse(Crypto.verifySignature(keys.getPublic(), "spenc".getBytes(), signature));
+        // switching schemes on the same thread re-initializes the context
+        byte[] rsaSignature = sign(KEYS[0], message);
+        assertTrue(Crypto.verifySignature(KEYS[0].getPublic(), message, rsaSignature));
+        assertTrue(Crypto.verifySignature(keys.getPublic(), message, signature));
+    }
+
+    @Test
+    public void testUnsupportedKeyType() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(1024);
+        KeyPair keys = generator.generateKeyPair();
+        byte[] message = "spend".getBytes();
+        Signature sig = Signature.getInstance("SHA256withDSA");
+        sig.initSign(keys.getPrivate());
+        sig.update(message);
+        assertFalse(Crypto.verifySignature(keys.getPublic(), message, sig.sign()));
+    }
+
+    @Test
+    public void testVerifyEmptyBatch() {
+        assertTrue(Crypto.verifyBatch(new ArrayList<>()).isEmpty());
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The original boxing implementation of {@link Transaction#getRawTx} and
+ * {@link Transaction#getRawDataToSign}, kept as the reference the current encoding must match
+ * byte for byte and as the baseline for {@link TransactionBenchmark}.
+ */
+public class LegacyTransactionEncoding {
+
+    public static byte[] getRawDataToSign(Transaction tx, int index) {
+        // ith input and all outputs
+        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        if (index > tx.numInputs())
+            return null;
+        Transaction.Input in = tx.getInput(index);
+        byte[] prevTxHash = in.prevTxHash;
+        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+        b.putInt(in.outputIndex);
+        byte[] outputIndex = b.array();
+        if (prevTxHash != null)
+            for (int i = 0; i < prevTxHash.length; i++)
+                sigData.add(prevTxHash[i]);
+        for (int i = 0; i < outputIndex.length; i++)
+            sigData.add(outputIndex[i]);
+        for (Transaction.Output op : tx.getOutputs()) {
+            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
+            bo.putDouble(Transaction.toCoins(op.value));
+            byte[] value = bo.array();
+            byte[] addressBytes = op.address.getEncoded();
+            for (int i = 0; i < value.length; i++)
+                sigData.add(value[i]);
+
+            for (int i = 0; i < addressBytes.length; i++)
+                sigData.add(addressBytes[i]);
+        }
+        byte[] sigD = new byte[sigData.size()];
+        int i = 0;
+        for (Byte sb : sigData)
+            sigD[i++] = sb;
+        return sigD;
+    }
+
+    public static byte[] getRawTx(Transaction tx) {
+        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        for (Transaction.Input in : tx.getInputs()) {
+            byte[] prevTxHash = in.prevTxHash;
+            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+            b.putInt(in.outputIndex);
+            byte[] outputIndex = b.array();
+            byte[] signature = in.signature;
+            if (prevTxHash != null)
+                for (int i = 0; i < prevTxHash.length; i++)
+                    rawTx.add(prevTxHash[i]);
+            for (int i = 0; i < outputIndex.length; i++)
+                rawTx.add(outputIndex[i]);
+            if (signature != null)
+                for (int i = 0; i < signature.length; i++)
+                    rawTx.add(signature[i]);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
+            b.putDouble(Transaction.toCoins(op.value));
+            byte[] value = b.array();
+            byte[] addressBytes = op.address.getEncoded();
+            for (int i = 0; i < value.length; i++) {
+                rawTx.add(value[i]);
+            }
+            for (int i = 0; i < addressBytes.length; i++) {
+                rawTx.add(addressBytes[i]);
+            }
+
+        }
+        byte[] raw = new byte[rawTx.size()];
+        int i = 0;
+        for (Byte b : rawTx)
+            raw[i++] = b;
+        return raw;
+    }
+}
@@ -0,0 +1,89 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Random;
+
+/**
+ * Cold versus warm lookup latency of {@link MappedUTXOStore}. Not a unit test, run it directly;
+ * the heap only needs to hold the cache, the records live in the file:
+ * {@code java -Xmx1g -cp target/classes:target/test-classes MappedUTXOStoreBenchmark [size] [cache] [directory]}.
+ *
+ * The store is filled with {@code size} UTXOs (10M by default; 100M needs about 6.4 GB of disk)
+ * with a cache of {@code cache} outputs (1M by default), in {@code directory} (the temporary-file
+ * directory by default). Cold lookups are spread uniformly over all UTXOs, so nearly all of them
+ * miss the cache and read the file. Warm lookups repeat a hot set half the size of the cache,
+ * measured on the second pass, so they are answered from the heap. While the file fits in the
+ * page cache, cold lookups measure page-cache reads; to measure the disk, use a file larger than
+ * memory or drop the page cache ({@code echo 3 > /proc/sys/vm/drop_caches}) after the fill.
+ */
+public class MappedUTXOStoreBenchmark {
+
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int cacheCapacity = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        Path directory = args.length > 2 ? Paths.get(args[2]) : Paths.get(System.getProperty("java.io.tmpdir"));
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey[] keys = new PublicKey[16];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+
+        MappedUTXOStore store = new MappedUTXOStore(directory, size, cacheCapacity);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                store.put(utxo(i), Transaction.outputOfUnits(i, keys[i & 15]));
+            }
+            System.out.printf("filled %,d entries in %.1f s, mapped %,d MB%n", size,
+                    (System.nanoTime() - start) / 1e9, store.mappedBytes() >> 20);
+
+            Random random = new Random(7);
+            UTXO[] cold = new UTXO[LOOKUPS];
+            for (int i = 0; i < cold.length; i++) {
+                cold[i] = utxo(random.nextInt(size));
+            }
+            UTXO[] warm = new UTXO[LOOKUPS];
+            int hot = Math.max(1, Math.min(size, cacheCapacity / 2));
+            for (int i = 0; i < warm.length; i++) {
+                warm[i] = utxo(random.nextInt(hot));
+            }
+
+            report("cold", store, cold);
+            report("warm (first pass)", store, warm);
+            report("warm", store, warm);
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void report(String name, MappedUTXOStore store, UTXO[] probes) {
+        long hits = store.hits();
+        long start = System.nanoTime();
+        int found = 0;
+        for (UTXO probe : probes) {
+            if (store.get(probe) != null) {
+                found++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%-18s %8.1f ns/lookup %6.1f%% cache hits (%d found)%n", name,
+                (double) nanos / probes.length, 100.0 * (store.hits() - hits) / probes.length, found);
+    }
+
+    /** @return the UTXO number {@code i}, with a hash mixed from {@code i} */
+    private static UTXO utxo(int i) {
+        return new UTXO(mix(i), mix(i + 0x1000000000L), mix(i + 0x2000000000L), mix(i + 0x3000000000L), i & 3);
+    }
+
+    private static long mix(long z) {
+        // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Throughput of a {@link ShardedUTXOPool} with shards in this JVM and in other JVMs. Not a unit
+ * test, run it directly:
+ * {@code java -cp target/classes:target/test-classes ShardedUTXOPoolBenchmark [shards] [size] [batch]}.
+ *
+ * The pool is filled with {@code size} UTXOs (1M by default) over {@code shards} shards (4 by
+ * default), in batches of {@code batch} (1000 by default) through {@link UTXOPool#apply}. Then
+ * it looks up 1M present UTXOs in batches through {@link UTXOPool#getTxOutputs}, and 10K one at
+ * a time, which costs a round trip each for remote shards. The remote shards are
+ * {@link UTXOShardServer}s started as child JVMs on the class path of this one.
+ */
+public class ShardedUTXOPoolBenchmark {
+
+    private static final int LOOKUPS = 1_000_000;
+    private static final int SINGLE_LOOKUPS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int batch = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey[] keys = new PublicKey[16];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+
+        try (ShardedUTXOPool pool = ShardedUTXOPool.local(count)) {
+            run("local", pool, size, batch, keys);
+        }
+
+        List<Process> servers = new ArrayList<>();
+        try {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            for (int s = 0; s < count; s++) {
+                Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "UTXOShardServer").redirectErrorStream(true).start();
+                servers.add(server);
+                String line = new BufferedReader(new InputStreamReader(server.getInputStream())).readLine();
+                addresses.add(new InetSocketAddress("localhost", Integer.parseInt(line.substring("listening on ".length()))));
+            }
+            try (ShardedUTXOPool pool = ShardedUTXOPool.connect(addresses)) {
+                run("remote", pool, size, batch, keys);
+            }
+        } finally {
+            for (Process server : servers) {
+                server.destroy();
+            }
+        }
+    }
+
+    private static void run(String name, ShardedUTXOPool pool, int size, int batch, PublicKey[] keys) {
+        long start = System.nanoTime();
+        for (int first = 0; first < size; first += batch) {
+            Map<UTXO, Transaction.Output> added = new HashMap<>();
+            for (int i = first; i < Math.min(size, first + batch); i++) {
+                added.put(utxo(i), Transaction.outputOfUnits(i, keys[i & 15]));
+            }
+            pool.apply(Collections.<UTXO>emptyList(), added);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-7s %d shards: apply  %10.0f UTXOs/s in batches of %d%n",
+                name, pool.getShardCount(), size / seconds, batch);
+
+        Random random = new Random(3);
+        start = System.nanoTime();
+        int found = 0;
+        for (int done = 0; done < LOOKUPS; done += batch) {
+            UTXO[] probes = new UTXO[batch];
+            for (int i = 0; i < batch; i++) {
+                probes[i] = utxo(random.nextInt(size));
+            }
+            for (Transaction.Output output : pool.getTxOutputs(probes)) {
+                found += output != null ? 1 : 0;
+            }
+        }
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-7s %d shards: lookup %10.0f UTXOs/s in batches of %d (%d found)%n",
+                name, pool.getShardCount(), LOOKUPS / seconds, batch, found);
+
+        start = System.nanoTime();
+        for (int i = 0; i < SINGLE_LOOKUPS; i++) {
+            pool.getTxOutput(utxo(random.nextInt(size)));
+        }
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-7s %d shards: lookup %10.0f UTXOs/s one at a time%n",
+                name, pool.getShardCount(), SINGLE_LOOKUPS / seconds);
+    }
+
+    /** @return the UTXO number {@code i}, with a hash mixed from {@code i} */
+    private static UTXO utxo(int i) {
+        return new UTXO(mix(i), mix(i + 0x1000000000L), mix(i + 0x2000000000L), mix(i + 0x3000000000L), i & 3);
+    }
+
+    private static long mix(long z) {
+        // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+
+    private static PublicKey ALICE;
+    private static PublicKey BOB;
+
+    private static final byte[] MESSAGE = "message".getBytes();
+    private static final byte[] SIGNATURE = {1, 2, 3, 4};
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        ALICE = generator.generateKeyPair().getPublic();
+        BOB = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        SignatureCache cache = new SignatureCache(4);
+        ByteBuffer key = cache.keyOf(ALICE, MESSAGE, SIGNATURE);
+        assertFalse(cache.isVerified(key));
+        assertEquals(0, cache.hits());
+        assertEquals(1, cache.misses());
+
+        cache.markVerified(key);
+        assertTrue(cache.isVerified(cache.keyOf(ALICE, MESSAGE, SIGNATURE)));
+        assertTrue(cache.isVerified(key));
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testHitIsBoundToKeyMessageAndSignature() {
+        SignatureCache cache = new SignatureCache(4);
+        cache.markVerified(cache.keyOf(ALICE, MESSAGE, SIGNATURE));
+
+        assertFalse(cache.isVerified(cache.keyOf(BOB, MESSAGE, SIGNATURE)));
+        assertFalse(cache.isVerified(cache.keyOf(ALICE, "messagf".getBytes(), SIGNATURE)));
+        assertFalse(cache.isVerified(cache.keyOf(ALICE, MESSAGE, new byte[]{1, 2, 3, 5})));
+        // moving a byte from the message into the signature must not give the same key
+        assertFalse(cache.isVerified(cache.keyOf(ALICE, "messag".getBytes(), new byte[]{'e', 1, 2, 3, 4})));
+        assertEquals(0, cache.hits());
+        assertEquals(4, cache.misses());
+
+        // a split sign data is the same check as the concatenated message
+        SignData split = new SignData("mess".getBytes(), "age".getBytes());
+        assertTrue(cache.isVerified(cache.keyOf(ALICE, split, SIGNATURE)));
+    }
+
+    @Test
+    public void testLruEviction() {
+        SignatureCache cache = new SignatureCache(2);
+        ByteBuffer first = cache.keyOf(ALICE, "first".getBytes(), SIGNATURE);
+        ByteBuffer second = cache.keyOf(ALICE, "second".getBytes(), SIGNATURE);
+        ByteBuffer third = cache.keyOf(ALICE, "third".getBytes(), SIGNATURE);
+
+        cache.markVerified(first);
+        cache.markVerified(second);
+        // touching first makes second the least recently used
+        assertTrue(cache.isVerified(first));
+        cache.markVerified(third);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.isVerified(first));
+        assertFalse(cache.isVerified(second));
+        assertTrue(cache.isVerified(third));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+        new SignatureCache(0);
+    }
+}
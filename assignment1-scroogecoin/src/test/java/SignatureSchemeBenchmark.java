@@ -0,0 +1,114 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Compares the per-input cost of validating transactions signed with each
+ * {@link SignatureScheme}. Not a unit test, run it directly:
+ * {@code java -cp target/classes:target/test-classes SignatureSchemeBenchmark [epoch sizes...]}.
+ *
+ * For every scheme an epoch of 1k, 10k and 100k single-input transactions is built from the same
+ * key pairs and each input is checked the way {@link TxHandler#isValidTx} does it: pool lookup of
+ * the spent output, building the sign data and verifying it. The handler's signature cache is
+ * deliberately bypassed, it would hide the cost being compared. Schemes the running JDK does not
+ * provide are skipped (Ed25519 needs JDK 15+).
+ */
+public class SignatureSchemeBenchmark {
+
+    private static final int[] DEFAULT_EPOCHS = {1_000, 10_000, 100_000};
+    private static final int KEYS = 8;
+    /** distinct signed transactions per key, cycled through each epoch */
+    private static final int TXS_PER_KEY = 32;
+
+    public static void main(String[] args) throws Exception {
+        int[] epochs = DEFAULT_EPOCHS;
+        if (args.length > 0) {
+            epochs = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                epochs[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            KeyPair[] pairs;
+            try {
+                pairs = generate(scheme);
+            } catch (NoSuchAlgorithmException e) {
+                System.out.printf("%-8s not available in this JDK, skipped%n", scheme);
+                continue;
+            }
+            run(scheme, pairs, epochs);
+        }
+    }
+
+    private static KeyPair[] generate(SignatureScheme scheme) throws Exception {
+        KeyPairGenerator generator;
+        switch (scheme) {
+            case RSA:
+                generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                break;
+            case ECDSA:
+                generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec("secp256r1"));
+                break;
+            default:
+                generator = KeyPairGenerator.getInstance("Ed25519");
+                break;
+        }
+        KeyPair[] pairs = new KeyPair[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            pairs[k] = generator.generateKeyPair();
+        }
+        return pairs;
+    }
+
+    private static void run(SignatureScheme scheme, KeyPair[] pairs, int[] epochs) throws Exception {
+        UTXOPool pool = new UTXOPool();
+        Transaction genesis = new Transaction();
+        for (KeyPair pair : pairs) {
+            genesis.addOutput(100, pair.getPublic());
+        }
+        genesis.finalize();
+        for (int k = 0; k < KEYS; k++) {
+            pool.addUTXO(new UTXO(genesis.getHash(), k), genesis.getOutput(k));
+        }
+
+        Transaction[] txs = new Transaction[KEYS * TXS_PER_KEY];
+        Signature sig = Signature.getInstance(scheme.getAlgorithm());
+        for (int i = 0; i < txs.length; i++) {
+            KeyPair owner = pairs[i % KEYS];
+            Transaction tx = new Transaction();
+            tx.addInput(genesis.getHash(), i % KEYS);
+            // vary the outputs so each transaction has distinct sign data
+            tx.addOutput(1 + i / KEYS, owner.getPublic());
+            sig.initSign(owner.getPrivate());
+            sig.update(tx.getRawDataToSign(0));
+            tx.addSignature(sig.sign(), 0);
+            tx.finalize();
+            txs[i] = tx;
+        }
+
+        // warm up
+        validate(pool, txs, txs.length);
+        for (int epoch : epochs) {
+            long start = System.nanoTime();
+            validate(pool, txs, epoch);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-8s %8d inputs %10.1f ms %10.1f us/input%n",
+                    scheme, epoch, elapsed / 1e6, elapsed / 1e3 / epoch);
+        }
+    }
+
+    private static void validate(UTXOPool pool, Transaction[] txs, int inputs) {
+        for (int i = 0; i < inputs; i++) {
+            Transaction tx = txs[i % txs.length];
+            Transaction.Input input = tx.getInput(0);
+            Transaction.Output spent = pool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+            if (!Crypto.verifySignature(spent.address, tx.getRawDataToSign(0), input.signature)) {
+                throw new IllegalStateException("input " + i + " did not verify");
+            }
+        }
+    }
+}
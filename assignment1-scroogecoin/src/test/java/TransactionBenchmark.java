@@ -0,0 +1,150 @@
+import java.lang.management.ManagementFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+/**
+ * Measures serialization throughput (bytes/sec) and allocation per operation of the transaction
+ * encoding. Not a unit test, run it directly:
+ * {@code java -cp target/classes:target/test-classes TransactionBenchmark}.
+ *
+ * Transactions cache their encodings, so the uncached cases call {@link TransactionSerializer}
+ * directly. Allocation is read from the per-thread allocation counter of the HotSpot
+ * {@link com.sun.management.ThreadMXBean}, the same source the JMH gc profiler uses.
+ */
+public class TransactionBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final long TARGET_NANOS = 1_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        PublicKey[] keys = new PublicKey[4];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+        Transaction small = transaction(keys, 2, 2);
+        Transaction large = transaction(keys, 50, 50);
+        Transaction consolidation = transaction(keys, 500, 500);
+        int largeSize = TransactionSerializer.rawTxSize(large);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("-- round " + (round + 1));
+            run("getRawTx 2x2 legacy", small, tx -> LegacyTransactionEncoding.getRawTx(tx).length);
+            run("getRawTx 2x2", small, tx -> TransactionSerializer.rawTx(tx).length);
+            run("getRawTx 2x2 cached", small, tx -> tx.getRawTx().length);
+            run("getRawDataToSign 2x2 legacy", small, tx -> LegacyTransactionEncoding.getRawDataToSign(tx, 1).length);
+            run("getRawDataToSign 2x2", small, tx -> TransactionSerializer.rawDataToSign(tx, 1).length);
+            run("getRawTx 50x50 legacy", large, tx -> LegacyTransactionEncoding.getRawTx(tx).length);
+            run("getRawTx 50x50", large, tx -> TransactionSerializer.rawTx(tx).length);
+            run("finalize 50x50 legacy", large, tx -> {
+                try {
+                    byte[] raw = LegacyTransactionEncoding.getRawTx(tx);
+                    MessageDigest.getInstance("SHA-256").digest(raw);
+                    return raw.length;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            run("finalize 50x50", large, tx -> {
+                TransactionSerializer.hash(tx);
+                return largeSize;
+            });
+            // hash every input's sign data the way SHA256withRSA does before the RSA step
+            run("hash sign data 500x500 per input", consolidation, 1, tx -> {
+                int bytes = 0;
+                for (int i = 0; i < tx.numInputs(); i++) {
+                    byte[] signData = TransactionSerializer.rawDataToSign(tx, i);
+                    md.update(signData);
+                    md.digest();
+                    bytes += signData.length;
+                }
+                return bytes;
+            });
+            run("hash sign data 500x500 shared", consolidation, 1, tx -> {
+                int bytes = 0;
+                for (SignData signData : TransactionSerializer.signData(tx)) {
+                    signData.update(md);
+                    md.digest();
+                    bytes += signData.length();
+                }
+                return bytes;
+            });
+        }
+
+        // replaying history: hash a large batch serially and with finalizeAll
+        Transaction[] history = new Transaction[200_000];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = transaction(keys, 2, 2);
+            history[i].addOutput(i, keys[0]);
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (Transaction tx : history) {
+                TransactionSerializer.hash(tx);
+            }
+            long serial = System.nanoTime() - start;
+            for (Transaction tx : history) {
+                // forget the hash of the previous round
+                tx.setHash(null);
+            }
+            start = System.nanoTime();
+            Transaction.finalizeAll(history);
+            long parallel = System.nanoTime() - start;
+            System.out.printf("finalize %d txs: serial %.0f tx/s, finalizeAll %.0f tx/s%n",
+                    history.length, history.length * 1e9 / serial, history.length * 1e9 / parallel);
+        }
+    }
+
+    static Transaction transaction(PublicKey[] keys, int inputs, int outputs) {
+        Random random = new Random(inputs * 31 + outputs);
+        Transaction tx = new Transaction();
+        for (int i = 0; i < inputs; i++) {
+            byte[] prevTxHash = new byte[32];
+            random.nextBytes(prevTxHash);
+            byte[] signature = new byte[256];
+            random.nextBytes(signature);
+            tx.addInput(prevTxHash, i);
+            tx.addSignature(signature, i);
+        }
+        for (int i = 0; i < outputs; i++) {
+            tx.addOutput(random.nextInt(1000) / 8.0, keys[i % keys.length]);
+        }
+        return tx;
+    }
+
+    static void run(String name, Transaction tx, ToIntFunction<Transaction> op) {
+        run(name, tx, 100, op);
+    }
+
+    /**
+     * Runs {@code op} on {@code tx} in batches of {@code batch} calls for about a second and reports
+     * throughput and allocation
+     */
+    static void run(String name, Transaction tx, int batch, ToIntFunction<Transaction> op) {
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long bytes = 0;
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++) {
+                bytes += op.applyAsInt(tx);
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < TARGET_NANOS);
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        System.out.printf("%-34s %12.1f MB/s %12.0f ops/s %12d B/op%n",
+                name, bytes * 1e3 / elapsed, ops * 1e9 / elapsed, allocated / ops);
+    }
+}
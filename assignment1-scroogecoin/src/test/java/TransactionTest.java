@@ -0,0 +1,435 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransactionTest {
+
+    private static PublicKey ALICE;
+    private static PublicKey BOB;
+
+    private static final byte[] PREV_TX_HASH = "prevTx1".getBytes();
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        ALICE = generator.generateKeyPair().getPublic();
+        BOB = generator.generateKeyPair().getPublic();
+    }
+
+    private static Transaction sampleTx() {
+        Transaction tx = new Transaction();
+        tx.addInput(PREV_TX_HASH, 0);
+        tx.addInput(PREV_TX_HASH, 3);
+        tx.addInput(null, 7);
+        tx.addSignature(new byte[]{1, 2, 3}, 0);
+        tx.addSignature(new byte[]{4, 5}, 2);
+        tx.addOutput(8.5, ALICE);
+        tx.addOutput(0.1, BOB);
+        tx.addOutput(-1.0, ALICE);
+        return tx;
+    }
+
+    @Test
+    public void testRawTxMatchesLegacyEncoding() {
+        Transaction tx = sampleTx();
+        assertArrayEquals(LegacyTransactionEncoding.getRawTx(tx), tx.getRawTx());
+        assertEquals(tx.getRawTx().length, TransactionSerializer.rawTxSize(tx));
+    }
+
+    @Test
+    public void testRawDataToSignMatchesLegacyEncoding() {
+        Transaction tx = sampleTx();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            assertArrayEquals(LegacyTransactionEncoding.getRawDataToSign(tx, i), tx.getRawDataToSign(i));
+            assertEquals(tx.getRawDataToSign(i).length, TransactionSerializer.rawDataToSignSize(tx, i));
+        }
+        assertNull(tx.getRawDataToSign(tx.numInputs() + 1));
+    }
+
+    @Test
+    public void testSignDataSharesOutputsSection() {
+        Transaction tx = sampleTx();
+        SignData[] signData = tx.getAllSignData();
+
+        assertEquals(tx.numInputs(), signData.length);
+        for (int i = 0; i < tx.numInputs(); i++) {
+            assertArrayEquals(tx.getRawDataToSign(i), signData[i].toByteArray());
+            assertSame(signData[0].getOutputs(), signData[i].getOutputs());
+        }
+    }
+
+    @Test
+    public void testStreamedHashMatchesHashOfRawTx() throws Exception {
+        Transaction tx = sampleTx();
+        tx.finalize();
+
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(tx.getRawTx()), tx.getHash());
+    }
+
+    @Test
+    public void testFinalizeAll() {
+        Transaction[] txs = new Transaction[64];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = sampleTx();
+            txs[i].addOutput(i, BOB);
+        }
+        Transaction.finalizeAll(txs);
+
+        for (Transaction tx : txs) {
+            byte[] hash = tx.getHash();
+            tx.finalize();
+            assertArrayEquals(tx.getHash(), hash);
+        }
+    }
+
+    @Test
+    public void testOutputAmounts() {
+        // whole numbers given to the constructor are bitcoins, whatever their type
+        assertEquals(5 * Transaction.COIN, new Transaction().new Output(5, ALICE).value);
+        assertEquals(5 * Transaction.COIN, new Transaction().new Output(5L, ALICE).value);
+        assertEquals(Transaction.COIN / 4, new Transaction().new Output(0.25, ALICE).value);
+        assertEquals(5, Transaction.outputOfUnits(5, ALICE).value);
+        assertSame(BOB, Transaction.outputOfUnits(1, BOB).address);
+    }
+
+    @Test
+    public void testCachedEncodingsFollowMutations() {
+        Transaction tx = sampleTx();
+        byte[] rawTx = tx.getRawTx();
+        byte[] signData = tx.getRawDataToSign(0);
+        tx.finalize();
+        byte[] hash = tx.getHash();
+        assertSame(rawTx, tx.getRawTx());
+        assertSame(signData, tx.getRawDataToSign(0));
+
+        tx.addSignature(new byte[]{9}, 1);
+        assertArrayEquals(LegacyTransactionEncoding.getRawTx(tx), tx.getRawTx());
+        assertSame(signData, tx.getRawDataToSign(0));
+        tx.finalize();
+        assertFalse(Arrays.equals(hash, tx.getHash()));
+
+        tx.addOutput(3.0, BOB);
+        assertArrayEquals(LegacyTransactionEncoding.getRawDataToSign(tx, 0), tx.getRawDataToSign(0));
+        tx.addInput(PREV_TX_HASH, 5);
+        assertArrayEquals(LegacyTransactionEncoding.getRawDataToSign(tx, 3), tx.getRawDataToSign(3));
+        tx.removeInput(0);
+        assertArrayEquals(LegacyTransactionEncoding.getRawDataToSign(tx, 0), tx.getRawDataToSign(0));
+        tx.removeInput(new UTXO(PREV_TX_HASH, 3));
+        assertArrayEquals(LegacyTransactionEncoding.getRawTx(tx), tx.getRawTx());
+
+        tx.getInput(0).addSignature(new byte[]{7, 7});
+        assertArrayEquals(LegacyTransactionEncoding.getRawTx(tx), tx.getRawTx());
+        tx.finalize();
+        assertArrayEquals(TransactionSerializer.hash(tx), tx.getHash());
+    }
+
+    @Test
+    public void testCopyHasItsOwnInputs() {
+        Transaction tx = sampleTx();
+        tx.finalize();
+        byte[] rawTx = tx.getRawTx().clone();
+        Transaction copy = new Transaction(tx);
+        assertArrayEquals(rawTx, copy.getRawTx());
+        assertNotSame(tx.getInput(0), copy.getInput(0));
+
+        copy.getInput(0).addSignature(new byte[]{7, 7});
+        copy.getInput(1).prevTxHash[0] ^= 1;
+        assertArrayEquals(rawTx, tx.getRawTx());
+        assertArrayEquals(new byte[]{1, 2, 3}, tx.getInput(0).signature);
+        assertArrayEquals(LegacyTransactionEncoding.getRawTx(copy), copy.getRawTx());
+    }
+
+    @Test
+    public void testWireFormatRoundTrip() {
+        Transaction tx = sampleTx();
+        tx.finalize();
+        Transaction other = sampleTx();
+        other.addOutput(12.25, BOB);
+        ByteBuffer stream = ByteBuffer.allocateDirect(TxWireFormat.encodedSize(tx) + TxWireFormat.encodedSize(other));
+        TxWireFormat.write(tx, stream);
+        TxWireFormat.write(other, stream);
+        stream.flip();
+
+        Transaction parsed = Transaction.parse(stream);
+        Transaction parsedOther = Transaction.parse(stream);
+
+        assertFalse(stream.hasRemaining());
+        assertEquals(tx.numInputs(), parsed.numInputs());
+        assertEquals(tx.numOutputs(), parsed.numOutputs());
+        assertArrayEquals(tx.getHash(), parsed.getHash());
+        assertArrayEquals(tx.getRawTx(), parsed.getRawTx());
+        assertNull(parsed.getInput(2).prevTxHash);
+        assertNull(parsed.getInput(1).signature);
+        assertEquals(ALICE, parsed.getOutput(0).address);
+        assertNull(parsedOther.getHash());
+        assertArrayEquals(other.getRawTx(), parsedOther.getRawTx());
+        assertArrayEquals(TxWireFormat.encode(other), TxWireFormat.encode(parsedOther));
+    }
+
+    @Test
+    public void testParseRejectsMalformedInput() {
+        byte[] encoded = TxWireFormat.encode(sampleTx());
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                Transaction.parse(ByteBuffer.wrap(encoded, 0, length));
+                fail("parsed a transaction truncated to " + length + " bytes");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        encoded[0] = 42;
+        try {
+            Transaction.parse(ByteBuffer.wrap(encoded));
+            fail("parsed an unknown version");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testParseRejectsWrongHash() {
+        Transaction tx = sampleTx();
+        tx.finalize();
+        byte[] encoded = TxWireFormat.encode(tx);
+        Transaction.parse(ByteBuffer.wrap(encoded), true);
+
+        // the last byte belongs to the address of the last output
+        encoded[encoded.length - 1] ^= 1;
+        try {
+            Transaction.parse(ByteBuffer.wrap(encoded), true);
+            fail("parsed a transaction whose contents do not match its hash");
+        } catch (IllegalArgumentException expected) {
+        }
+        // unchecked, the hash is kept until the transaction is finalized
+        Transaction unchecked = Transaction.parse(ByteBuffer.wrap(encoded));
+        assertArrayEquals(tx.getHash(), unchecked.getHash());
+        unchecked.finalize();
+        assertFalse(Arrays.equals(tx.getHash(), unchecked.getHash()));
+
+        // a hash left over from before a change is rejected as well
+        tx.addOutput(1.0, BOB);
+        try {
+            TransactionView.wrap(ByteBuffer.wrap(TxWireFormat.encode(tx)), true);
+            fail("parsed a transaction with a stale hash");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testParseRejectsMalformedKey() {
+        Transaction tx = new Transaction();
+        tx.addInput(PREV_TX_HASH, 0);
+        tx.addOutput(1.0, ALICE);
+        byte[] encoded = TxWireFormat.encode(tx);
+        // the first byte of the address opens its X.509 structure
+        encoded[encoded.length - ALICE.getEncoded().length] ^= 0x7f;
+        try {
+            Transaction.parse(ByteBuffer.wrap(encoded));
+            fail("parsed a transaction with a malformed address");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            TransactionView.wrap(ByteBuffer.wrap(encoded));
+            fail("wrapped a transaction with a malformed address");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testViewReadsFieldsInPlace() {
+        Transaction tx = sampleTx();
+        tx.finalize();
+        ByteBuffer stream = ByteBuffer.allocateDirect(TxWireFormat.encodedSize(tx));
+        TxWireFormat.write(tx, stream);
+        stream.flip();
+
+        TransactionView view = TransactionView.wrap(stream);
+
+        assertFalse(stream.hasRemaining());
+        assertArrayEquals(tx.getHash(), view.getHash());
+        assertEquals(tx.numInputs(), view.numInputs());
+        assertEquals(tx.numOutputs(), view.numOutputs());
+        assertSame(view.getInput(0), view.getInput(1));
+        assertEquals(3, view.getInput(1).outputIndex());
+        assertNull(view.getInput(2).prevTxHash());
+        assertNull(view.getInput(tx.numInputs()));
+        assertEquals(new UTXO(PREV_TX_HASH, 3), view.getInputUTXO(1));
+        assertArrayEquals(new byte[]{4, 5}, view.getInputSignature(2));
+        assertEquals(Transaction.COIN / 10, view.getOutputValue(1));
+        assertEquals(BOB, view.getOutput(1).address());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            assertArrayEquals(tx.getRawDataToSign(i), view.getRawDataToSign(i));
+        }
+        assertArrayEquals(tx.getRawTx(), view.toTransaction().getRawTx());
+    }
+
+    @Test
+    public void testHandlerValidatesView() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair owner = generator.generateKeyPair();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(PREV_TX_HASH, 0), new Transaction().new Output(5.0, owner.getPublic()));
+
+        Transaction tx = new Transaction();
+        tx.addInput(PREV_TX_HASH, 0);
+        tx.addOutput(4.0, BOB);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(owner.getPrivate());
+        signer.update(tx.getRawDataToSign(0));
+        tx.addSignature(signer.sign(), 0);
+        tx.finalize();
+        TransactionView view = TransactionView.wrap(ByteBuffer.wrap(TxWireFormat.encode(tx)));
+
+        assertTrue(new TxHandler(pool).isValidTx(view));
+        tx.addOutput(2.0, BOB);
+        tx.finalize();
+        view = TransactionView.wrap(ByteBuffer.wrap(TxWireFormat.encode(tx)));
+        assertFalse(new TxHandler(pool).isValidTx(view));
+    }
+
+    @Test
+    public void testHandlerValidatesViewSpendingHashedOutputs() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair owner = generator.generateKeyPair();
+        Transaction prevTx = new Transaction();
+        prevTx.addOutput(5.0, owner.getPublic());
+        prevTx.addOutput(3.0, owner.getPublic());
+        prevTx.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(prevTx.getHash(), 0), prevTx.getOutput(0));
+        pool.addUTXO(new UTXO(prevTx.getHash(), 1), prevTx.getOutput(1));
+
+        Transaction tx = new Transaction();
+        tx.addInput(prevTx.getHash(), 0);
+        tx.addInput(prevTx.getHash(), 1);
+        tx.addOutput(7.5, BOB);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(owner.getPrivate());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            signer.update(tx.getRawDataToSign(i));
+            tx.addSignature(signer.sign(), i);
+        }
+        tx.finalize();
+        byte[] encoded = TxWireFormat.encode(tx);
+        TransactionView view = TransactionView.wrap(ByteBuffer.wrap(encoded));
+
+        for (int i = 0; i < tx.numInputs(); i++) {
+            UTXO utxo = new UTXO(prevTx.getHash(), i);
+            assertEquals(utxo, view.getInputUTXO(i));
+            assertEquals(utxo.hashCode(), view.getInputUTXO(i).hashCode());
+            assertArrayEquals(tx.getRawDataToSign(i), view.getSignData(i).toByteArray());
+        }
+        assertTrue(new TxHandler(pool).isValidTx(view));
+
+        // swapping the signatures breaks both inputs
+        byte[] first = tx.getInput(0).signature;
+        tx.addSignature(tx.getInput(1).signature, 0);
+        tx.addSignature(first, 1);
+        tx.finalize();
+        assertFalse(new TxHandler(pool).isValidTx(TransactionView.wrap(ByteBuffer.wrap(TxWireFormat.encode(tx)))));
+
+        // an output that is not in the pool
+        pool.removeUTXO(new UTXO(prevTx.getHash(), 1));
+        assertFalse(new TxHandler(pool).isValidTx(TransactionView.wrap(ByteBuffer.wrap(encoded))));
+    }
+
+    @Test
+    public void testHandlersRejectSpendingUnsupportedKeyType() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(1024);
+        KeyPair owner = generator.generateKeyPair();
+        Transaction prevTx = new Transaction();
+        prevTx.addOutput(5.0, owner.getPublic());
+        prevTx.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(prevTx.getHash(), 0), prevTx.getOutput(0));
+
+        Transaction tx = new Transaction();
+        tx.addInput(prevTx.getHash(), 0);
+        tx.addOutput(4.0, BOB);
+        Signature signer = Signature.getInstance("SHA256withDSA");
+        signer.initSign(owner.getPrivate());
+        signer.update(tx.getRawDataToSign(0));
+        tx.addSignature(signer.sign(), 0);
+        tx.finalize();
+
+        assertFalse(new TxHandler(pool).isValidTx(tx));
+        assertEquals(0, new TxHandler(pool).handleTxs(new Transaction[]{tx}).length);
+        assertEquals(0, new MaxFeeTxHandler(pool).handleTxs(new Transaction[]{tx}).length);
+    }
+
+    @Test
+    public void testFeeSearchRejectsOverflowingFees() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair owner = generator.generateKeyPair();
+        Transaction prevTx = new Transaction();
+        prevTx.addOutputUnits(2L, owner.getPublic());
+        prevTx.addOutputUnits(Long.MAX_VALUE - 1, owner.getPublic());
+        prevTx.addOutputUnits(Long.MAX_VALUE - 1, owner.getPublic());
+        prevTx.finalize();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < prevTx.numOutputs(); i++) {
+            pool.addUTXO(new UTXO(prevTx.getHash(), i), prevTx.getOutput(i));
+        }
+
+        // two children of one parent, each paying a fee of Long.MAX_VALUE
+        Transaction parent = new Transaction();
+        parent.addInput(prevTx.getHash(), 0);
+        parent.addOutputUnits(1L, owner.getPublic());
+        parent.addOutputUnits(1L, owner.getPublic());
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(owner.getPrivate());
+        signer.update(parent.getRawDataToSign(0));
+        parent.addSignature(signer.sign(), 0);
+        parent.finalize();
+        Transaction[] txs = {parent, new Transaction(), new Transaction()};
+        for (int c = 1; c < txs.length; c++) {
+            txs[c].addInput(parent.getHash(), c - 1);
+            txs[c].addInput(prevTx.getHash(), c);
+            for (int i = 0; i < txs[c].numInputs(); i++) {
+                signer.update(txs[c].getRawDataToSign(i));
+                txs[c].addSignature(signer.sign(), i);
+            }
+            txs[c].finalize();
+        }
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(pool);
+        try {
+            handler.handleTxs(txs);
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+        assertEquals(3, handler.getUTXOPool().size());
+        try {
+            new MaxFeeTxHandlerCopy(pool).handleTxs(txs);
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+    }
+
+    @Test
+    public void testWriteIntoCallerBuffer() {
+        Transaction tx = sampleTx();
+        ByteBuffer out = ByteBuffer.allocate(TransactionSerializer.rawTxSize(tx) + 2).order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) 9);
+        TransactionSerializer.writeRawTx(tx, out);
+
+        assertEquals(ByteOrder.LITTLE_ENDIAN, out.order());
+        assertEquals(1 + tx.getRawTx().length, out.position());
+        byte[] written = new byte[tx.getRawTx().length];
+        System.arraycopy(out.array(), 1, written, 0, written.length);
+        assertArrayEquals(tx.getRawTx(), written);
+    }
+}
@@ -0,0 +1,109 @@
+import java.lang.management.ManagementFactory;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Random;
+
+/**
+ * Compares {@link TxHandler#handleTxs(Transaction[])} with the columnar
+ * {@link TxHandler#handleTxs(TransactionBatch)} on one large epoch. Not a unit test, run it
+ * directly with a heap big enough for the epoch:
+ * {@code java -Xmx4g -cp target/classes:target/test-classes TxHandlerBenchmark [transactions]}.
+ *
+ * The epoch has 1M transactions by default. Each spends one output of a genesis transaction, or
+ * every fourth one an output of an earlier transaction of the same epoch. Signatures are not
+ * real: every check is put into a shared {@link SignatureCache} up front, so both variants pay the
+ * same cache lookups and no RSA. Reported are throughput and allocation per transaction;
+ * hardware cache misses are not visible from Java, for those run the same command under
+ * {@code perf stat -e cache-misses,cache-references}, once per variant (second argument
+ * {@code array} or {@code batch}).
+ */
+public class TxHandlerBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int KEYS = 16;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String only = args.length > 1 ? args[1] : null;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        PublicKey[] keys = new PublicKey[KEYS];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+
+        Random random = new Random(42);
+        Transaction genesis = new Transaction();
+        for (int i = 0; i < size; i++) {
+            genesis.addOutputUnits(1000 + random.nextInt(1000), keys[i % KEYS]);
+        }
+        genesis.finalize();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < size; i++) {
+            pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+        }
+
+        SignatureCache cache = new SignatureCache(2 * size);
+        Transaction[] epoch = new Transaction[size];
+        for (int i = 0; i < size; i++) {
+            Transaction tx = new Transaction();
+            Transaction.Output spent;
+            if (i % 4 == 3) {
+                tx.addInput(epoch[i - 1].getHash(), 1);
+                spent = epoch[i - 1].getOutput(1);
+            } else {
+                tx.addInput(genesis.getHash(), i);
+                spent = genesis.getOutput(i);
+            }
+            byte[] signature = new byte[16];
+            random.nextBytes(signature);
+            tx.addSignature(signature, 0);
+            tx.addOutputUnits(spent.value / 2, keys[random.nextInt(KEYS)]);
+            tx.addOutputUnits(spent.value / 4, keys[random.nextInt(KEYS)]);
+            tx.finalize();
+            cache.markVerified(cache.keyOf(spent.address, tx.getRawDataToSign(0), signature));
+            epoch[i] = tx;
+        }
+        // shuffle so the handlers have to order the chained transactions themselves
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Transaction t = epoch[i];
+            epoch[i] = epoch[j];
+            epoch[j] = t;
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("-- round " + (round + 1));
+            if (only == null || only.equals("array")) {
+                TxHandler handler = new TxHandler(pool, cache);
+                long allocated = allocated();
+                long start = System.nanoTime();
+                int accepted = handler.handleTxs(epoch).length;
+                report("handleTxs(Transaction[])", accepted, size, System.nanoTime() - start, allocated() - allocated);
+            }
+            if (only == null || only.equals("batch")) {
+                TxHandler handler = new TxHandler(pool, cache);
+                long allocated = allocated();
+                long start = System.nanoTime();
+                int accepted = handler.handleTxs(TransactionBatch.of(epoch)).length;
+                report("handleTxs(TransactionBatch)", accepted, size, System.nanoTime() - start, allocated() - allocated);
+            }
+        }
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String name, int accepted, int size, long elapsed, long allocated) {
+        if (accepted != size) {
+            throw new IllegalStateException(name + " accepted " + accepted + " of " + size);
+        }
+        System.out.printf("%-28s %10.0f tx/s %10.1f ms %8d B/tx%n",
+                name, size * 1e9 / elapsed, elapsed / 1e6, allocated / size);
+    }
+}
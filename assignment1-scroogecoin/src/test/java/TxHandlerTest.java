@@ -9,9 +9,12 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.security.PublicKey;
+import java.util.BitSet;
+import java.util.List;
 import java.util.stream.IntStream;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.when;
 
 import static org.junit.Assert.*;
@@ -37,6 +40,13 @@ public class TxHandlerTest {
         PowerMockito.mockStatic(Crypto.class);
         PowerMockito.when(Crypto.verifySignature(any(PublicKey.class), any(byte[].class), any(byte[].class)))
                 .thenReturn(true);
+        PowerMockito.when(Crypto.verifySignature(any(PublicKey.class), any(SignData.class), any(byte[].class)))
+                .thenReturn(true);
+        PowerMockito.when(Crypto.verifyBatch(anyListOf(VerifyJob.class))).thenAnswer(invocation -> {
+            BitSet valid = new BitSet();
+            valid.set(0, ((List<?>) invocation.getArguments()[0]).size());
+            return valid;
+        });
         when(testAddress.getEncoded()).thenReturn(new byte[0]);
 
         POOL = new UTXOPool();
@@ -92,6 +102,44 @@ public class TxHandlerTest {
         assertTrue(TEST_TX_HASH_1.equals(txHash) || TEST_TX_HASH_3.equals(txHash));
     }
 
+    @Test
+    public void testAmountsAreExact() {
+        UTXOPool pool = new UTXOPool();
+        Transaction prevTx = new Transaction();
+        prevTx.setHash(PREV_TX_HASH);
+        prevTx.addOutput(0.3, testAddress);
+        prevTx.addOutputUnits(Long.MAX_VALUE, testAddress);
+        prevTx.addOutputUnits(1, testAddress);
+        for (int idx = 0; idx < prevTx.numOutputs(); idx++) {
+            pool.addUTXO(new UTXO(prevTx.getHash(), idx), prevTx.getOutput(idx));
+        }
+        TxHandler txHandler = new TxHandler(pool);
+
+        // 0.1 + 0.2 > 0.3 in doubles, but not in base units
+        Transaction exact = new Transaction();
+        exact.addInput(PREV_TX_HASH, 0);
+        exact.addSignature(TEST_SIGNATURE, 0);
+        exact.addOutput(0.1, testAddress);
+        exact.addOutput(0.2, testAddress);
+        assertTrue(txHandler.isValidTx(exact));
+
+        Transaction overflowingInputs = new Transaction();
+        overflowingInputs.addInput(PREV_TX_HASH, 1);
+        overflowingInputs.addSignature(TEST_SIGNATURE, 0);
+        overflowingInputs.addInput(PREV_TX_HASH, 2);
+        overflowingInputs.addSignature(TEST_SIGNATURE, 1);
+        overflowingInputs.addOutputUnits(1, testAddress);
+        assertFalse(txHandler.isValidTx(overflowingInputs));
+
+        Transaction overflowingOutputs = new Transaction();
+        overflowingOutputs.addInput(PREV_TX_HASH, 1);
+        overflowingOutputs.addSignature(TEST_SIGNATURE, 0);
+        overflowingOutputs.addOutputUnits(Long.MAX_VALUE, testAddress);
+        overflowingOutputs.addOutputUnits(Long.MAX_VALUE, testAddress);
+        overflowingOutputs.addOutputUnits(2, testAddress);
+        assertFalse(txHandler.isValidTx(overflowingOutputs));
+    }
+
     @Test
     public void testTransactionOrder() {
         TxHandler txHandler = new TxHandler(POOL);
@@ -127,6 +175,67 @@ public class TxHandlerTest {
         assertEquals(3, approved.length);
     }
 
+    @Test
+    public void testBatchTransactionOrder() {
+        TxHandler txHandler = new TxHandler(POOL);
+
+        Transaction transaction1 = new Transaction();
+        transaction1.setHash(TEST_TX_HASH_1);
+        transaction1.addInput(PREV_TX_HASH, 0);
+        transaction1.addSignature(TEST_SIGNATURE, 0);
+        transaction1.addOutput(8.0, testAddress);
+
+        //transaction 2 depends on transaction 1
+        Transaction transaction2 = new Transaction();
+        transaction2.setHash(TEST_TX_HASH_2);
+        transaction2.addInput(TEST_TX_HASH_1, 0);
+        transaction2.addSignature(TEST_SIGNATURE, 0);
+        transaction2.addOutput(7.0, testAddress);
+
+        //transaction 3 depends on transaction 2
+        Transaction transaction3 = new Transaction();
+        transaction3.setHash(TEST_TX_HASH_3);
+        transaction3.addInput(TEST_TX_HASH_2, 0);
+        transaction3.addSignature(TEST_SIGNATURE, 0);
+        transaction3.addInput(PREV_TX_HASH, 1);
+        transaction3.addSignature(TEST_SIGNATURE, 1);
+        transaction3.addOutput(4, testAddress);
+        transaction3.addOutput(2, testAddress);
+
+        //spends output 0 of transaction 1 again
+        Transaction doubleSpend = new Transaction();
+        doubleSpend.setHash("tx4".getBytes());
+        doubleSpend.addInput(TEST_TX_HASH_1, 0);
+        doubleSpend.addSignature(TEST_SIGNATURE, 0);
+        doubleSpend.addOutput(1.0, testAddress);
+
+        //claims the same output twice
+        Transaction claimsTwice = new Transaction();
+        claimsTwice.setHash("tx5".getBytes());
+        claimsTwice.addInput(PREV_TX_HASH, 3);
+        claimsTwice.addSignature(TEST_SIGNATURE, 0);
+        claimsTwice.addInput(PREV_TX_HASH, 3);
+        claimsTwice.addSignature(TEST_SIGNATURE, 1);
+        claimsTwice.addOutput(40.0, testAddress);
+
+        Transaction[] requestedTxs = {transaction3, transaction2, claimsTwice, transaction1, doubleSpend};
+        Transaction[] approved = txHandler.handleTxs(TransactionBatch.of(requestedTxs));
+
+        assertArrayEquals(new Transaction[]{transaction1, transaction2, transaction3}, approved);
+
+        Transaction next = new Transaction();
+        next.addInput(TEST_TX_HASH_3, 1);
+        next.addSignature(TEST_SIGNATURE, 0);
+        assertTrue(txHandler.isValidTx(next));
+        next.addInput(PREV_TX_HASH, 3);
+        next.addSignature(TEST_SIGNATURE, 1);
+        assertTrue(txHandler.isValidTx(next));
+        next.removeInput(1);
+        next.addInput(TEST_TX_HASH_1, 0);
+        next.addSignature(TEST_SIGNATURE, 1);
+        assertFalse(txHandler.isValidTx(next));
+    }
+
     @Test
     public void testMaxFeeTransactionOrder() {
         MaxFeeTxHandler txHandler = new MaxFeeTxHandler(POOL);
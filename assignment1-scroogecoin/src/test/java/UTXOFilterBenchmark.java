@@ -0,0 +1,94 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+/**
+ * Lookup latency of UTXOs that are not in the pool, with and without a {@link UTXOFilter}, the
+ * way spam that spends made-up outpoints hits a validator. Not a unit test, run it directly:
+ * {@code java -cp target/classes:target/test-classes UTXOFilterBenchmark [size] [bitsPerUTXO] [directory]}.
+ *
+ * Pools over a {@link HamtUTXOStore} and a {@link MappedUTXOStore} (with a small cache, in
+ * {@code directory}) are filled with {@code size} UTXOs (2M by default). Each then answers 1M
+ * lookups of absent UTXOs without a filter and with one of {@code bitsPerUTXO} bits per UTXO
+ * (10 by default), and 1M lookups of present ones, which the filter can only slow down.
+ */
+public class UTXOFilterBenchmark {
+
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int bitsPerUTXO = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Path directory = args.length > 2 ? Paths.get(args[2]) : Paths.get(System.getProperty("java.io.tmpdir"));
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey[] keys = new PublicKey[16];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+
+        UTXO[] absent = new UTXO[LOOKUPS];
+        UTXO[] present = new UTXO[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            absent[i] = utxo(size + i);
+            present[i] = utxo((int) ((long) i * size / LOOKUPS));
+        }
+
+        MappedUTXOStore mapped = new MappedUTXOStore(directory, size, 1 << 16);
+        try {
+            UTXOStore[] stores = {new HamtUTXOStore(), mapped};
+            for (UTXOStore store : stores) {
+                UTXOPool pool = new UTXOPool(store);
+                for (int i = 0; i < size; i++) {
+                    pool.addUTXO(utxo(i), Transaction.outputOfUnits(i, keys[i & 15]));
+                }
+                String name = store.getClass().getSimpleName();
+                report(name + " absent", pool, absent);
+                report(name + " present", pool, present);
+                pool.setFilterBudget((long) size * bitsPerUTXO / 8);
+                long start = System.nanoTime();
+                pool.rebuildFilter();
+                System.out.printf("%-36s built in %.0f ms, %,d KB, %d hashes, expected false positives %.2f%%%n",
+                        name + " filter", (System.nanoTime() - start) / 1e6, pool.getFilter().getMemoryBytes() >> 10,
+                        pool.getFilter().getHashes(), 100 * pool.getFilter().getExpectedFalsePositiveRate());
+                report(name + " absent, filtered", pool, absent);
+                System.out.printf("%-36s measured false positives %.2f%%%n", name + " filter",
+                        100 * pool.getFilter().getFalsePositiveRate());
+                report(name + " present, filtered", pool, present);
+            }
+        } finally {
+            mapped.close();
+        }
+    }
+
+    private static void report(String name, UTXOPool pool, UTXO[] probes) {
+        // the first pass warms up the JIT
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (UTXO probe : probes) {
+                if (pool.contains(probe)) {
+                    found++;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            if (pass == 1) {
+                System.out.printf("%-36s %8.1f ns/lookup (%d found)%n", name, (double) nanos / probes.length, found);
+            }
+        }
+    }
+
+    /** @return the UTXO number {@code i}, with a hash mixed from {@code i} */
+    private static UTXO utxo(int i) {
+        return new UTXO(mix(i), mix(i + 0x1000000000L), mix(i + 0x2000000000L), mix(i + 0x3000000000L), i & 3);
+    }
+
+    private static long mix(long z) {
+        // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,64 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Random;
+
+/**
+ * Epoch throughput of a {@link UTXOLog} at each {@link UTXOLog.Durability} level. Not a unit test,
+ * run it directly, best with the log on the disk it would use in production:
+ * {@code java -cp target/classes:target/test-classes UTXOLogBenchmark [epochs] [changes] [directory]}.
+ *
+ * Each epoch spends and creates {@code changes} UTXOs (1000 by default) on an overlay, appends it
+ * and commits it; 500 epochs are run per level by default. The time includes building the
+ * overlay, so the NONE level shows the cost of the log without any fsync.
+ */
+public class UTXOLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int epochs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Path directory = args.length > 2 ? Paths.get(args[2]) : Paths.get(System.getProperty("java.io.tmpdir"));
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        PublicKey[] keys = new PublicKey[16];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+
+        for (UTXOLog.Durability durability : UTXOLog.Durability.values()) {
+            Random random = new Random(1);
+            UTXOPool pool = new UTXOPool();
+            UTXO[] live = new UTXO[changes];
+            byte[] hash = new byte[32];
+            for (int i = 0; i < changes; i++) {
+                random.nextBytes(hash);
+                live[i] = new UTXO(hash, 0);
+                pool.addUTXO(live[i], Transaction.outputOfUnits(1L, keys[i & 15]));
+            }
+            Path file = Files.createTempFile(directory, "utxo", ".log");
+            try (UTXOLog log = new UTXOLog(file, durability)) {
+                long start = System.nanoTime();
+                for (int e = 0; e < epochs; e++) {
+                    OverlayUTXOPool epoch = new OverlayUTXOPool(pool);
+                    for (int i = 0; i < changes; i++) {
+                        epoch.removeUTXO(live[i]);
+                        random.nextBytes(hash);
+                        live[i] = new UTXO(hash, 0);
+                        epoch.addUTXO(live[i], Transaction.outputOfUnits(1L, keys[i & 15]));
+                    }
+                    log.append(epoch);
+                    epoch.commit();
+                }
+                log.sync();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-6s %8.1f epochs/s %10.0f changes/s %8.1f MB logged%n", durability,
+                        epochs / seconds, 2.0 * epochs * changes / seconds, Files.size(file) / 1e6);
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+}
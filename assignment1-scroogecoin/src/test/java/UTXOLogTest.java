@@ -0,0 +1,345 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UTXOLogTest {
+
+    private KeyPair owner;
+    private Path directory;
+    private Path logFile;
+    private Path snapshot;
+    private final Random random = new Random(9);
+
+    @Before
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        owner = generator.generateKeyPair();
+        directory = Files.createTempDirectory("utxolog");
+        logFile = directory.resolve("utxo.log");
+        snapshot = directory.resolve("utxo.snapshot");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(logFile);
+        Files.deleteIfExists(snapshot);
+        Files.delete(directory);
+    }
+
+    /** A file channel whose writes and forces fail while it is told to, like a full or failing disk */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        /** the bytes a failing write gets through before it throws */
+        int failWriteAfter = -1;
+        boolean failForce;
+
+        FailingChannel(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (failWriteAfter < 0) {
+                return file.write(srcs, offset, length);
+            }
+            long written = 0;
+            for (int i = offset; i < offset + length && written < failWriteAfter; i++) {
+                ByteBuffer part = srcs[i].duplicate();
+                part.limit(part.position() + (int) Math.min(part.remaining(), failWriteAfter - written));
+                written += file.write(part);
+                srcs[i].position(part.position());
+            }
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failForce) {
+                throw new IOException("Input/output error");
+            }
+            file.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return file.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return file.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+
+    private UTXO newUTXO() {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return new UTXO(hash, random.nextInt(4));
+    }
+
+    /** Removes {@code spent} and adds {@code created} through a logged overlay, like a handler */
+    private void epoch(UTXOLog log, UTXOPool pool, UTXO spent, UTXO created) throws Exception {
+        OverlayUTXOPool epoch = new OverlayUTXOPool(pool);
+        epoch.removeUTXO(spent);
+        epoch.addUTXO(created, Transaction.outputOfUnits(random.nextInt(1000), owner.getPublic()));
+        log.append(epoch);
+        epoch.commit();
+    }
+
+    private static void assertPoolEquals(UTXOPool expected, UTXOPool actual) {
+        Map<UTXO, Long> values = new HashMap<>();
+        for (UTXO ut : expected.getAllUTXO()) {
+            values.put(ut, expected.getTxOutput(ut).value);
+        }
+        assertEquals(values.size(), actual.size());
+        for (UTXO ut : actual.getAllUTXO()) {
+            assertEquals(values.get(ut), (Long) actual.getTxOutput(ut).value);
+            assertEquals(expected.getTxOutput(ut).address, actual.getTxOutput(ut).address);
+        }
+    }
+
+    @Test
+    public void testRecoverFromSnapshotAndLog() throws Exception {
+        UTXOPool pool = new UTXOPool();
+        UTXO[] utxos = new UTXO[8];
+        for (int i = 0; i < utxos.length; i++) {
+            utxos[i] = newUTXO();
+        }
+        pool.addUTXO(utxos[0], Transaction.outputOfUnits(5L, owner.getPublic()));
+        pool.addUTXO(utxos[1], Transaction.outputOfUnits(6L, null));
+
+        try (UTXOLog log = new UTXOLog(logFile, UTXOLog.Durability.GROUP, 2, 1000)) {
+            epoch(log, pool, utxos[0], utxos[2]);
+            log.checkpoint(pool, snapshot);
+            assertEquals(0, Files.size(logFile));
+            epoch(log, pool, utxos[2], utxos[3]);
+            epoch(log, pool, utxos[1], utxos[4]);
+            epoch(log, pool, utxos[3], utxos[5]);
+            assertEquals(4, log.getSequence());
+        }
+
+        UTXOPool recovered = UTXOLog.recover(snapshot, logFile);
+        assertPoolEquals(pool, recovered);
+        // epochs already in the pool replay without effect
+        assertPoolEquals(pool, UTXOLog.replay(logFile, recovered));
+        try (UTXOLog log = new UTXOLog(logFile, UTXOLog.Durability.EPOCH)) {
+            assertEquals(4, log.getSequence());
+        }
+    }
+
+    @Test
+    public void testTornTailIsCutOff() throws Exception {
+        UTXOPool pool = new UTXOPool();
+        UTXO first = newUTXO();
+        pool.addUTXO(first, Transaction.outputOfUnits(5L, owner.getPublic()));
+        UTXOPool base = new UTXOPool(pool);
+        UTXO second = newUTXO();
+        long afterFirst;
+        try (UTXOLog log = new UTXOLog(logFile, UTXOLog.Durability.NONE)) {
+            epoch(log, pool, first, second);
+            afterFirst = Files.size(logFile);
+            epoch(log, pool, second, newUTXO());
+        }
+
+        // a crash in the middle of the second append
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(logFile) - 5);
+        }
+        UTXOPool recovered = UTXOLog.replay(logFile, new UTXOPool(base));
+        assertEquals(1, recovered.size());
+        assertTrue(recovered.contains(second));
+
+        try (UTXOLog log = new UTXOLog(logFile, UTXOLog.Durability.EPOCH)) {
+            assertEquals(afterFirst, Files.size(logFile));
+            assertEquals(1, log.getSequence());
+            epoch(log, recovered, second, newUTXO());
+            assertEquals(2, log.getSequence());
+        }
+        assertPoolEquals(recovered, UTXOLog.replay(logFile, new UTXOPool(base)));
+    }
+
+    @Test
+    public void testFailedAppendIsCutOff() throws Exception {
+        UTXOPool pool = new UTXOPool();
+        UTXO first = newUTXO();
+        pool.addUTXO(first, Transaction.outputOfUnits(5L, owner.getPublic()));
+        UTXOPool base = new UTXOPool(pool);
+        UTXO second = newUTXO();
+        UTXO third = newUTXO();
+        FailingChannel channel = new FailingChannel(FileChannel.open(logFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        try (UTXOLog log = new UTXOLog(channel, UTXOLog.Durability.EPOCH, 1, 0)) {
+            epoch(log, pool, first, second);
+            long afterFirst = Files.size(logFile);
+
+            // the write stops partway through the record
+            channel.failWriteAfter = 11;
+            try {
+                epoch(log, pool, second, newUTXO());
+                fail();
+            } catch (IOException expected) {
+            }
+            channel.failWriteAfter = -1;
+            assertEquals(afterFirst, Files.size(logFile));
+
+            // the record is written but never reaches the disk, the handler drops the epoch
+            channel.failForce = true;
+            try {
+                epoch(log, pool, second, newUTXO());
+                fail();
+            } catch (IOException expected) {
+            }
+            channel.failForce = false;
+            assertEquals(afterFirst, Files.size(logFile));
+            assertEquals(1, log.getSequence());
+
+            epoch(log, pool, second, third);
+            assertEquals(2, log.getSequence());
+        }
+        UTXOPool recovered = UTXOLog.replay(logFile, new UTXOPool(base));
+        assertPoolEquals(pool, recovered);
+        assertTrue(recovered.contains(third));
+    }
+
+    @Test
+    public void testKeysOfAnyTypeAreLogged() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(1024);
+        PublicKey dsa = generator.generateKeyPair().getPublic();
+        UTXOPool pool = new UTXOPool();
+        UTXO first = newUTXO();
+        UTXO second = newUTXO();
+        try (UTXOLog log = new UTXOLog(logFile, UTXOLog.Durability.EPOCH)) {
+            OverlayUTXOPool epoch = new OverlayUTXOPool(pool);
+            epoch.addUTXO(first, Transaction.outputOfUnits(3L, dsa));
+            log.append(epoch);
+            epoch.commit();
+            log.checkpoint(pool, snapshot);
+            epoch.addUTXO(second, Transaction.outputOfUnits(4L, dsa));
+            log.append(epoch);
+            epoch.commit();
+        }
+        UTXOPool recovered = UTXOLog.recover(snapshot, logFile);
+        assertPoolEquals(pool, recovered);
+        assertEquals(dsa, recovered.getTxOutput(second).address);
+    }
+
+    @Test
+    public void testHandlerLogsEpochs() throws Exception {
+        Transaction genesis = new Transaction();
+        genesis.addOutput(10, owner.getPublic());
+        genesis.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+
+        Transaction tx = new Transaction();
+        tx.addInput(genesis.getHash(), 0);
+        tx.addOutput(4, owner.getPublic());
+        tx.addOutput(5, owner.getPublic());
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(owner.getPrivate());
+        signer.update(tx.getRawDataToSign(0));
+        tx.addSignature(signer.sign(), 0);
+        tx.finalize();
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(pool);
+        try (UTXOLog log = new UTXOLog(logFile, UTXOLog.Durability.EPOCH)) {
+            log.checkpoint(pool, snapshot);
+            handler.setLog(log);
+            assertEquals(1, handler.handleTxs(new Transaction[]{tx}).length);
+            assertEquals(1, log.getSequence());
+        }
+        UTXOPool recovered = UTXOLog.recover(snapshot, logFile);
+        assertPoolEquals(handler.getUTXOPool(), recovered);
+        assertFalse(recovered.contains(new UTXO(genesis.getHash(), 0)));
+        assertTrue(recovered.contains(new UTXO(tx.getHash(), 1)));
+    }
+}
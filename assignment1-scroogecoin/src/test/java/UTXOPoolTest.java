@@ -0,0 +1,518 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class UTXOPoolTest {
+
+    private static final Transaction.Output OUTPUT = new Transaction().new Output(1.0, null);
+
+    private static byte[] hash(int first, Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        hash[0] = (byte) first;
+        return hash;
+    }
+
+    @Test
+    public void testOutputsOf() {
+        Random random = new Random(3);
+        UTXOPool pool = new UTXOPool();
+        byte[] tx = hash(0x80, random);
+        for (int i = 0; i < 200; i++) {
+            pool.addUTXO(new UTXO(hash(random.nextInt(256), random), i), OUTPUT);
+        }
+        for (int i = 4; i >= 0; i--) {
+            pool.addUTXO(new UTXO(tx, i), OUTPUT);
+        }
+        pool.addUTXO(new UTXO("Tx1".getBytes(), 0), OUTPUT);
+
+        assertEquals(Arrays.asList(new UTXO(tx, 0), new UTXO(tx, 1), new UTXO(tx, 2), new UTXO(tx, 3),
+                new UTXO(tx, 4)), pool.outputsOf(tx));
+        assertEquals(Arrays.asList(new UTXO("Tx1".getBytes(), 0)), pool.outputsOf("Tx1".getBytes()));
+
+        // the index follows later changes
+        pool.removeUTXO(new UTXO(tx, 2));
+        pool.addUTXO(new UTXO(tx, 7), OUTPUT);
+        assertEquals(Arrays.asList(new UTXO(tx, 0), new UTXO(tx, 1), new UTXO(tx, 3), new UTXO(tx, 4),
+                new UTXO(tx, 7)), pool.outputsOf(tx));
+
+        assertFalse(pool.isFullySpent(tx));
+        for (UTXO ut : pool.outputsOf(tx)) {
+            pool.removeUTXO(ut);
+        }
+        assertTrue(pool.isFullySpent(tx));
+        assertTrue(pool.outputsOf(tx).isEmpty());
+    }
+
+    @Test
+    public void testHashPrefixScan() {
+        Random random = new Random(4);
+        UTXOPool pool = new UTXOPool();
+        int expected = 0;
+        for (int i = 0; i < 500; i++) {
+            byte[] hash = hash(random.nextInt(256), random);
+            if (hash[0] == (byte) 0xA5) {
+                expected++;
+            }
+            pool.addUTXO(new UTXO(hash, i), OUTPUT);
+        }
+        UTXOPool copy = new UTXOPool(pool);
+
+        ArrayList<UTXO> matches = pool.utxosWithHashPrefix(new byte[]{(byte) 0xA5});
+        assertEquals(expected, matches.size());
+        for (int i = 0; i < matches.size(); i++) {
+            assertEquals((byte) 0xA5, matches.get(i).getTxHash()[0]);
+            if (i > 0) {
+                assertTrue(UTXO.HASH_ORDER.compare(matches.get(i - 1), matches.get(i)) < 0);
+            }
+        }
+        assertEquals(500, pool.utxosWithHashPrefix(new byte[0]).size());
+        assertEquals(matches, copy.utxosWithHashPrefix(new byte[]{(byte) 0xA5}));
+    }
+
+    @Test
+    public void testOverlayCommitAndDiscard() {
+        Random random = new Random(6);
+        UTXOPool base = new UTXOPool();
+        UTXO[] utxos = new UTXO[10];
+        for (int i = 0; i < utxos.length; i++) {
+            utxos[i] = new UTXO(hash(i, random), 0);
+            if (i < 5) {
+                base.addUTXO(utxos[i], OUTPUT);
+            }
+        }
+        assertEquals(1, base.outputsOf(utxos[0].getTxHash()).size());
+
+        OverlayUTXOPool overlay = new OverlayUTXOPool(base);
+        overlay.removeUTXO(utxos[0]);
+        overlay.removeUTXO(utxos[1]);
+        overlay.addUTXO(utxos[1], OUTPUT);
+        overlay.addUTXO(utxos[5], OUTPUT);
+        overlay.addUTXO(utxos[6], OUTPUT);
+        overlay.removeUTXO(utxos[6]);
+        assertEquals(5, overlay.size());
+        assertFalse(overlay.contains(utxos[0]));
+        assertTrue(overlay.contains(utxos[5]));
+        assertEquals(5, overlay.getAllUTXO().size());
+        assertEquals(new HashSet<UTXO>(overlay.getAllUTXO()),
+                overlay.stream().parallel().map(Map.Entry::getKey).collect(Collectors.toSet()));
+
+        // the base does not see the changes until they are committed
+        assertEquals(5, base.size());
+        assertTrue(base.contains(utxos[0]));
+        assertFalse(base.contains(utxos[5]));
+
+        overlay.discard();
+        assertEquals(0, overlay.numChanges());
+        assertTrue(overlay.contains(utxos[0]));
+        assertEquals(1, overlay.outputsOf(utxos[0].getTxHash()).size());
+
+        overlay.removeUTXO(utxos[0]);
+        overlay.addUTXO(utxos[5], OUTPUT);
+        overlay.commit();
+        assertEquals(0, overlay.numChanges());
+        assertEquals(5, base.size());
+        assertFalse(base.contains(utxos[0]));
+        assertTrue(base.contains(utxos[5]));
+        assertTrue(base.outputsOf(utxos[0].getTxHash()).isEmpty());
+        assertEquals(5, overlay.size());
+    }
+
+    @Test
+    public void testOverlayCopyIsIndependentOfBase() {
+        Random random = new Random(8);
+        UTXOPool base = new UTXOPool();
+        UTXO[] utxos = new UTXO[6];
+        for (int i = 0; i < utxos.length; i++) {
+            utxos[i] = new UTXO(hash(i, random), 0);
+            if (i < 3) {
+                base.addUTXO(utxos[i], OUTPUT);
+            }
+        }
+        OverlayUTXOPool overlay = new OverlayUTXOPool(base);
+        overlay.removeUTXO(utxos[0]);
+        overlay.addUTXO(utxos[3], OUTPUT);
+        UTXOPool copy = new UTXOPool(overlay);
+
+        OverlayUTXOPool other = new OverlayUTXOPool(base);
+        other.removeUTXO(utxos[1]);
+        other.addUTXO(utxos[4], OUTPUT);
+        other.commit();
+        // the copy's changes stay its own as well
+        overlay.addUTXO(utxos[5], OUTPUT);
+        copy.removeUTXO(utxos[2]);
+
+        assertEquals(2, copy.size());
+        assertEquals(new HashSet<UTXO>(Arrays.asList(utxos[1], utxos[3])), new HashSet<UTXO>(copy.getAllUTXO()));
+        assertTrue(copy.contains(utxos[1]));
+        assertFalse(copy.contains(utxos[4]));
+        assertFalse(copy.contains(utxos[5]));
+        assertTrue(base.contains(utxos[2]));
+        assertTrue(overlay.contains(utxos[2]));
+    }
+
+    @Test
+    public void testAddressIndex() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey alice = generator.generateKeyPair().getPublic();
+        PublicKey bob = generator.generateKeyPair().getPublic();
+        Random random = new Random(10);
+        UTXOPool pool = new UTXOPool();
+        UTXO[] utxos = new UTXO[4];
+        for (int i = 0; i < utxos.length; i++) {
+            utxos[i] = new UTXO(hash(i, random), 0);
+        }
+        pool.addUTXO(utxos[0], Transaction.outputOfUnits(5L, alice));
+        assertEquals(5L, pool.balanceOf(alice));
+
+        // from the first query on, the index follows every change
+        pool.addUTXO(utxos[1], Transaction.outputOfUnits(7L, alice));
+        pool.addUTXO(utxos[2], Transaction.outputOfUnits(3L, bob));
+        assertEquals(12L, pool.balanceOf(alice));
+        assertEquals(new HashSet<UTXO>(Arrays.asList(utxos[0], utxos[1])), new HashSet<UTXO>(pool.utxosOf(alice)));
+        pool.addUTXO(utxos[1], Transaction.outputOfUnits(2L, bob));
+        pool.removeUTXO(utxos[0]);
+        pool.removeUTXO(utxos[3]);
+        assertEquals(0L, pool.balanceOf(alice));
+        assertTrue(pool.utxosOf(alice).isEmpty());
+        assertEquals(5L, pool.balanceOf(bob));
+
+        OverlayUTXOPool overlay = new OverlayUTXOPool(pool);
+        assertEquals(5L, overlay.balanceOf(bob));
+        overlay.removeUTXO(utxos[2]);
+        overlay.addUTXO(utxos[3], Transaction.outputOfUnits(9L, alice));
+        assertEquals(2L, overlay.balanceOf(bob));
+        assertEquals(5L, pool.balanceOf(bob));
+        overlay.commit();
+        assertEquals(9L, pool.balanceOf(alice));
+        assertEquals(Arrays.asList(utxos[1]), pool.utxosOf(bob));
+        assertEquals(0L, new UTXOPool(pool).balanceOf(null));
+    }
+
+    @Test
+    public void testBalanceOverflow() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey owner = generator.generateKeyPair().getPublic();
+        Random random = new Random(17);
+        UTXO first = new UTXO(hash(1, random), 0);
+        UTXO second = new UTXO(hash(2, random), 0);
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(first, Transaction.outputOfUnits(Long.MAX_VALUE, owner));
+        assertEquals(Long.MAX_VALUE, pool.balanceOf(owner));
+
+        pool.addUTXO(second, Transaction.outputOfUnits(1L, owner));
+        try {
+            pool.balanceOf(owner);
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+        assertEquals(2, pool.size());
+        pool.removeUTXO(first);
+        assertEquals(1L, pool.balanceOf(owner));
+
+        Map<UTXO, Transaction.Output> added = new HashMap<>();
+        added.put(first, Transaction.outputOfUnits(Long.MAX_VALUE, owner));
+        pool.apply(new ArrayList<UTXO>(), added);
+        try {
+            pool.utxosOf(owner);
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+        pool.apply(Arrays.asList(second), new HashMap<UTXO, Transaction.Output>());
+        assertEquals(Long.MAX_VALUE, pool.balanceOf(owner));
+        assertEquals(Arrays.asList(first), pool.utxosOf(owner));
+    }
+
+    @Test
+    public void testFilter() {
+        Random random = new Random(11);
+        UTXOPool pool = new UTXOPool();
+        List<UTXO> present = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            present.add(new UTXO(hash(random.nextInt(256), random), i % 2));
+            pool.addUTXO(present.get(i), OUTPUT);
+        }
+        pool.setFilterBudget(10 * 1000 / 8);
+        assertNull(pool.getFilter());
+        for (int i = 0; i < 10_000; i++) {
+            assertFalse(pool.contains(new UTXO(hash(random.nextInt(256), random), 0)));
+        }
+        UTXOFilter filter = pool.getFilter();
+        assertTrue(filter.getMemoryBytes() <= 10 * 1000 / 8);
+        assertEquals(10_000, filter.getQueries());
+        assertEquals(10_000, filter.getRejected() + filter.getFalsePositives());
+        assertTrue(filter.getFalsePositiveRate() < 0.05);
+
+        // the pool grows well past the budget, the filter is rebuilt and keeps every UTXO
+        pool.removeUTXO(present.remove(0));
+        for (int i = 0; i < 5000; i++) {
+            UTXO utxo = new UTXO(hash(random.nextInt(256), random), 0);
+            present.add(utxo);
+            pool.addUTXO(utxo, OUTPUT);
+        }
+        assertNotSame(filter, pool.getFilter());
+        for (UTXO utxo : present) {
+            assertTrue(pool.contains(utxo));
+            assertNotNull(pool.getTxOutput(utxo));
+        }
+        assertTrue(pool.getFilter().getQueries() > 10_000);
+
+        // overlays read through the filter of their base, and see removed base UTXOs again after a discard
+        OverlayUTXOPool overlay = new OverlayUTXOPool(pool);
+        long queries = pool.getFilter().getQueries();
+        assertFalse(overlay.contains(new UTXO(hash(1, random), 0)));
+        assertTrue(pool.getFilter().getQueries() > queries);
+        overlay.setFilterBudget(1024);
+        overlay.removeUTXO(present.get(0));
+        assertFalse(overlay.contains(present.get(0)));
+        overlay.discard();
+        assertTrue(overlay.contains(present.get(0)));
+
+        pool.setFilterBudget(0);
+        assertTrue(pool.contains(present.get(1)));
+        assertNull(pool.getFilter());
+    }
+
+    @Test
+    public void testShardedPool() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair owner = generator.generateKeyPair();
+        Transaction genesis = new Transaction();
+        genesis.addOutput(10, owner.getPublic());
+        genesis.finalize();
+        Transaction tx = new Transaction();
+        tx.addInput(genesis.getHash(), 0);
+        tx.addOutput(4, owner.getPublic());
+        tx.addOutput(5, owner.getPublic());
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(owner.getPrivate());
+        signer.update(tx.getRawDataToSign(0));
+        tx.addSignature(signer.sign(), 0);
+        tx.finalize();
+
+        try (UTXOShardServer server = new UTXOShardServer(0);
+             ShardedUTXOPool pool = ShardedUTXOPool.connect(Arrays.asList(server.getAddress(), server.getAddress()))) {
+            Random random = new Random(12);
+            UTXO[] utxos = new UTXO[100];
+            Map<UTXO, Transaction.Output> added = new HashMap<>();
+            for (int i = 0; i < utxos.length; i++) {
+                utxos[i] = new UTXO(hash(i * 256 / utxos.length, random), 0);
+                added.put(utxos[i], Transaction.outputOfUnits(i, owner.getPublic()));
+            }
+            pool.apply(new ArrayList<UTXO>(), added);
+            pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+            assertEquals(utxos.length + 1, pool.size());
+            // hashes are split into two ranges by their first byte
+            assertEquals(0, pool.shardOf(utxos[0]));
+            assertEquals(1, pool.shardOf(utxos[utxos.length - 1]));
+
+            UTXO absent = new UTXO(hash(3, random), 0);
+            Transaction.Output[] outputs = pool.getTxOutputs(new UTXO[]{utxos[70], absent, utxos[3]});
+            assertEquals(70L, outputs[0].value);
+            assertNull(outputs[1]);
+            assertEquals(3L, outputs[2].value);
+            assertEquals(owner.getPublic(), outputs[2].address);
+
+            // the handler copies the pool and commits its epoch through an overlay, all in the shards
+            TxHandler handler = new TxHandler(pool);
+            assertEquals(1, handler.handleTxs(new Transaction[]{tx}).length);
+            UTXOPool after = handler.getUTXOPool();
+            assertFalse(after.contains(new UTXO(genesis.getHash(), 0)));
+            assertEquals(5L * Transaction.COIN, after.getTxOutput(new UTXO(tx.getHash(), 1)).value);
+            assertEquals(utxos.length + 2, after.size());
+            assertTrue(pool.contains(new UTXO(genesis.getHash(), 0)));
+            assertEquals(utxos.length + 1, pool.stream().parallel().count());
+
+            // closed copies are dropped on the server at once, the unreachable ones of the handler
+            // with a later call
+            assertTrue(server.getShardCount() > 2);
+            ShardedUTXOStore copy = (ShardedUTXOStore) pool.store().copy();
+            int withCopy = server.getShardCount();
+            copy.close();
+            assertEquals(withCopy - 2, server.getShardCount());
+            handler = null;
+            after = null;
+            for (int attempt = 0; attempt < 100 && server.getShardCount() > 2; attempt++) {
+                System.gc();
+                Thread.sleep(10);
+                pool.getTxOutputs(new UTXO[]{utxos[0], utxos[utxos.length - 1]});
+            }
+            assertEquals(2, server.getShardCount());
+        }
+    }
+
+    /** A shard in this JVM whose changes fail while it is told to, after doing their removes */
+    private static final class FailingShard extends LocalUTXOShard {
+        boolean fail;
+
+        @Override
+        public int apply(UTXO[] removed, UTXO[] added, Transaction.Output[] outputs) {
+            if (fail) {
+                super.apply(removed, new UTXO[0], new Transaction.Output[0]);
+                throw new UncheckedIOException(new IOException("Connection reset"));
+            }
+            return super.apply(removed, added, outputs);
+        }
+    }
+
+    @Test
+    public void testShardFailureKeepsPoolConsistent() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey owner = generator.generateKeyPair().getPublic();
+        Random random = new Random(13);
+        FailingShard failing = new FailingShard();
+        try (ShardedUTXOPool pool = new ShardedUTXOPool(Arrays.asList(new LocalUTXOShard(), failing))) {
+            // the first byte of the hash picks the shard
+            UTXO[] low = {new UTXO(hash(1, random), 0), new UTXO(hash(2, random), 0)};
+            UTXO[] high = {new UTXO(hash(0x81, random), 0), new UTXO(hash(0x82, random), 0)};
+            pool.addUTXO(low[0], Transaction.outputOfUnits(1L, owner));
+            pool.addUTXO(high[0], Transaction.outputOfUnits(2L, owner));
+            assertEquals(3L, pool.balanceOf(owner));
+            assertEquals(2, pool.outputsOf(high[0].getTxHash()).size() + pool.outputsOf(low[0].getTxHash()).size());
+
+            OverlayUTXOPool epoch = new OverlayUTXOPool(pool);
+            epoch.removeUTXO(low[0]);
+            epoch.removeUTXO(high[0]);
+            epoch.addUTXO(low[1], Transaction.outputOfUnits(4L, owner));
+            epoch.addUTXO(high[1], Transaction.outputOfUnits(8L, owner));
+            failing.fail = true;
+            try {
+                epoch.commit();
+                fail();
+            } catch (UncheckedIOException expected) {
+            }
+            // the healthy shard took its part, the failing one only its removes
+            assertEquals(1, pool.size());
+            assertEquals(4L, pool.balanceOf(owner));
+            assertEquals(Arrays.asList(low[1]), pool.utxosOf(owner));
+            assertTrue(pool.outputsOf(high[0].getTxHash()).isEmpty());
+            assertEquals(Arrays.asList(low[1]), pool.outputsOf(low[1].getTxHash()));
+            assertTrue(pool.contains(low[1]));
+
+            // the overlay kept its changes, so the commit can be retried
+            failing.fail = false;
+            assertEquals(2, epoch.size());
+            epoch.commit();
+            assertEquals(2, pool.size());
+            assertEquals(12L, pool.balanceOf(owner));
+            assertTrue(pool.contains(high[1]));
+        }
+    }
+
+    /** A store that counts the copies made of it and of its copies */
+    private static final class CountingStore extends HashMapUTXOStore {
+        private final int[] copies;
+
+        CountingStore(int[] copies) {
+            this.copies = copies;
+        }
+
+        @Override
+        public UTXOStore copy() {
+            copies[0]++;
+            CountingStore copy = new CountingStore(copies);
+            forEach(copy::put);
+            return copy;
+        }
+    }
+
+    @Test
+    public void testFeeSearchDoesNotCopyPool() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair owner = generator.generateKeyPair();
+        Transaction genesis = new Transaction();
+        genesis.addOutput(10, owner.getPublic());
+        genesis.finalize();
+        int[] copies = new int[1];
+        UTXOPool pool = new UTXOPool(new CountingStore(copies));
+        pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+
+        Transaction tx = new Transaction();
+        tx.addInput(genesis.getHash(), 0);
+        tx.addOutput(4, owner.getPublic());
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(owner.getPrivate());
+        signer.update(tx.getRawDataToSign(0));
+        tx.addSignature(signer.sign(), 0);
+        tx.finalize();
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(pool);
+        copies[0] = 0;
+        assertEquals(1, handler.handleTxs(new Transaction[]{tx}).length);
+        assertEquals(0, copies[0]);
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        KeyPairGenerator dsa = KeyPairGenerator.getInstance("DSA");
+        dsa.initialize(1024);
+        // a key of no signature scheme can still lock an output
+        PublicKey[] keys = {generator.generateKeyPair().getPublic(), generator.generateKeyPair().getPublic(), null,
+                dsa.generateKeyPair().getPublic()};
+        Random random = new Random(8);
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = i % 100 == 0 ? ("Tx" + i).getBytes() : hash(random.nextInt(256), random);
+            pool.addUTXO(new UTXO(hash, i % 3), Transaction.outputOfUnits(random.nextLong() >>> 1, keys[i % keys.length]));
+        }
+
+        Path file = Files.createTempFile("utxo", ".snapshot");
+        try {
+            pool.snapshotTo(file);
+            UTXOPool loaded = UTXOPool.loadFrom(file);
+            OverlayUTXOPool mapped = UTXOPool.mapFrom(file);
+            for (UTXOPool restored : Arrays.asList(loaded, mapped)) {
+                assertEquals(pool.size(), restored.size());
+                assertEquals(new HashSet<UTXO>(pool.getAllUTXO()), new HashSet<UTXO>(restored.getAllUTXO()));
+                for (UTXO ut : pool.getAllUTXO()) {
+                    assertEquals(pool.getTxOutput(ut).value, restored.getTxOutput(ut).value);
+                    assertEquals(pool.getTxOutput(ut).address, restored.getTxOutput(ut).address);
+                }
+                assertEquals(pool.stream().mapToLong(e -> e.getValue().value).sum(),
+                        restored.stream().parallel().mapToLong(e -> e.getValue().value).sum());
+                assertFalse(restored.contains(new UTXO(hash(1, random), 0)));
+            }
+
+            // the mapped snapshot takes changes in its overlay
+            UTXO spent = pool.getAllUTXO().get(0);
+            mapped.removeUTXO(spent);
+            mapped.addUTXO(new UTXO(hash(2, random), 0), OUTPUT);
+            assertFalse(mapped.contains(spent));
+            assertEquals(pool.size(), mapped.size());
+            assertTrue(UTXOPool.mapFrom(file).contains(spent));
+
+            Files.write(file, new byte[]{1, 2, 3});
+            try {
+                UTXOPool.loadFrom(file);
+                fail("loaded a corrupt snapshot");
+            } catch (IOException expected) {
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
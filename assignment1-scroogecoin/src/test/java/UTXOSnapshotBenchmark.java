@@ -0,0 +1,79 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Random;
+
+/**
+ * Times writing a {@link UTXOSnapshot} and the two ways of restarting from it: reading it in full
+ * with {@link UTXOPool#loadFrom} and mapping it with {@link UTXOPool#mapFrom}, plus the first
+ * lookups on the mapped pool. Not a unit test, run it directly:
+ * {@code java -Xmx4g -cp target/classes:target/test-classes UTXOSnapshotBenchmark [size]}.
+ * The pool holds 5M UTXOs by default.
+ */
+public class UTXOSnapshotBenchmark {
+
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey[] keys = new PublicKey[16];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+        Random random = new Random(1);
+        UTXOPool pool = new UTXOPool();
+        UTXO[] probes = new UTXO[Math.min(LOOKUPS, size)];
+        byte[] hash = new byte[32];
+        for (int i = 0; i < size; i++) {
+            random.nextBytes(hash);
+            UTXO utxo = new UTXO(hash, i & 3);
+            pool.addUTXO(utxo, Transaction.outputOfUnits(i, keys[i & 15]));
+            if (i < probes.length) {
+                probes[i] = utxo;
+            }
+        }
+
+        Path file = Files.createTempFile("utxo", ".snapshot");
+        try {
+            long start = System.nanoTime();
+            pool.snapshotTo(file);
+            report("snapshotTo", start);
+            System.out.printf("%,d UTXOs, %,d MB%n", size, Files.size(file) >> 20);
+            pool = null;
+
+            start = System.nanoTime();
+            UTXOPool loaded = UTXOPool.loadFrom(file);
+            report("loadFrom", start);
+            check(loaded, size);
+            loaded = null;
+
+            start = System.nanoTime();
+            UTXOPool mapped = UTXOPool.mapFrom(file);
+            report("mapFrom", start);
+            start = System.nanoTime();
+            for (UTXO probe : probes) {
+                if (!mapped.contains(probe)) {
+                    throw new IllegalStateException("missing " + probe);
+                }
+            }
+            report(String.format("%,d lookups", probes.length), start);
+            check(mapped, size);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void report(String name, long start) {
+        System.out.printf("%-18s %8.0f ms%n", name, (System.nanoTime() - start) / 1e6);
+    }
+
+    private static void check(UTXOPool pool, int size) {
+        if (pool.size() != size) {
+            throw new IllegalStateException("restored " + pool.size() + " of " + size + " UTXOs");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Reports heap bytes per entry and lookup latency of each {@link UTXOStore}. Not a unit test, run
+ * it directly with a heap big enough for the largest size:
+ * {@code java -Xmx4g -cp target/classes:target/test-classes UTXOStoreBenchmark [sizes...]}.
+ *
+ * Memory is the growth of the used heap after a full GC, divided by the number of entries; it
+ * includes the UTXO keys and output objects a store keeps. Lookups are {@code get} calls with
+ * keys built up front, half hits and half misses, in random order. Copy time is a
+ * {@link UTXOStore#copy} followed by 1000 puts into the copy, the way a handler copies the pool
+ * and then applies an epoch.
+ */
+public class UTXOStoreBenchmark {
+
+    private static final int[] DEFAULT_SIZES = {1_000_000, 10_000_000};
+    private static final int LOOKUPS = 5_000_000;
+    private static final int KEYS = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey[] keys = new PublicKey[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            keys[k] = generator.generateKeyPair().getPublic();
+        }
+
+        Map<String, Supplier<UTXOStore>> stores = new LinkedHashMap<>();
+        stores.put("HashMapUTXOStore", HashMapUTXOStore::new);
+        stores.put("OpenAddressingUTXOStore", OpenAddressingUTXOStore::new);
+        stores.put("HamtUTXOStore", HamtUTXOStore::new);
+
+        for (int size : sizes) {
+            for (Map.Entry<String, Supplier<UTXOStore>> e : stores.entrySet()) {
+                run(e.getKey(), e.getValue(), size, keys);
+            }
+        }
+    }
+
+    private static void run(String name, Supplier<UTXOStore> factory, int size, PublicKey[] keys) {
+        Random random = new Random(size);
+        long before = usedHeap();
+        UTXOStore store = factory.get();
+        byte[] hash = new byte[32];
+        for (int i = 0; i < size; i++) {
+            random.nextBytes(hash);
+            store.put(new UTXO(hash, i & 3), Transaction.outputOfUnits(random.nextInt(1 << 30), keys[i % keys.length]));
+        }
+        long bytes = usedHeap() - before;
+
+        // probes: replay the same random hashes for hits, fresh ones for misses
+        UTXO[] probes = new UTXO[Math.min(LOOKUPS, 2 * size)];
+        Random replay = new Random(size);
+        for (int i = 0; i < probes.length; i += 2) {
+            replay.nextBytes(hash);
+            replay.nextInt(1 << 30);
+            probes[i] = new UTXO(hash, (i / 2) & 3);
+            random.nextBytes(hash);
+            if (i + 1 < probes.length) {
+                probes[i + 1] = new UTXO(hash, 0);
+            }
+        }
+        for (int i = probes.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            UTXO t = probes[i];
+            probes[i] = probes[j];
+            probes[j] = t;
+        }
+
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round < 5; round++) {
+            found = 0;
+            long start = System.nanoTime();
+            for (UTXO probe : probes) {
+                if (store.get(probe) != null) {
+                    found++;
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long start = System.nanoTime();
+        UTXOStore copy = store.copy();
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(hash);
+            copy.put(new UTXO(hash, 0), Transaction.outputOfUnits(1L, keys[0]));
+        }
+        long copyNanos = System.nanoTime() - start;
+
+        System.out.printf("%-26s %,12d entries %8.1f B/entry %8.1f ns/lookup %10.3f ms/copy (%d hits)%n",
+                name, size, (double) bytes / size, (double) best / probes.length, copyNanos / 1e6, found);
+        if (store.size() != size) {
+            throw new IllegalStateException(name + " holds " + store.size() + " entries");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
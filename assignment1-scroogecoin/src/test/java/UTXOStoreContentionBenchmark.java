@@ -0,0 +1,160 @@
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Measures lookup throughput of thread-safe {@link UTXOStore}s while validator threads read and a
+ * single committer changes the store, the way parallel validation runs next to an epoch being
+ * applied. Not a unit test, run it directly:
+ * {@code java -Xmx2g -cp target/classes:target/test-classes UTXOStoreContentionBenchmark [size] [millis]}.
+ *
+ * For 1 to 64 reader threads, each store is filled with {@code size} UTXOs (1M by default).
+ * Readers call {@code get} on random present keys for {@code millis} milliseconds (1000 by
+ * default) while the committer keeps removing a random UTXO and putting it back. The baseline is
+ * a {@link HashMapUTXOStore} behind a single lock. Scaling is bounded by the number of cores;
+ * on a machine with fewer cores than readers the numbers show the locking overhead only.
+ */
+public class UTXOStoreContentionBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        PublicKey key = generator.generateKeyPair().getPublic();
+        Transaction.Output output = Transaction.outputOfUnits(1L, key);
+        Random random = new Random(1);
+        UTXO[] utxos = new UTXO[size];
+        byte[] hash = new byte[32];
+        for (int i = 0; i < size; i++) {
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, 0);
+        }
+
+        Map<String, Supplier<UTXOStore>> stores = new LinkedHashMap<>();
+        stores.put("LockedHashMapUTXOStore", () -> new LockedStore(new HashMapUTXOStore()));
+        stores.put("StripedUTXOStore", StripedUTXOStore::new);
+
+        System.out.printf("available processors: %d%n", Runtime.getRuntime().availableProcessors());
+        for (Map.Entry<String, Supplier<UTXOStore>> e : stores.entrySet()) {
+            UTXOStore store = e.getValue().get();
+            for (UTXO utxo : utxos) {
+                store.put(utxo, output);
+            }
+            for (int threads : THREADS) {
+                run(e.getKey(), store, utxos, output, threads, millis);
+            }
+        }
+    }
+
+    private static void run(String name, UTXOStore store, UTXO[] utxos, Transaction.Output output,
+                            int threads, long millis) throws InterruptedException {
+        AtomicBoolean done = new AtomicBoolean();
+        LongAdder reads = new LongAdder();
+        LongAdder commits = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers.add(new Thread(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                while (!done.get()) {
+                    for (int i = 0; i < 1024; i++) {
+                        store.get(utxos[random.nextInt(utxos.length)]);
+                    }
+                    count += 1024;
+                }
+                reads.add(count);
+            }));
+        }
+        workers.add(new Thread(() -> {
+            Random random = new Random(-1);
+            long count = 0;
+            while (!done.get()) {
+                UTXO utxo = utxos[random.nextInt(utxos.length)];
+                store.remove(utxo);
+                store.put(utxo, output);
+                count++;
+            }
+            commits.add(count);
+        }));
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        done.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-24s %3d readers %12.0f reads/s %10.0f commits/s%n",
+                name, threads, reads.sum() / seconds, commits.sum() / seconds);
+    }
+
+    /** A store behind one lock, the simplest way to share a store between threads */
+    private static final class LockedStore implements UTXOStore {
+        private final UTXOStore store;
+
+        LockedStore(UTXOStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public synchronized Transaction.Output get(UTXO utxo) {
+            return store.get(utxo);
+        }
+
+        @Override
+        public synchronized boolean contains(UTXO utxo) {
+            return store.contains(utxo);
+        }
+
+        @Override
+        public synchronized void put(UTXO utxo, Transaction.Output output) {
+            store.put(utxo, output);
+        }
+
+        @Override
+        public synchronized void remove(UTXO utxo) {
+            store.remove(utxo);
+        }
+
+        @Override
+        public synchronized int size() {
+            return store.size();
+        }
+
+        @Override
+        public synchronized void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            store.forEach(action);
+        }
+
+        /** copies the entries under the lock */
+        @Override
+        public synchronized Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+            List<Map.Entry<UTXO, Transaction.Output>> entries = new ArrayList<>(store.size());
+            store.forEach((utxo, output) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(utxo, output)));
+            return entries.spliterator();
+        }
+
+        @Override
+        public synchronized UTXOStore copy() {
+            return new LockedStore(store.copy());
+        }
+    }
+}
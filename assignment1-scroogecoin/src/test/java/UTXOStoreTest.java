@@ -0,0 +1,361 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.*;
+
+/** Runs the same random operations against every {@link UTXOStore} and a plain map */
+public class UTXOStoreTest {
+
+    private static PublicKey[] KEYS;
+
+    /** a key without an X.509 encoding, which cannot be sent to a shard */
+    private static final PublicKey UNENCODABLE = new PublicKey() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getAlgorithm() {
+            return "Opaque";
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+    };
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        KEYS = new PublicKey[]{generator.generateKeyPair().getPublic(), generator.generateKeyPair().getPublic(), null};
+    }
+
+    @Test
+    public void testHashMapStore() {
+        checkAgainstModel(new HashMapUTXOStore());
+    }
+
+    @Test
+    public void testOpenAddressingStore() {
+        checkAgainstModel(new OpenAddressingUTXOStore());
+    }
+
+    @Test
+    public void testHamtStore() {
+        checkAgainstModel(new HamtUTXOStore());
+    }
+
+    @Test
+    public void testMappedStore() {
+        MappedUTXOStore store = new MappedUTXOStore();
+        try {
+            checkAgainstModel(store);
+            assertTrue(store.hits() > 0);
+            assertTrue(store.misses() > 0);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testMappedStoreCopyOnWrite() throws Exception {
+        Path directory = Files.createTempDirectory("utxo");
+        // two segments
+        MappedUTXOStore store = new MappedUTXOStore(directory, MappedUTXOStore.SEGMENT_RECORDS, 16);
+        MappedUTXOStore copy = null;
+        try {
+            assertEquals(2L * MappedUTXOStore.SEGMENT_RECORDS * MappedUTXOStore.RECORD, store.mappedBytes());
+            // the files are unlinked once mapped
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(0, files.count());
+            }
+            Random random = new Random(9);
+            UTXO[] utxos = new UTXO[1000];
+            for (int i = 0; i < utxos.length; i++) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                utxos[i] = new UTXO(hash, 0);
+                store.put(utxos[i], Transaction.outputOfUnits(i, KEYS[i % KEYS.length]));
+            }
+            copy = (MappedUTXOStore) store.copy();
+            copy.remove(utxos[0]);
+            copy.put(utxos[1], Transaction.outputOfUnits(-1, null));
+            store.remove(utxos[2]);
+            store.put(utxos[3], Transaction.outputOfUnits(-3, null));
+
+            assertEquals(0, store.get(utxos[0]).value);
+            assertEquals(1, store.get(utxos[1]).value);
+            assertNull(store.get(utxos[2]));
+            assertEquals(-3, store.get(utxos[3]).value);
+            assertNull(copy.get(utxos[0]));
+            assertEquals(-1, copy.get(utxos[1]).value);
+            assertEquals(2, copy.get(utxos[2]).value);
+            assertEquals(3, copy.get(utxos[3]).value);
+            for (int i = 4; i < utxos.length; i++) {
+                assertEquals(i, store.get(utxos[i]).value);
+                assertEquals(i, copy.get(utxos[i]).value);
+            }
+            assertEquals(utxos.length - 1, store.size());
+            assertEquals(utxos.length - 1, copy.size());
+        } finally {
+            if (copy != null) {
+                copy.close();
+            }
+            store.close();
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testMappedStoreWithoutCache() throws Exception {
+        Path directory = Files.createTempDirectory("utxo");
+        MappedUTXOStore store = new MappedUTXOStore(directory, 16, 0);
+        try {
+            checkAgainstModel(store);
+            assertEquals(0, store.hits());
+        } finally {
+            store.close();
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testStripedStore() {
+        checkAgainstModel(new StripedUTXOStore());
+        checkAgainstModel(new StripedUTXOStore(1));
+    }
+
+    @Test
+    public void testStripedStoreReadsWhileCommitting() throws Exception {
+        StripedUTXOStore store = new StripedUTXOStore(4);
+        Transaction.Output output = Transaction.outputOfUnits(1L, KEYS[0]);
+        Random random = new Random(7);
+        UTXO[] stable = new UTXO[1000];
+        for (int i = 0; i < stable.length; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            stable[i] = new UTXO(hash, 0);
+            store.put(stable[i], output);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get()) {
+                    for (UTXO utxo : stable) {
+                        if (store.get(utxo) != output) {
+                            misses.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        // the committer grows and shrinks the stripes, the stable UTXOs must stay visible throughout
+        for (int round = 0; round < 20; round++) {
+            List<UTXO> churn = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                churn.add(new UTXO(hash, 1));
+                store.put(churn.get(i), output);
+            }
+            for (UTXO utxo : churn) {
+                store.remove(utxo);
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, misses.get());
+        assertEquals(stable.length, store.size());
+    }
+
+    @Test
+    public void testShardedStore() throws Exception {
+        try (ShardedUTXOStore store = new ShardedUTXOStore(Arrays.asList(
+                new LocalUTXOShard(), new LocalUTXOShard(), new LocalUTXOShard()))) {
+            checkAgainstModel(store);
+        }
+    }
+
+    @Test
+    public void testRemoteShardedStore() throws Exception {
+        try (UTXOShardServer first = new UTXOShardServer(0);
+             UTXOShardServer second = new UTXOShardServer(0);
+             ShardedUTXOStore store = new ShardedUTXOStore(Arrays.asList(
+                     RemoteUTXOShard.connect(first.getAddress()), RemoteUTXOShard.connect(second.getAddress())))) {
+            checkAgainstModel(store);
+        }
+    }
+
+    @Test
+    public void testRemoteShardAfterFailedRequests() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(512);
+        // keys of no signature scheme are sent like any other
+        PublicKey dsa = generator.generateKeyPair().getPublic();
+        UTXO first = new UTXO(new byte[32], 0);
+        UTXO second = new UTXO(new byte[32], 1);
+        try (UTXOShardServer server = new UTXOShardServer(0);
+             RemoteUTXOShard shard = RemoteUTXOShard.connect(server.getAddress())) {
+            // fails to encode after a new key, which must not count as sent
+            try {
+                shard.apply(new UTXO[0], new UTXO[]{first, second}, new Transaction.Output[]{
+                        Transaction.outputOfUnits(1, KEYS[0]), Transaction.outputOfUnits(2, UNENCODABLE)});
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            assertEquals(0, shard.size());
+            // the server answers a request on a released copy with an error
+            UTXOShard copy = shard.copy();
+            copy.close();
+            try {
+                copy.size();
+                fail();
+            } catch (IOException expected) {
+            }
+            assertEquals(1, shard.apply(new UTXO[0], new UTXO[]{first}, new Transaction.Output[]{
+                    Transaction.outputOfUnits(1, KEYS[0])}));
+            Transaction.Output[] found = shard.get(new UTXO[]{first, second});
+            assertOutputEquals(Transaction.outputOfUnits(1, KEYS[0]), found[0]);
+            assertNull(found[1]);
+            assertEquals(2, shard.apply(new UTXO[0], new UTXO[]{second}, new Transaction.Output[]{
+                    Transaction.outputOfUnits(2, dsa)}));
+            assertOutputEquals(Transaction.outputOfUnits(2, dsa), shard.get(new UTXO[]{second})[0]);
+        }
+    }
+
+    @Test
+    public void testShardedStoreRejectsUnencodableKeysUpFront() throws Exception {
+        byte[] low = new byte[32];
+        byte[] high = new byte[32];
+        high[0] = (byte) 0xff;
+        try (UTXOShardServer server = new UTXOShardServer(0);
+             ShardedUTXOStore store = new ShardedUTXOStore(Arrays.asList(
+                     RemoteUTXOShard.connect(server.getAddress()), RemoteUTXOShard.connect(server.getAddress())))) {
+            Map<UTXO, Transaction.Output> added = new HashMap<>();
+            added.put(new UTXO(low, 0), Transaction.outputOfUnits(1, KEYS[0]));
+            added.put(new UTXO(high, 0), Transaction.outputOfUnits(2, UNENCODABLE));
+            try {
+                store.apply(new ArrayList<>(), added);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            // no shard took its part
+            assertEquals(0, store.size());
+            assertNull(store.get(new UTXO(low, 0)));
+            try {
+                store.put(new UTXO(low, 1), Transaction.outputOfUnits(1, UNENCODABLE));
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            assertEquals(0, store.size());
+        }
+    }
+
+    private static void checkAgainstModel(UTXOStore store) {
+        Random random = new Random(5);
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            byte[] hash = new byte[i % 10 == 0 ? 3 : 32];
+            random.nextBytes(hash);
+            hashes.add(hash);
+        }
+        Map<UTXO, Transaction.Output> model = new HashMap<>();
+        UTXOStore copy = null;
+        Map<UTXO, Transaction.Output> copyModel = null;
+        for (int op = 0; op < 20_000; op++) {
+            randomChange(random, hashes, store, model);
+            if (op == 10_000) {
+                copy = store.copy();
+                copyModel = new HashMap<>(model);
+            } else if (op > 10_000 && op % 2 == 0) {
+                // copies must not see changes of the original or the other way around
+                randomChange(random, hashes, copy, copyModel);
+            }
+            UTXO probe = new UTXO(hashes.get(random.nextInt(hashes.size())), random.nextInt(8) - 1);
+            assertEquals(model.containsKey(probe), store.contains(probe));
+            assertOutputEquals(model.get(probe), store.get(probe));
+        }
+        assertStoreEquals(model, store);
+        assertStoreEquals(copyModel, copy);
+        if (copy instanceof Closeable) {
+            try {
+                ((Closeable) copy).close();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static void randomChange(Random random, List<byte[]> hashes, UTXOStore store,
+                                     Map<UTXO, Transaction.Output> model) {
+        UTXO utxo = new UTXO(hashes.get(random.nextInt(hashes.size())), random.nextInt(8) - 1);
+        if (random.nextInt(3) == 0) {
+            store.remove(utxo);
+            model.remove(utxo);
+        } else {
+            Transaction.Output output = Transaction.outputOfUnits(random.nextLong(), KEYS[random.nextInt(KEYS.length)]);
+            store.put(utxo, output);
+            model.put(utxo, output);
+        }
+    }
+
+    private static void assertStoreEquals(Map<UTXO, Transaction.Output> model, UTXOStore store) {
+        assertEquals(model.size(), store.size());
+        Map<UTXO, Transaction.Output> seen = new HashMap<>();
+        store.forEach((utxo, output) -> assertNull(seen.put(utxo, output)));
+        assertEquals(model.keySet(), seen.keySet());
+        for (Map.Entry<UTXO, Transaction.Output> e : model.entrySet()) {
+            assertOutputEquals(e.getValue(), seen.get(e.getKey()));
+            assertOutputEquals(e.getValue(), store.get(e.getKey()));
+        }
+        // toMap fails on a key seen twice, as when two parts of a split overlap
+        for (boolean parallel : new boolean[]{false, true}) {
+            Map<UTXO, Transaction.Output> streamed = StreamSupport.stream(store.spliterator(), parallel)
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            assertEquals(model.keySet(), streamed.keySet());
+            for (Map.Entry<UTXO, Transaction.Output> e : model.entrySet()) {
+                assertOutputEquals(e.getValue(), streamed.get(e.getKey()));
+            }
+        }
+    }
+
+    /** stores may hand out a new output object with the same contents */
+    private static void assertOutputEquals(Transaction.Output expected, Transaction.Output actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.value, actual.value);
+        assertEquals(expected.address, actual.address);
+    }
+}
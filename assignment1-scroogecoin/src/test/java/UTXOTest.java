@@ -0,0 +1,56 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UTXOTest {
+
+    @Test
+    public void testFullHashRoundTrip() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            UTXO utxo = new UTXO(hash, i);
+            UTXO same = new UTXO(hash.clone(), i);
+
+            assertArrayEquals(hash, utxo.getTxHash());
+            assertEquals(utxo, same);
+            assertEquals(utxo.hashCode(), same.hashCode());
+            assertEquals(0, utxo.compareTo(same));
+            assertNotEquals(utxo, new UTXO(hash, i + 1));
+            hash[31] ^= 1;
+            assertNotEquals(utxo, new UTXO(hash, i));
+        }
+    }
+
+    @Test
+    public void testShortHashes() {
+        UTXO utxo = new UTXO("Tx1".getBytes(), 0);
+
+        assertArrayEquals("Tx1".getBytes(), utxo.getTxHash());
+        assertEquals(utxo, new UTXO("Tx1".getBytes(), 0));
+        assertNotEquals(utxo, new UTXO("Tx2".getBytes(), 0));
+        assertNotEquals(utxo, new UTXO(new byte[32], 0));
+        assertTrue(utxo.compareTo(new UTXO(new byte[32], 0)) < 0);
+    }
+
+    @Test
+    public void testOrderComparesSignedBytes() {
+        Random random = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            byte[] a = new byte[32];
+            byte[] b = new byte[32];
+            random.nextBytes(a);
+            System.arraycopy(a, 0, b, 0, 32);
+            // differ in one random byte, possibly in sign
+            int at = random.nextInt(32);
+            b[at] = (byte) random.nextInt(256);
+
+            int expected = Integer.signum(Byte.compare(a[at], b[at]));
+            assertEquals(expected, Integer.signum(new UTXO(a, 5).compareTo(new UTXO(b, 5))));
+            assertEquals(-1, new UTXO(a, 4).compareTo(new UTXO(b, 5)));
+        }
+    }
+}